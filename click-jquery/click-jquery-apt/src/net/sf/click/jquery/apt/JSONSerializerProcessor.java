@@ -0,0 +1,374 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.apt;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Provides an annotation processor which generates a JSON serializer for
+ * each class annotated with <tt>net.sf.click.jquery.util.JSONSerializable</tt>.
+ * <p/>
+ * The generated serializer implements <tt>JSONTypeAdapter</tt> and writes the
+ * same JSON as the reflection based bean conversion of <tt>JSONWriter</tt>:
+ * the public bean properties in alphabetical order, followed by the public
+ * fields in the order of <tt>Class.getFields()</tt>: the fields declared by
+ * the class, then those of its interfaces and then those of its superclass,
+ * each in declaration order. Like <tt>getFields()</tt>, this includes public
+ * static fields. Property names are written as precomputed
+ * constants and no reflection is used at runtime.
+ * <p/>
+ * The processor is registered through
+ * <tt>META-INF/services/javax.annotation.processing.Processor</tt>, thus it
+ * runs whenever this jar is on the compiler classpath.
+ */
+@SupportedAnnotationTypes(JSONSerializerProcessor.ANNOTATION)
+public class JSONSerializerProcessor extends AbstractProcessor {
+
+    // -------------------------------------------------------------- Constants
+
+    /** The marker annotation of classes to generate a serializer for. */
+    static final String ANNOTATION = "net.sf.click.jquery.util.JSONSerializable";
+
+    /** The suffix of generated serializer class names. */
+    static final String SUFFIX = "_JSONSerializer";
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Return the latest source version, the processor only inspects
+     * declarations which are available in every version.
+     *
+     * @return the latest supported source version
+     */
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    /**
+     * Generate the serializers of the annotated classes of this round.
+     *
+     * @param annotations the annotation types requested to be processed
+     * @param roundEnv the environment of this round
+     * @return true, the annotation is claimed by this processor
+     */
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for (TypeElement annotation : annotations) {
+            for (Element element : roundEnv.getElementsAnnotatedWith(annotation)) {
+                if (element.getKind() != ElementKind.CLASS) {
+                    error(element, "@JSONSerializable can only be applied to classes");
+                    continue;
+                }
+                TypeElement type = (TypeElement) element;
+                if (!isAccessible(type)) {
+                    error(type, "@JSONSerializable class must be public or package"
+                        + " private, and nested classes must be static");
+                    continue;
+                }
+                try {
+                    generate(type);
+                } catch (IOException e) {
+                    error(type, "Could not generate JSON serializer: " + e.getMessage());
+                }
+            }
+        }
+        return true;
+    }
+
+    // ------------------------------------------------ Package Private Methods
+
+    /**
+     * Return the simple name of the serializer generated for the given type.
+     * Nested type names are joined with an underscore, for example
+     * <tt>Chart_Point_JSONSerializer</tt> for <tt>Chart.Point</tt>.
+     *
+     * @param type the annotated type
+     * @return the simple name of the generated serializer
+     */
+    static String getSerializerName(TypeElement type) {
+        StringBuilder name = new StringBuilder(type.getSimpleName());
+        Element enclosing = type.getEnclosingElement();
+        while (enclosing instanceof TypeElement) {
+            name.insert(0, '_').insert(0, enclosing.getSimpleName());
+            enclosing = enclosing.getEnclosingElement();
+        }
+        return name.append(SUFFIX).toString();
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    private void generate(TypeElement type) throws IOException {
+        PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        String packageName = pkg.isUnnamed() ? null : pkg.getQualifiedName().toString();
+        String serializerName = getSerializerName(type);
+        String typeName = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+
+        List<Property> properties = getProperties(type);
+
+        String qualifiedName = packageName == null ? serializerName
+            : packageName + "." + serializerName;
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(qualifiedName, type);
+        Writer writer = file.openWriter();
+        try {
+            StringBuilder src = new StringBuilder(1024);
+            if (packageName != null) {
+                src.append("package ").append(packageName).append(";\n\n");
+            }
+            src.append("import java.io.IOException;\n");
+            src.append("import net.sf.click.jquery.util.JSONTypeAdapter;\n");
+            src.append("import net.sf.click.jquery.util.JSONWriter;\n\n");
+            src.append("/**\n");
+            src.append(" * JSON serializer of {@link ").append(typeName).append("}, generated by\n");
+            src.append(" * ").append(getClass().getName()).append(". Do not edit.\n");
+            src.append(" */\n");
+            src.append("public final class ").append(serializerName);
+            src.append(" implements JSONTypeAdapter {\n\n");
+
+            for (int i = 0; i < properties.size(); i++) {
+                String prefix = (i == 0) ? "{" : ",";
+                src.append("    private static final String NAME_").append(i);
+                src.append(" = \"").append(escape(prefix + '"' + properties.get(i).name + "\":"));
+                src.append("\";\n\n");
+            }
+
+            src.append("    public void write(Object value, JSONWriter writer, Appendable out)");
+            src.append(" throws IOException {\n");
+            if (properties.isEmpty()) {
+                src.append("        out.append(\"{}\");\n");
+            } else {
+                src.append("        ").append(typeName).append(" bean = (");
+                src.append(typeName).append(") value;\n");
+                for (int i = 0; i < properties.size(); i++) {
+                    Property property = properties.get(i);
+                    src.append("        out.append(NAME_").append(i).append(");\n");
+                    src.append("        ").append(writeStatement(property)).append('\n');
+                }
+                src.append("        out.append('}');\n");
+            }
+            src.append("    }\n");
+            src.append("}\n");
+            writer.write(src.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Return the public bean properties of the given type sorted by name,
+     * followed by its public fields in the order of
+     * <tt>Class.getFields()</tt>. Inherited members are included.
+     */
+    private List<Property> getProperties(TypeElement type) {
+        List<? extends Element> members = processingEnv.getElementUtils().getAllMembers(type);
+
+        Map<String, Property> accessors = new TreeMap<String, Property>();
+        for (ExecutableElement method : ElementFilter.methodsIn(members)) {
+            Set<Modifier> modifiers = method.getModifiers();
+            if (!modifiers.contains(Modifier.PUBLIC) || modifiers.contains(Modifier.STATIC)) {
+                continue;
+            }
+            String name = getPropertyName(method);
+            if (name != null && !accessors.containsKey(name)) {
+                accessors.put(name, new Property(name,
+                    "bean." + method.getSimpleName() + "()", method.getReturnType()));
+            }
+        }
+
+        List<Property> properties = new ArrayList<Property>(accessors.values());
+        addFields(type, new HashSet<Element>(), properties);
+        return properties;
+    }
+
+    /**
+     * Add the public fields of the given type in the order of
+     * <tt>Class.getFields()</tt>: the fields declared by the type, then
+     * recursively those of its interfaces and of its superclass.
+     */
+    private void addFields(TypeElement type, Set<Element> added, List<Property> fields) {
+        for (VariableElement field : ElementFilter.fieldsIn(type.getEnclosedElements())) {
+            Set<Modifier> modifiers = field.getModifiers();
+            if (!modifiers.contains(Modifier.PUBLIC) || !added.add(field)) {
+                continue;
+            }
+            String name = field.getSimpleName().toString();
+            String accessor;
+            if (modifiers.contains(Modifier.STATIC)) {
+                accessor = processingEnv.getTypeUtils().erasure(type.asType()) + "." + name;
+            } else {
+                accessor = "bean." + name;
+            }
+            fields.add(new Property(name, accessor, field.asType()));
+        }
+        for (TypeMirror itf : type.getInterfaces()) {
+            addFields((TypeElement) processingEnv.getTypeUtils().asElement(itf), added, fields);
+        }
+        TypeMirror superclass = type.getSuperclass();
+        if (superclass.getKind() == TypeKind.DECLARED) {
+            addFields((TypeElement) processingEnv.getTypeUtils().asElement(superclass),
+                added, fields);
+        }
+    }
+
+    /**
+     * Return the bean property name of the given read method, or null if
+     * the method is not a read method. Follows the java.beans naming rules.
+     */
+    private String getPropertyName(ExecutableElement method) {
+        if (!method.getParameters().isEmpty() || !method.getTypeParameters().isEmpty()) {
+            return null;
+        }
+        TypeMirror returnType = method.getReturnType();
+        if (returnType.getKind() == TypeKind.VOID) {
+            return null;
+        }
+        String methodName = method.getSimpleName().toString();
+        String name;
+        if (methodName.startsWith("get") && methodName.length() > 3) {
+            name = methodName.substring(3);
+        } else if (methodName.startsWith("is") && methodName.length() > 2
+            && returnType.getKind() == TypeKind.BOOLEAN) {
+            name = methodName.substring(2);
+        } else {
+            return null;
+        }
+        if ("Class".equals(name)) {
+            // The class name is only written through reflection
+            return null;
+        }
+        return decapitalize(name);
+    }
+
+    /**
+     * Return the statement writing the value of the given property.
+     * Primitives are appended directly, Strings are escaped and other values
+     * are written by the JSONWriter.
+     */
+    private String writeStatement(Property property) {
+        String getter = property.accessor;
+        switch (property.type.getKind()) {
+            case INT:
+            case SHORT:
+            case BYTE:
+                return "out.append(Integer.toString(" + getter + "));";
+            case LONG:
+                return "out.append(Long.toString(" + getter + "));";
+            case DOUBLE:
+                return "out.append(Double.toString(" + getter + "));";
+            case FLOAT:
+                return "out.append(Float.toString(" + getter + "));";
+            case BOOLEAN:
+                return "out.append(" + getter + " ? \"true\" : \"false\");";
+            case CHAR:
+                return "writer.writeString(String.valueOf(" + getter + "));";
+            default:
+                if ("java.lang.String".equals(property.type.toString())) {
+                    return "writer.writeString(" + getter + ");";
+                }
+                return "writer.writeValue(" + getter + ");";
+        }
+    }
+
+    private boolean isAccessible(TypeElement type) {
+        Element element = type;
+        while (element instanceof TypeElement) {
+            TypeElement current = (TypeElement) element;
+            Set<Modifier> modifiers = current.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE)) {
+                return false;
+            }
+            if (current.getNestingKind() == NestingKind.MEMBER
+                && !modifiers.contains(Modifier.STATIC)
+                && current.getEnclosingElement().getKind() != ElementKind.INTERFACE) {
+                return false;
+            }
+            if (current.getNestingKind() == NestingKind.LOCAL
+                || current.getNestingKind() == NestingKind.ANONYMOUS) {
+                return false;
+            }
+            element = current.getEnclosingElement();
+        }
+        return true;
+    }
+
+    private void error(Element element, String message) {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    /**
+     * Decapitalize the given name following
+     * <tt>java.beans.Introspector.decapitalize</tt>.
+     */
+    private static String decapitalize(String name) {
+        if (name.length() > 1 && Character.isUpperCase(name.charAt(1))
+            && Character.isUpperCase(name.charAt(0))) {
+            return name;
+        }
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Escape the given value for use in a Java string literal.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
+
+    // ---------------------------------------------------------- Inner Classes
+
+    /**
+     * Provides a property of the annotated type.
+     */
+    static class Property {
+
+        /** The JSON name of the property. */
+        final String name;
+
+        /** The Java expression reading the property from the bean. */
+        final String accessor;
+
+        /** The type of the property. */
+        final TypeMirror type;
+
+        Property(String name, String accessor, TypeMirror type) {
+            this.name = name;
+            this.accessor = accessor;
+            this.type = type;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.apache.click.jquery.apt;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+import net.sf.click.jquery.apt.JSONSerializerProcessor;
+import net.sf.click.jquery.util.JSONWriter;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JSONSerializerProcessorTest {
+
+    /** The runtime types the generated code refers to. */
+    private static final String[][] RUNTIME = {
+        {"net.sf.click.jquery.util.JSONSerializable",
+            "package net.sf.click.jquery.util;"
+            + "public @interface JSONSerializable {}"},
+        {"net.sf.click.jquery.util.JSONTypeAdapter",
+            "package net.sf.click.jquery.util;"
+            + "public interface JSONTypeAdapter {"
+            + "void write(Object v, JSONWriter w, Appendable o) throws java.io.IOException;}"},
+        {"net.sf.click.jquery.util.JSONWriter",
+            "package net.sf.click.jquery.util;"
+            + "public class JSONWriter {"
+            + "public void writeValue(Object v) {}"
+            + "public void writeString(String v) {}}"}
+    };
+
+    @Test
+    public void testGenerateSerializer() throws Exception {
+        String source = "package com.mycorp;"
+            + "import java.util.List;"
+            + "public class Chart {"
+            + "  @net.sf.click.jquery.util.JSONSerializable"
+            + "  public static class Point {"
+            + "    public String label;"
+            + "    public static int COUNT;"
+            + "    public int getY() { return 0; }"
+            + "    public boolean isVisible() { return true; }"
+            + "    public String getName() { return null; }"
+            + "    public List<Point> getChildren() { return null; }"
+            + "    public void setY(int y) {}"
+            + "    int getHidden() { return 0; }"
+            + "  }"
+            + "}";
+
+        String generated = compile("com.mycorp.Chart", source,
+            "com/mycorp/Chart_Point_JSONSerializer.java");
+
+        assertTrue(generated.contains("public final class Chart_Point_JSONSerializer implements JSONTypeAdapter"));
+        assertTrue(generated.contains("com.mycorp.Chart.Point bean = (com.mycorp.Chart.Point) value;"));
+
+        // Properties in alphabetical order, followed by the public fields
+        assertTrue(generated.contains("NAME_0 = \"{\\\"children\\\":\""));
+        assertTrue(generated.contains("NAME_1 = \",\\\"name\\\":\""));
+        assertTrue(generated.contains("NAME_2 = \",\\\"visible\\\":\""));
+        assertTrue(generated.contains("NAME_3 = \",\\\"y\\\":\""));
+        assertTrue(generated.contains("NAME_4 = \",\\\"label\\\":\""));
+        assertTrue(generated.contains("NAME_5 = \",\\\"COUNT\\\":\""));
+        assertTrue(!generated.contains("NAME_6"));
+
+        assertTrue(generated.contains("writer.writeValue(bean.getChildren());"));
+        assertTrue(generated.contains("writer.writeString(bean.getName());"));
+        assertTrue(generated.contains("out.append(bean.isVisible() ? \"true\" : \"false\");"));
+        assertTrue(generated.contains("out.append(Integer.toString(bean.getY()));"));
+        assertTrue(generated.contains("writer.writeString(bean.label);"));
+        assertTrue(generated.contains("out.append(Integer.toString(com.mycorp.Chart.Point.COUNT));"));
+    }
+
+    @Test
+    public void testSameJsonAsReflection() throws Exception {
+        String base = "package com.mycorp;"
+            + "public class Base implements Shape {"
+            + "  public int id = 7;"
+            + "  public String getRate() { return \"high\"; }"
+            + "}";
+        String shape = "package com.mycorp;"
+            + "public interface Shape { String KIND = \"shape\"; }";
+        String item = "package com.mycorp;"
+            + "%s public class %s extends Base {"
+            + "  public String label = \"a\";"
+            + "  public int count = 2;"
+            + "  public static int TOTAL = 3;"
+            + "  public boolean isVisible() { return true; }"
+            + "}";
+
+        ClassLoader loader = compileAndLoad(
+            new Source("com.mycorp.Base", base),
+            new Source("com.mycorp.Shape", shape),
+            new Source("com.mycorp.Item",
+                String.format(item, "@net.sf.click.jquery.util.JSONSerializable", "Item")),
+            new Source("com.mycorp.PlainItem", String.format(item, "", "PlainItem")));
+        loader.loadClass("com.mycorp.Item_JSONSerializer");
+
+        JSONWriter writer = new JSONWriter();
+        String reflection = writer.write(loader.loadClass("com.mycorp.PlainItem").newInstance());
+        String generated = writer.write(loader.loadClass("com.mycorp.Item").newInstance());
+
+        assertEquals("{\"rate\":\"high\",\"visible\":true,\"label\":\"a\",\"count\":2,"
+            + "\"TOTAL\":3,\"id\":7,\"KIND\":\"shape\"}", reflection);
+        assertEquals(reflection, generated);
+    }
+
+    @Test
+    public void testSerializerName() throws Exception {
+        String source = "package com.mycorp;"
+            + "@net.sf.click.jquery.util.JSONSerializable "
+            + "public class Empty {}";
+
+        String generated = compile("com.mycorp.Empty", source,
+            "com/mycorp/Empty_JSONSerializer.java");
+        assertTrue(generated.contains("out.append(\"{}\");"));
+    }
+
+    /**
+     * Compile the given source with the processor and return the content of
+     * the given generated file.
+     */
+    private String compile(String name, String source, String generatedPath) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+
+        File dir = File.createTempFile("apt", "");
+        dir.delete();
+        dir.mkdirs();
+        fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Arrays.asList(dir));
+        fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, Arrays.asList(dir));
+
+        List<JavaFileObject> sources = new ArrayList<JavaFileObject>();
+        for (String[] runtime : RUNTIME) {
+            sources.add(new Source(runtime[0], runtime[1]));
+        }
+        sources.add(new Source(name, source));
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+            null, null, sources);
+        task.setProcessors(Arrays.asList(new JSONSerializerProcessor()));
+        boolean success = task.call();
+
+        StringBuilder messages = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            messages.append(diagnostic.getMessage(Locale.ENGLISH)).append('\n');
+        }
+        assertEquals(messages.toString(), true, success);
+
+        File generated = new File(dir, generatedPath);
+        assertTrue(generated.getPath(), generated.exists());
+        return fileManager.getJavaFileForInput(StandardLocation.SOURCE_OUTPUT,
+            generatedPath.replace('/', '.').replace(".java", ""), JavaFileObject.Kind.SOURCE)
+            .getCharContent(true).toString();
+    }
+
+    /**
+     * Compile the given sources with the processor against the test
+     * classpath, and return a ClassLoader of the compiled classes.
+     */
+    private ClassLoader compileAndLoad(Source... sources) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+
+        File dir = File.createTempFile("apt", "");
+        dir.delete();
+        dir.mkdirs();
+        fileManager.setLocation(StandardLocation.CLASS_OUTPUT, Arrays.asList(dir));
+        fileManager.setLocation(StandardLocation.SOURCE_OUTPUT, Arrays.asList(dir));
+
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, fileManager, diagnostics,
+            Arrays.asList("-classpath", System.getProperty("java.class.path")), null,
+            Arrays.asList(sources));
+        task.setProcessors(Arrays.asList(new JSONSerializerProcessor()));
+        boolean success = task.call();
+
+        StringBuilder messages = new StringBuilder();
+        for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+            messages.append(diagnostic.getMessage(Locale.ENGLISH)).append('\n');
+        }
+        assertEquals(messages.toString(), true, success);
+
+        return new URLClassLoader(new URL[] {dir.toURI().toURL()}, getClass().getClassLoader());
+    }
+
+    /**
+     * Provides an in memory source file.
+     */
+    static class Source extends SimpleJavaFileObject {
+
+        private final String content;
+
+        Source(String name, String content) {
+            super(URI.create("string:///" + name.replace('.', '/') + Kind.SOURCE.extension),
+                Kind.SOURCE);
+            this.content = content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return content;
+        }
+    }
+}
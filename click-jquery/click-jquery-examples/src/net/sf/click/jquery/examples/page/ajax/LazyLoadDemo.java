@@ -106,6 +106,9 @@ public class LazyLoadDemo extends BorderPage {
     // -------------------------------------------------------- Private Methods
 
     private void setupHelper(JQBehavior behavior, Control indicatorTarget) {
+        // Send the requests of both panels as a single batch request
+        behavior.setBatch(true);
+
         // Set the target of the Ajax indicator (busy indicator)
         //helper.setIndicatorTarget(indicatorTarget);
 
@@ -91,6 +91,10 @@ public class MultiplePollDemo extends BorderPage {
                 return actionResult;
             }
         };
+
+        // Both polls share one timer and their requests are sent as one
+        // batch request
+        behavior.setGroup("clocks");
         clock.addBehavior(behavior);
     }
 
@@ -78,13 +78,23 @@ public class PollDemo extends BorderPage {
                 actionResult.replaceContent(clock, getTime());
 
                 // If the content hasn't changed and you want to decrease the
-                // poll frequency, set the response status to '304 Not Modified'
-                // as shown in the commented code below.
-                //getContext().getResponse().setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                // poll frequency, enable ifModified on the behavior as shown
+                // below. Unchanged content is then answered with a
+                // '304 Not Modified' status.
 
                 return actionResult;
             }
         };
+        //behavior.setIfModified(true);
+
+        // The clock is the same for all visitors, so it is computed once per
+        // poll interval and the rendered result is served to all polls
+        behavior.setSharedTopic("clock");
+
+        // Pause the poll while the page is hidden, and stop it after 30
+        // minutes without user input
+        behavior.setHiddenWaitTime(0);
+        behavior.setMaxIdleTime(30 * 60 * 1000);
 
         clock.addBehavior(behavior);
     }
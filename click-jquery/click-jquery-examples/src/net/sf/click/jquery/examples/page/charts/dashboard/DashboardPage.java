@@ -13,6 +13,7 @@
  */
 package net.sf.click.jquery.examples.page.charts.dashboard;
 
+import java.util.Calendar;
 import java.util.HashMap;
 import java.util.Map;
 import net.sf.click.jquery.JQEvent;
@@ -45,9 +46,16 @@ public class DashboardPage extends BorderPage {
             @Override
             public ActionResult onAction(Control source, JQEvent event) {
                 JQTaconite taconite = new JQTaconite();
-                taconite.append("#dashboard-content", new RevenueChart("chart"));
-                taconite.append("#dashboard-content", new RevenueChart("chart1"));
-                taconite.append("#dashboard-content", new RevenueChart("chart2"));
+
+                // The chart markup only changes with the year, so it is
+                // rendered once per year and served from the fragment cache
+                Integer year = Calendar.getInstance().get(Calendar.YEAR);
+                String[] names = {"chart", "chart1", "chart2"};
+                for (String name : names) {
+                    RevenueChart chart = new RevenueChart(name);
+                    taconite.append("#dashboard-content", chart);
+                    taconite.setFragmentVersion(chart, year);
+                }
                 return taconite;
             }
         };
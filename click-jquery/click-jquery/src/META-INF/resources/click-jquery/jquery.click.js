@@ -26,7 +26,13 @@
 
 (function($) {
 
-$.taconite = function(xml) {processDoc(xml);};
+// *** CLICK: JSON documents of the form {"taconite":[...]} are processed by processJson
+$.taconite = function(xml) {
+    if (xml && $.isArray(xml.taconite))
+        processJson(xml);
+    else
+        processDoc(xml);
+};
 
 $.taconite.debug = 0;  // set to true to enable debug logging to Firebug
 $.taconite.version = '3.06';
@@ -46,6 +52,13 @@ $.taconite._httpData = $.httpData; // original jQuery httpData function
 
 // replace jQuery's httpData method
 $.httpData = $.taconite.detect = function(xhr, type) {
+    //*** CLICK STARTS
+    // 304 (Not Modified) means the page is up to date
+    if (xhr.status == 304) {
+        log('response not modified');
+        return null;
+    }
+    //*** CLICK ENDS
     var ct = xhr.getResponseHeader('content-type');
     if ($.taconite.debug) {
         log('[AJAX response] content-type: ', ct, ';  status: ', xhr.status, ' ', xhr.statusText, ';  has responseXML: ', xhr.responseXML != null);
@@ -53,9 +66,15 @@ $.httpData = $.taconite.detect = function(xhr, type) {
         log('responseXML: ' + xhr.responseXML);
     }
     var data = $.taconite._httpData(xhr, type); // call original method
+    var json; //*** CLICK
     if (data && data.documentElement) {
 		$.taconite(data);
     }
+    //*** CLICK STARTS
+    else if (ct && ct.indexOf('json') >= 0 && (json = parseJson(xhr, data))) {
+        $.taconite(json);
+    }
+    //*** CLICK ENDS
     else {
         if($.taconite.debug){
           if(data.length < 2000){
@@ -111,6 +130,92 @@ function processDoc(xml) {
     if (ex) throw ex;
 };
 
+//*** CLICK STARTS
+// return the taconite JSON document of the response or null if the response
+// is not a taconite JSON document. Requests with dataType 'xml' leave JSON
+// responses unparsed
+function parseJson(xhr, data) {
+    if (data && $.isArray(data.taconite))
+        return data;
+    var text = xhr.responseText;
+    if (text && text.indexOf('{"taconite"') == 0) {
+        data = $.parseJSON(text);
+        if (data && $.isArray(data.taconite))
+            return data;
+    }
+    return null;
+};
+
+function processJson(json) {
+    var status = true, ex;
+    try {
+        $.event.trigger('taconite-begin-notify', [json]);
+        status = goJson(json.taconite);
+    } catch(e) {
+        status = ex = e;
+    }
+    $.event.trigger('taconite-complete-notify', [json, !!status, status === true ? null : status]);
+    if (ex) throw ex;
+};
+
+// apply the commands of a JSON document. Content is a HTML string which is
+// passed as is to the jQuery command, so no DOM conversion is needed
+function goJson(commands) {
+    try {
+        var t = new Date().getTime();
+        for (var i=0; i < commands.length; i++) {
+            var command = commands[i], cmd = command.cmd;
+            if (cmd == 'eval') {
+                log('invoking "eval" command: ', command.content);
+                if (command.content) $.globalEval(command.content);
+                continue;
+            }
+            if (cmd == 'addHeader') {
+                // Head elements are parsed as XML, the server wraps script
+                // and style content in CDATA as for XML documents
+                log('invoking "addHeader" command');
+                $().addHeader(command.content);
+                continue;
+            }
+            if (cmd == 'custom') {
+                continue;
+            }
+            var jq = $(command.select);
+            if (!jq[0]) {
+                log('No matching targets for selector: ', command.select);
+                continue;
+            }
+            var a = [];
+            if (command.content != null) a.push(command.content);
+            if (command.name != null) a.push(command.name);
+            if (command.value != null) a.push(command.value);
+            if (command.args) a.push.apply(a, command.args);
+            if (command.content == null) a = toMap(cmd, a);
+
+            log("invoking command: $('", command.select, "').", cmd, '('+ (command.content != null ? '...' : a.join(',')) +')');
+            jq[cmd].apply(jq, a);
+        }
+        $.taconite.lastTime = (new Date().getTime()) - t;
+        log('time to process response: ' + $.taconite.lastTime + 'ms');
+    } catch(e) {
+        if (window.console && window.console.error)
+            window.console.error('[taconite] ERROR processing document: ' + e);
+        throw e;
+    }
+    return true;
+};
+
+// css and attr commands merged by the server set several name/value pairs
+// at once, which are applied as a single map
+function toMap(cmd, a) {
+    if ((cmd != 'css' && cmd != 'attr') || a.length <= 2 || a.length % 2)
+        return a;
+    for (var j=0, map={}; j < a.length; j += 2)
+        map[a[j]] = a[j+1];
+    return [map];
+};
+//*** CLICK ENDS
+
 // convert string to xml document
 function convert(s) {
 	var doc;
@@ -208,6 +313,9 @@ function go(xml) {
                     break;
                 a.push(v);
             }
+            //*** CLICK STARTS
+            if (cmdNode.childNodes.length == 0) a = toMap(cmd, a);
+            //*** CLICK ENDS
 
             if ($.taconite.debug) {
                 var arg = els ? '...' : a.join(',');
@@ -377,6 +485,209 @@ function go(xml) {
         window.console.log('[click] ' + [].join.call(arguments,''));
     }
 
+    // Identifies this page load, the server keeps track of the markup sent to
+    // each page load to only send the changes of replaced Controls
+    Click.jq.pageId = new Date().getTime().toString(36) + Math.random().toString(36).substring(2);
+
+    // The time of the last user input, the server stops the polls of pages
+    // idle for too long
+    Click.jq.activity = new Date().getTime();
+    $(document).bind('mousedown mousemove keydown touchstart', function() {
+        Click.jq.activity = new Date().getTime();
+    });
+
+    // Send the page id, the idle time and the loaded resources with Ajax
+    // requests to this host
+    $(document).ajaxSend(function(event, xhr, options) {
+        var host = location.protocol + '//' + location.host + '/';
+        if (xhr && (!/^(\w+:)?\/\//.test(options.url) || options.url.indexOf(host) == 0)) {
+            xhr.setRequestHeader('X-Click-Page', Click.jq.pageId);
+            xhr.setRequestHeader('X-Click-Idle', new Date().getTime() - Click.jq.activity);
+            var digest = Click.jq.resourceDigest();
+            if (digest) {
+                xhr.setRequestHeader('X-Click-Resources', digest);
+            }
+        }
+    });
+
+    /**
+     * Return the digests of the resources loaded by the page, separated by
+     * commas: the JavaScript and CSS imports, and the scripts and styles with
+     * an id. The server does not send these resources again.
+     *
+     * The digests must match net.sf.click.jquery.taconite.ResourceManifest.
+     */
+    Click.jq.resourceDigest = function() {
+        var digests = [];
+        $('script, link, style').each(function() {
+            var tag = this.tagName.toLowerCase();
+            if (tag == 'script') {
+                // src_ is set on script placeholders, see appendScriptPlaceHolder
+                var src = this.getAttribute('src') || this.getAttribute('src_');
+                if (src) digests.push(digest('js:' + src));
+            } else if (tag == 'link') {
+                var href = this.getAttribute('href');
+                if (href) digests.push(digest('css:' + href));
+            }
+            if (tag != 'link' && this.id) {
+                digests.push(digest('id:' + this.id));
+            }
+        });
+        return digests.join(',');
+    }
+
+    // Return the 32 bit FNV-1a hash of the given value in base 36
+    function digest(value) {
+        var h = 0x811c9dc5;
+        for (var i = 0; i < value.length; i++) {
+            h ^= value.charCodeAt(i);
+            h += (h << 1) + (h << 4) + (h << 7) + (h << 8) + (h << 24);
+        }
+        return (h >>> 0).toString(36);
+    }
+
+    /**
+     * Queues Ajax requests and sends the requests queued within the delay as
+     * a single request, which net.sf.click.jquery.JQBatchFilter dispatches.
+     *
+     * Each request is given as jQuery ajax settings. The settings callbacks
+     * are invoked as if the request was sent on its own.
+     */
+    Click.jq.batch = {
+        delay: 10,
+        maxCalls: 20,
+        queue: [],
+        timer: null,
+
+        add: function(settings) {
+            // Move the parameters to the url so the call is self contained,
+            // and a retried call is sent on its own with its parameters
+            var query = $.param(settings.data || []);
+            if (query) {
+                settings.url += (settings.url.indexOf('?') >= 0 ? '&' : '?') + query;
+            }
+            settings.data = null;
+            if (settings.beforeSend) {
+                settings.beforeSend.call(settings);
+            }
+
+            var batch = this;
+            batch.queue.push(settings);
+            if (batch.queue.length >= batch.maxCalls) {
+                batch.flush();
+            } else if (!batch.timer) {
+                batch.timer = setTimeout(function() { batch.flush(); }, batch.delay);
+            }
+        },
+
+        flush: function() {
+            clearTimeout(this.timer);
+            this.timer = null;
+            var calls = this.queue;
+            this.queue = [];
+            if (calls.length == 0) {
+                return;
+            }
+            if (calls.length == 1) {
+                // beforeSend was already invoked when the call was queued
+                $.ajax($.extend({}, calls[0], {beforeSend: $.noop}));
+                return;
+            }
+
+            var data = [], timeout = 0;
+            for (var i = 0; i < calls.length; i++) {
+                var call = calls[i], value = (call.type || 'GET').toUpperCase() + ' ' + call.url;
+                // Conditional calls send the ETag of their last response, as jQuery would
+                if (call.ifModified && $.etag[call.url]) {
+                    value += ' ' + $.etag[call.url];
+                }
+                data.push({name: 'call', value: value});
+                timeout = Math.max(timeout, call.timeout || 0);
+            }
+            Click.jq.log('sending batch of ', calls.length, ' calls');
+            $.ajax({
+                type: 'POST',
+                url: calls[0].url.split('?')[0],
+                data: data,
+                dataType: 'json',
+                timeout: timeout,
+                beforeSend: function(xhr) {
+                    xhr.setRequestHeader('X-Click-Batch', 'true');
+                },
+                success: function(json, textStatus, xhr) {
+                    var results = json && json.batch || [];
+                    for (var i = 0; i < calls.length; i++) {
+                        complete(calls[i], results[i] || {status: 0});
+                    }
+                },
+                error: function(xhr, textStatus, errorThrown) {
+                    for (var i = 0; i < calls.length; i++) {
+                        invoke(calls[i], 'error', [xhr, textStatus, errorThrown]);
+                        invoke(calls[i], 'complete', [xhr, textStatus]);
+                    }
+                }
+            });
+        }
+    }
+
+    // Complete the given batched call with its result from the batch response
+    function complete(call, result) {
+        var xhr = {
+            readyState: 4,
+            status: result.status,
+            statusText: '',
+            responseText: result.body || '',
+            getResponseHeader: function(name) {
+                if (/^content-type$/i.test(name)) {
+                    return result.contentType || null;
+                }
+                // Click and ETag headers of the call
+                for (var key in result.headers) {
+                    if (key.toLowerCase() == name.toLowerCase()) {
+                        return result.headers[key];
+                    }
+                }
+                return null;
+            }
+        };
+        var textStatus = 'success', etag = xhr.getResponseHeader('ETag');
+        if (call.ifModified && etag) {
+            $.etag[call.url] = etag;
+        }
+        if (result.status == 304) {
+            // The page is up to date
+            textStatus = 'notmodified';
+            invoke(call, 'success', [null, textStatus, xhr]);
+        } else if (result.status >= 200 && result.status < 300) {
+            var ct = result.contentType || '';
+            try {
+                // Apply the result as the taconite auto-detection would
+                if ($.httpData == $.taconite.detect) {
+                    if (ct.indexOf('xml') >= 0) {
+                        $.taconite(xhr.responseText);
+                    } else if (ct.indexOf('json') >= 0 && xhr.responseText.indexOf('{"taconite"') == 0) {
+                        $.taconite($.parseJSON(xhr.responseText));
+                    }
+                }
+                invoke(call, 'success', [xhr.responseText, 'success', xhr]);
+            } catch(e) {
+                Click.jq.log(e);
+                textStatus = 'parsererror';
+                invoke(call, 'error', [xhr, textStatus, e]);
+            }
+        } else {
+            textStatus = 'error';
+            invoke(call, 'error', [xhr, textStatus, null]);
+        }
+        invoke(call, 'complete', [xhr, textStatus]);
+    }
+
+    function invoke(call, name, args) {
+        if (call[name]) {
+            call[name].apply(call.context || call, args);
+        }
+    }
+
     // serialize the node children to xml
     Click.jq.toXmlChildren = function(xmlNode) {
         if (xmlNode == null) {
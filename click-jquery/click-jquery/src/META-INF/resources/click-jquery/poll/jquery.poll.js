@@ -17,7 +17,10 @@
 * Changes: Correct handling of data option
 *
 * Click enhancements: pass Ajax context reference, enhanced logging, fixed start error,
-* guard against duplicate starts, added support for max_polls and stop_after_failures
+* guard against duplicate starts, added support for max_polls and stop_after_failures,
+* unchanged (304 Not Modified) responses are not counted as failures, long_poll mode,
+* poll groups, server-driven wait (X-Click-Poll-Wait response header), jitter,
+* hidden page handling, server-driven stop of idle pages (X-Click-Poll-Stop response header)
 */
 /*
 Usage:
@@ -31,6 +34,13 @@ var pollopts = {
   max_wait: 12000,
   //amount to multiply the wait by if the data is unchanged. defaults to 2
   wait_multiplier: 4,
+  //percentage by which each wait is randomly varied, so that pages loaded
+  //together do not poll in step. defaults to 10
+  jitter: 20,
+  //minimum wait while the page is hidden. 0 pauses polling while the page is
+  //hidden, a negative value polls as usual. The poll catches up as soon as the
+  //page is visible again. defaults to -1
+  hidden_wait: 60000,
   // log poll events to console.log , default true
   doLog: false,
   // A function that decides how to adjust the wait period after each call.
@@ -39,7 +49,14 @@ var pollopts = {
   // maximum number of calls after which the poller stops. 0 or less = infinite. defaults to 0
   this.max_polls=2,
   // automatically stop requests after this many failed polls. 0 = disabled. defaults to 0
-  this.stop_after_failures=2
+  this.stop_after_failures=2,
+  // the server holds requests until new data is available, so poll again as
+  // soon as a request completes, but at most once per min_wait. defaults to false
+  long_poll: true,
+  // the name of the poll group. The polls of a group share one timer and their
+  // requests due on the same tick are sent together, see $.poll.group. Ignored
+  // in long_poll mode. defaults to none
+  group: 'widgets'
 };
 // simplest way to start polling.
 // ajaxopts are defined as per http://docs.jquery.com/Ajax/jquery.ajax#toptions
@@ -55,6 +72,10 @@ mypoll.stop = true;
 mypoll.setWait(500);
 // change the ajax options for the live poll
 mypoll.setAjaxOptions(ajaxopts);
+// combine the requests of a poll group tick into one request
+var group = $.poll.group('widgets');
+group.send = function(ajaxopts) { ...queue the request... };
+group.flush = function() { ...send the queued requests... };
 */
 (function($) {
     var randomString = function(numchars) {
@@ -74,6 +95,9 @@ mypoll.setAjaxOptions(ajaxopts);
         this.max_wait = (typeof(pollopt.max_wait) != 'undefined') ? pollopt.max_wait : 30000;
         this.current_wait = this.min_wait;
         this.wait_multiplier = (typeof(pollopt.wait_multiplier) != 'undefined') ? pollopt.wait_multiplier: 2;
+        this.jitter = (typeof(pollopt.jitter) != 'undefined') ? pollopt.jitter : 10;
+        this.hidden_wait = (typeof(pollopt.hidden_wait) != 'undefined') ? pollopt.hidden_wait : -1;
+        this.timer = false; // scheduled fetch
         this.stop = false;
         this.doLog = (typeof(pollopt.doLog) != 'undefined') ? pollopt.doLog : true;
         this.current_poll = false;
@@ -82,8 +106,15 @@ mypoll.setAjaxOptions(ajaxopts);
         }
         this.max_polls=(typeof(pollopt.max_polls) != 'undefined') ? pollopt.max_polls : 0;
         this.stop_after_failures=(typeof(pollopt.stop_after_failures) != 'undefined') ? pollopt.stop_after_failures : 0;
+        this.long_poll=(typeof(pollopt.long_poll) != 'undefined') ? pollopt.long_poll : false;
+        this.in_flight=false; // long poll or group request in progress
+        this.group=(!this.long_poll && pollopt.group) ? $.poll.group(pollopt.group) : null;
+        this.due=0; // time of the next group request
         this.calls=0; // number of calls made
         this.fails=0; // number of failed calls made
+        if (this.hidden_wait >= 0) {
+            watchVisibility(this);
+        }
     };
 
     Poller.prototype.log = function() {
@@ -136,6 +167,24 @@ mypoll.setAjaxOptions(ajaxopts);
      Poller.prototype.fetch = function() {
          var self = this;
          if (!this.stop) {
+             if (this.isPaused()) {
+                 // restart() is invoked when the page is visible again
+                 this.log('paused while the page is hidden');
+                 return;
+             }
+             if (this.long_poll) {
+                 // The next request is scheduled when this request completes
+                 if (!this.in_flight) {
+                     this.started = new Date().getTime();
+                     this.in_flight = this.fetchNow();
+                 }
+                 return;
+             }
+             if (this.group) {
+                 // The group sends the request on its next tick
+                 this.group.add(this);
+                 return;
+             }
              if (!this.current_poll) {
                  this.fetchNow();
              } else {
@@ -144,8 +193,9 @@ mypoll.setAjaxOptions(ajaxopts);
              var anotherFetch = function() {
                  self.fetch();
              }
-             this.log('next check in ',this.current_wait,'ms');
-             this.current_poll = setTimeout(anotherFetch, this.current_wait);
+             var wait = this.nextWait();
+             this.log('next check in ',wait,'ms');
+             this.timer = this.current_poll = setTimeout(anotherFetch, wait);
          } else {
              this.log('stopped.');
              this.calls=0;
@@ -165,14 +215,28 @@ mypoll.setAjaxOptions(ajaxopts);
          };
          var opts = $.extend(true, options, this.settings);
          if(this.max_polls <= 0){
-            $.ajax(opts);
+            this.send(opts);
+            return true;
          } else if(this.max_polls > 0 && this.calls < this.max_polls){
-            $.ajax(opts);
+            this.send(opts);
             this.calls++;
             if(this.calls >= this.max_polls){
               this.log('stopping - max number of polls reached: ', this.max_polls);
               this.stop=true;
             }
+            return true;
+         }
+         return false;
+     };
+
+     /**
+      * Send the request, through the poll group if the poll belongs to one.
+      */
+     Poller.prototype.send = function(opts) {
+         if (this.group) {
+             this.group.send(opts);
+         } else {
+             $.ajax(opts);
          }
      };
 
@@ -184,8 +248,14 @@ mypoll.setAjaxOptions(ajaxopts);
      Poller.prototype.completeCallback = function(xhr, textStatus) {
          this.log('complete: ',textStatus);
          this.current_poll = false;
+         var completed = textStatus == 'success' || textStatus == 'notmodified';
          if ($.isFunction(this.adjustWait)) {
              this.current_wait = this.adjustWait(xhr, textStatus, this.current_wait);
+         } else if (this.long_poll && completed) {
+             // The server already waited for new data, only wait the rest
+             // of min_wait to limit the request rate
+             var elapsed = new Date().getTime() - this.started;
+             this.current_wait = Math.max(this.min_wait - elapsed, 0);
          } else if (textStatus != 'success') {
              // increase the wait for server error, timeout, notmodified, or parser error.
              var next_wait = this.current_wait * this.wait_multiplier;
@@ -194,11 +264,41 @@ mypoll.setAjaxOptions(ajaxopts);
              } else {
                  this.current_wait = this.max_wait;
              }
-             if ($.isFunction(this.userError)) {
+             // notmodified means the data is unchanged, which is not an error
+             if ($.isFunction(this.userError) && textStatus != 'notmodified') {
                  this.userError(xhr, textStatus);
              }
          }
-         if(textStatus == 'success'){
+         // The server may steer the wait, e.g. to shed load
+         var serverWait = 0;
+         try {
+             serverWait = parseInt(xhr.getResponseHeader('X-Click-Poll-Wait'), 10);
+         } catch(e) {
+             // headers are not available, e.g. the request was aborted
+         }
+         if (serverWait > 0) {
+             this.log('server wait: ', serverWait, 'ms');
+             this.current_wait = serverWait;
+         }
+         // The server stops the polls of idle pages
+         var serverStop = null;
+         try {
+             serverStop = xhr.getResponseHeader('X-Click-Poll-Stop');
+         } catch(e) {
+         }
+         if (serverStop && !this.stop) {
+             this.log('stopping - the server reported the page idle, resuming on user activity');
+             this.stop = true;
+             var self = this;
+             $(document).one('mousedown keydown touchstart', function() {
+                 if (self.stop) {
+                     self.log('resuming - user activity');
+                     self.stop = false;
+                     self.restart();
+                 }
+             });
+         }
+         if(textStatus == 'success' || textStatus == 'notmodified'){
            this.fails=0;
          } else {
            if(this.stop_after_failures > 0){
@@ -212,6 +312,72 @@ mypoll.setAjaxOptions(ajaxopts);
          if ($.isFunction(this.userComplete)) {
              this.userComplete(xhr, textStatus);
          }
+         if (this.group) {
+             // The group sends the next request on the first tick after
+             // current_wait
+             this.in_flight = false;
+             this.due = this.started + this.nextWait();
+         }
+         if (this.long_poll) {
+             this.in_flight = false;
+             if (!this.stop) {
+                 var self = this;
+                 var wait = this.nextWait();
+                 this.log('next check in ',wait,'ms');
+                 this.current_poll = setTimeout(function() {
+                     self.current_poll = false;
+                     self.fetch();
+                 }, wait);
+             } else {
+                 this.log('stopped.');
+                 this.calls=0;
+                 this.fails=0;
+             }
+         }
+     };
+
+     /**
+      * Return the current wait randomly varied by jitter percent, and at least
+      * hidden_wait while the page is hidden.
+      */
+     Poller.prototype.nextWait = function() {
+         var wait = this.current_wait;
+         if (this.hidden_wait > 0 && isHidden()) {
+             wait = Math.max(wait, this.hidden_wait);
+         }
+         return applyJitter(wait, this.jitter);
+     };
+
+     /**
+      * Return true if polling is paused because the page is hidden.
+      */
+     Poller.prototype.isPaused = function() {
+         return this.hidden_wait == 0 && isHidden();
+     };
+
+     /**
+      * Fetch as soon as possible, cancelling the scheduled fetch, and continue
+      * polling.
+      */
+     Poller.prototype.restart = function() {
+         if (this.stop) {
+             return;
+         }
+         if (this.group) {
+             this.group.add(this, true);
+             return;
+         }
+         if (this.long_poll) {
+             if (this.in_flight) {
+                 // The server answers as soon as there is new data
+                 return;
+             }
+             clearTimeout(this.current_poll);
+             this.current_poll = false;
+         } else {
+             clearTimeout(this.timer);
+         }
+         this.fetch();
      };
 
      /**
@@ -228,6 +394,138 @@ mypoll.setAjaxOptions(ajaxopts);
          this.fetch();
      };
 
+    /**
+     * A poll group runs one timer for its polls. On each tick, every poll due
+     * sends its request through send(), then flush() is invoked once. By
+     * default send() is $.ajax and flush() does nothing; replace both to
+     * combine the requests of a tick into one request.
+     *
+     * The group ticks every min_wait of its fastest running poll. Polls due
+     * before the middle of the next tick are sent early, so that polls with
+     * similar waits stay on the same tick.
+     *
+     * The requests keep their ifModified option, so the Click.jq.batch
+     * requests installed by jquery.templates.js send the ETag of each poll,
+     * and an unchanged poll completes as 'notmodified'. On the server the
+     * batched polls are forwarded: JQVersionFilter only answers them when it
+     * is mapped with the FORWARD dispatcher.
+     */
+    var PollGroup = function(name) {
+        this.name = name;
+        this.polls = [];
+        this.timer = false;
+    };
+
+    PollGroup.prototype.add = function(poll, immediate) {
+        if ($.inArray(poll, this.polls) < 0) {
+            this.polls.push(poll);
+        }
+        if (!poll.in_flight) {
+            poll.due = 0;
+        }
+        if (immediate && this.timer) {
+            clearTimeout(this.timer);
+            this.timer = false;
+        }
+        if (!this.timer) {
+            // Collect the polls added together, e.g. on DOMREADY
+            var self = this;
+            this.timer = setTimeout(function() { self.tick(); }, 0);
+        }
+    };
+
+    PollGroup.prototype.send = function(opts) {
+        $.ajax(opts);
+    };
+
+    PollGroup.prototype.flush = function() {
+    };
+
+    PollGroup.prototype.tick = function() {
+        this.timer = false;
+        var now = new Date().getTime(), interval = 0, sent = 0, polls = [];
+        for (var i = 0; i < this.polls.length; i++) {
+            var poll = this.polls[i];
+            if (poll.stop) {
+                poll.log('stopped.');
+                poll.calls=0;
+                poll.fails=0;
+            } else {
+                polls.push(poll);
+                interval = interval ? Math.min(interval, poll.min_wait) : poll.min_wait;
+            }
+        }
+        this.polls = polls;
+        for (i = 0; i < polls.length; i++) {
+            poll = polls[i];
+            if (!poll.in_flight && !poll.isPaused() && poll.due <= now + interval / 2) {
+                poll.started = now;
+                poll.in_flight = poll.fetchNow();
+                if (poll.in_flight) {
+                    sent++;
+                }
+            }
+        }
+        if (sent > 0) {
+            this.flush();
+        }
+        if (polls.length > 0) {
+            var self = this;
+            this.timer = setTimeout(function() { self.tick(); }, applyJitter(interval, polls[0].jitter));
+        }
+    };
+
+    var groups = {};
+
+    // The name of the document property telling whether the page is hidden
+    var hiddenProperty = (function() {
+        var names = ['hidden', 'webkitHidden', 'mozHidden', 'msHidden'];
+        for (var i = 0; i < names.length; i++) {
+            if (typeof(document[names[i]]) != 'undefined') {
+                return names[i];
+            }
+        }
+        return null;
+    })();
+
+    var isHidden = function() {
+        return hiddenProperty ? document[hiddenProperty] : false;
+    };
+
+    // The polls which catch up when the page is visible again
+    var visibilityWatchers = [];
+
+    var watchVisibility = function(poller) {
+        if (!hiddenProperty) {
+            return;
+        }
+        if (visibilityWatchers.length == 0) {
+            var eventName = hiddenProperty.replace(/[Hh]idden$/, 'visibilitychange');
+            $(document).bind(eventName, function() {
+                if (isHidden()) {
+                    return;
+                }
+                for (var i = 0; i < visibilityWatchers.length; i++) {
+                    var watcher = visibilityWatchers[i];
+                    if (!watcher.stop) {
+                        watcher.log('page visible, catching up');
+                        watcher.restart();
+                    }
+                }
+            });
+        }
+        visibilityWatchers.push(poller);
+    };
+
+    // Return the given wait randomly varied by the given percentage
+    var applyJitter = function(wait, percent) {
+        if (!percent || wait <= 0) {
+            return wait;
+        }
+        var range = wait * percent / 100;
+        return Math.max(0, Math.round(wait - range + Math.random() * 2 * range));
+    };
+
     $.poll = function(ajaxopt, pollopt, dontstart) {
         if (typeof(pollopt) == 'undefined' || pollopt == null) { pollopt = {}; }
         var poller = new Poller(ajaxopt, pollopt);
@@ -237,4 +535,14 @@ mypoll.setAjaxOptions(ajaxopts);
         return poller;
     };
 
+    /**
+     * Return the poll group with the given name, creating it if necessary.
+     */
+    $.poll.group = function(name) {
+        if (!groups[name]) {
+            groups[name] = new PollGroup(name);
+        }
+        return groups[name];
+    };
+
  })(jQuery);
\ No newline at end of file
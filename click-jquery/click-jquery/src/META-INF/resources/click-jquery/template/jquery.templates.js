@@ -83,14 +83,16 @@
       }
     }
 
-    // Invoke the Ajax request
-    $.ajax({
+    // Invoke the Ajax request, or queue it if it is batched
+    var settings = {
       type: opts.type,
       url: opts.url,
       data: params,
       timeout : opts.timeout,
       tryCount : 0,
       timeoutRetryLimit : opts.timeoutRetryLimit,
+      // Send the ETag of the last response, a 304 status means no change
+      ifModified: opts.ifModified || false,
       retrying: false,
       beforeSend: function() {
         if (this.retrying) {
@@ -140,7 +142,12 @@
         this.retrying=false;
         handleError(xhr, textStatus, errorThrown, opts);
       }
-    });
+    };
+    if(opts.batch) {
+      Click.jq.batch.add(settings);
+    } else {
+      $.ajax(settings);
+    }
 
     // cancel link and submit default event
     var tag=target.tagName;
@@ -301,11 +308,25 @@
       ajaxOpts.data=params;
     }
 
+    if(pollOpts.group){
+      // Send the requests of a group tick as one batch
+      var group=$.poll.group(pollOpts.group);
+      group.send=function(settings){
+        Click.jq.batch.add(settings);
+      };
+      group.flush=function(){
+        Click.jq.batch.flush();
+      };
+    }
+
     var poll=$.poll(ajaxOpts, pollOpts, !pollOpts.auto_start);
     if(!pollOpts.auto_start) poll.stop=true;
 
     // Store the poll reference
     Click.jq.polls.add(poll);
+
+    // Subscribe to pushed updates
+    if(pollOpts.push) Click.jq.push.subscribe(poll);
   }
 
   // Polls holder and API for accessing polls
@@ -350,6 +371,85 @@
     }
   }
 
+  // Server-Sent Events connection shared by the pushed polls of the page.
+  // While connected the polls are paused, and resumed if the connection fails.
+  // Updates published while the browser reconnects are not replayed, thus each
+  // poll fetches once every time the connection opens
+  Click.jq.push={
+    pollIds:[],
+    source:null,
+    timer:null,
+    subscribe: function(poll){
+      if(!window.EventSource) return false;
+      this.pollIds.push(poll.name);
+      // Open one connection for all polls subscribed on DOMREADY
+      var self=this;
+      if(this.timer) clearTimeout(this.timer);
+      this.timer=setTimeout(function(){
+        self.timer=null;
+        self.open();
+      }, 0);
+      return true;
+    },
+    open: function(){
+      var self=this;
+      this.close();
+      var url=window.location.pathname+'?X-Click-Push='+encodeURIComponent(this.pollIds.join(','));
+      var source=this.source=new EventSource(url);
+      source.addEventListener('taconite', function(e){
+        try{
+          $.taconite($.parseJSON(e.data));
+        }catch(err){
+          Click.jq.log('push: ', err);
+        }
+      }, false);
+      source.onopen=function(){
+        Click.jq.log('push: connected');
+        self.each(function(poll){
+          if(!poll.stop){
+            poll.pushed=true;
+            poll.stop=true;
+          }
+          // Catch up on the updates missed while disconnected. The poll is
+          // stopped, so the request does not schedule another one
+          if(poll.pushed){
+            poll.fetchNow();
+          }
+        });
+      };
+      source.onerror=function(){
+        // The browser reconnects unless the connection is CLOSED, for
+        // example when the server rejects it
+        if(source.readyState==2){
+          Click.jq.log('push: connection closed, resume polling');
+          self.source=null;
+          self.resume();
+        }
+      };
+    },
+    close: function(){
+      if(this.source){
+        this.source.close();
+        this.source=null;
+        this.resume();
+      }
+    },
+    resume: function(){
+      this.each(function(poll){
+        if(poll.pushed){
+          poll.pushed=false;
+          Click.jq.polls.start(poll.name);
+        }
+      });
+    },
+    each: function(callback){
+      for(var i=0;i<this.pollIds.length;i++){
+        var poll=Click.jq.polls.get(this.pollIds[i]);
+        if(poll) callback(poll);
+      }
+    }
+  }
+
   //
   // Template 4 END
   //
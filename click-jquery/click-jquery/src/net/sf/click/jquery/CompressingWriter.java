@@ -0,0 +1,145 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Provides a response Writer which gzip compresses its output once it
+ * exceeds a threshold.
+ * <p/>
+ * Output up to the threshold is buffered. If the Writer is closed before the
+ * threshold is reached, the buffered output is written uncompressed.
+ * Otherwise the <tt>Content-Encoding</tt> header is set and the output is
+ * compressed as it is written.
+ */
+class CompressingWriter extends Writer {
+
+    // -------------------------------------------------------------- Variables
+
+    /** The response to write to. */
+    private final HttpServletResponse response;
+
+    /** The compression level. */
+    private final int level;
+
+    /** The buffered output, null once compression started. */
+    private char[] buffer;
+
+    /** The number of buffered characters. */
+    private int count;
+
+    /** The compressing writer, null until the threshold is exceeded. */
+    private Writer out;
+
+    private boolean closed;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a new CompressingWriter for the given response.
+     *
+     * @param response the response to write to
+     * @param threshold the size in characters above which output is compressed
+     * @param level the compression level
+     */
+    CompressingWriter(HttpServletResponse response, int threshold, int level) {
+        this.response = response;
+        this.level = level;
+        this.buffer = new char[threshold];
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Writer is closed");
+        }
+        if (out == null) {
+            if (count + length <= buffer.length) {
+                System.arraycopy(chars, offset, buffer, count, length);
+                count += length;
+                return;
+            }
+            startCompression();
+        }
+        out.write(chars, offset, length);
+    }
+
+    /**
+     * Flush the compressed output. Output below the threshold is kept
+     * buffered, as flushing it would commit the response before deciding
+     * whether to compress.
+     *
+     * @throws IOException if the output cannot be flushed
+     */
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * Complete the response. Buffered output below the threshold is written
+     * uncompressed.
+     *
+     * @throws IOException if the output cannot be written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (out == null) {
+            Writer writer = response.getWriter();
+            writer.write(buffer, 0, count);
+            buffer = null;
+            writer.close();
+        } else {
+            out.close();
+        }
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    private void startCompression() throws IOException {
+        response.setHeader("Content-Encoding", "gzip");
+        String encoding = response.getCharacterEncoding();
+        OutputStream stream = new LevelGZIPOutputStream(response.getOutputStream(), level);
+        out = new OutputStreamWriter(stream, (encoding == null) ? "ISO-8859-1" : encoding);
+        out.write(buffer, 0, count);
+        buffer = null;
+    }
+
+    // ---------------------------------------------------------- Inner Classes
+
+    /**
+     * Provides a GZIPOutputStream with a configurable compression level.
+     */
+    static class LevelGZIPOutputStream extends GZIPOutputStream {
+
+        LevelGZIPOutputStream(OutputStream out, int level) throws IOException {
+            super(out, 8192);
+            def.setLevel(level);
+        }
+    }
+}
@@ -0,0 +1,474 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.zip.Deflater;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.click.ActionResult;
+import org.apache.click.Context;
+import org.apache.click.util.ClickUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Provides an ActionResult for Ajax responses which can be gzip compressed
+ * when the browser accepts it.
+ * <p/>
+ * Compression is optional and disabled by default. Enable it by setting a
+ * {@link #setCompressionThreshold(int) compressionThreshold} above 0.
+ * Responses are only compressed once they exceed the
+ * {@link #compressionThreshold}, as compressing small responses costs more
+ * than it saves. The response is streamed: the first
+ * {@link #compressionThreshold} characters are buffered to decide whether to
+ * compress, after which the output is compressed as it is written.
+ * <p/>
+ * Compression applies to the {@link #setContent(java.lang.String) content},
+ * {@link #setReader(java.io.Reader) reader} and
+ * {@link #setTemplate(java.lang.String) template} of the result. Bytes and
+ * InputStreams are written uncompressed. Responses already compressed by a
+ * filter are not compressed again.
+ * <p/>
+ * A JQActionResult can carry an {@link #setETag(java.lang.String) ETag}, or
+ * {@link #setComputeETag(boolean) compute} its ETag from the rendered
+ * content. If the ETag matches the <tt>If-None-Match</tt> request header, a
+ * 304 (Not Modified) status is sent without content.
+ * <p/>
+ * The defaults of all JQActionResults can be set through
+ * {@link #setDefaultCompressionThreshold(int)} and
+ * {@link #setDefaultCompressionLevel(int)}, for example in a servlet
+ * listener:
+ *
+ * <pre class="prettyprint">
+ * public void contextInitialized(ServletContextEvent event) {
+ *     // Compress Ajax responses above 1024 characters
+ *     JQActionResult.setDefaultCompressionThreshold(1024);
+ * } </pre>
+ */
+public class JQActionResult extends ActionResult {
+
+    // -------------------------------------------------------------- Variables
+
+    /**
+     * The default size in characters above which responses are compressed,
+     * 0 by default which disables compression.
+     */
+    private static volatile int defaultCompressionThreshold = 0;
+
+    /** The default compression level of new JQActionResult instances. */
+    private static volatile int defaultCompressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /** The size in characters above which the response is compressed. */
+    protected int compressionThreshold = defaultCompressionThreshold;
+
+    /** The compression level of the response. */
+    protected int compressionLevel = defaultCompressionLevel;
+
+    /** The ETag of the response, null if the response has no ETag. */
+    protected String etag;
+
+    /**
+     * Flag indicating whether the ETag is computed from the rendered content,
+     * default value is false.
+     */
+    protected boolean computeETag = false;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a new empty JQActionResult.
+     */
+    public JQActionResult() {
+    }
+
+    /**
+     * Create a new JQActionResult for the given content type.
+     *
+     * @param contentType the response content type
+     */
+    public JQActionResult(String contentType) {
+        super(contentType);
+    }
+
+    /**
+     * Create a new JQActionResult for the given content and content type.
+     *
+     * @param content the content to render
+     * @param contentType the response content type
+     */
+    public JQActionResult(String content, String contentType) {
+        super(content, contentType);
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Return the default size in characters above which the responses of new
+     * JQActionResult instances are compressed, 0 by default.
+     *
+     * @return the default size above which responses are compressed
+     */
+    public static int getDefaultCompressionThreshold() {
+        return defaultCompressionThreshold;
+    }
+
+    /**
+     * Set the default size in characters above which the responses of new
+     * JQActionResult instances are compressed. A value of 0 or less disables
+     * compression.
+     *
+     * @param compressionThreshold the default size above which responses are
+     * compressed
+     */
+    public static void setDefaultCompressionThreshold(int compressionThreshold) {
+        defaultCompressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Return the default compression level of new JQActionResult instances,
+     * {@link Deflater#DEFAULT_COMPRESSION} by default.
+     *
+     * @return the default compression level
+     */
+    public static int getDefaultCompressionLevel() {
+        return defaultCompressionLevel;
+    }
+
+    /**
+     * Set the default compression level of new JQActionResult instances,
+     * between 1 (fastest) and 9 (best compression), or
+     * {@link Deflater#DEFAULT_COMPRESSION}.
+     *
+     * @param compressionLevel the default compression level
+     */
+    public static void setDefaultCompressionLevel(int compressionLevel) {
+        checkCompressionLevel(compressionLevel);
+        defaultCompressionLevel = compressionLevel;
+    }
+
+    /**
+     * Return the size in characters above which the response is compressed.
+     *
+     * @return the size above which the response is compressed
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Set the size in characters above which the response is compressed. A
+     * value of 0 or less, the default, disables compression.
+     *
+     * @param compressionThreshold the size above which the response is
+     * compressed
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Return the compression level of the response.
+     *
+     * @return the compression level of the response
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    /**
+     * Set the compression level of the response, between 1 (fastest) and 9
+     * (best compression), or {@link Deflater#DEFAULT_COMPRESSION}.
+     *
+     * @param compressionLevel the compression level of the response
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        checkCompressionLevel(compressionLevel);
+        this.compressionLevel = compressionLevel;
+    }
+
+    /**
+     * Return the ETag of the response, or null if the response has no ETag.
+     *
+     * @return the ETag of the response
+     */
+    public String getETag() {
+        return etag;
+    }
+
+    /**
+     * Set the ETag of the response, for example the version of the rendered
+     * data. The ETag is quoted if it is not quoted already. If the ETag
+     * matches the <tt>If-None-Match</tt> request header, the response is not
+     * rendered and a 304 (Not Modified) status is sent instead.
+     *
+     * @param etag the ETag of the response
+     */
+    public void setETag(String etag) {
+        if (etag != null && !etag.startsWith("\"") && !etag.startsWith("W/\"")) {
+            etag = '"' + etag + '"';
+        }
+        this.etag = etag;
+    }
+
+    /**
+     * Return true if the ETag is computed from the rendered content.
+     *
+     * @return true if the ETag is computed from the rendered content
+     */
+    public boolean isComputeETag() {
+        return computeETag;
+    }
+
+    /**
+     * Set whether the ETag is computed from the rendered content if no
+     * {@link #setETag(java.lang.String) ETag} is set. The content is rendered
+     * to a String first to compute its ETag, thus the response is not
+     * streamed.
+     *
+     * @param computeETag true if the ETag is computed from the rendered
+     * content
+     */
+    public void setComputeETag(boolean computeETag) {
+        this.computeETag = computeETag;
+    }
+
+    /**
+     * Return true if the given ETag matches the <tt>If-None-Match</tt> header
+     * of the given request. ETags are compared weakly.
+     *
+     * @param request the servlet request
+     * @param etag the ETag to match
+     * @return true if the ETag matches the <tt>If-None-Match</tt> header
+     */
+    public static boolean isETagMatch(HttpServletRequest request, String etag) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch == null || etag == null) {
+            return false;
+        }
+        etag = StringUtils.removeStart(etag, "W/");
+        for (String token : StringUtils.split(ifNoneMatch, ',')) {
+            token = token.trim();
+            if ("*".equals(token) || etag.equals(StringUtils.removeStart(token, "W/"))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // ------------------------------------------------------ Protected Methods
+
+    /**
+     * Set the ETag header of the response to the given ETag and return true if
+     * the ETag matches the <tt>If-None-Match</tt> request header. In that
+     * case the 304 (Not Modified) status is set, and the content must not
+     * be rendered.
+     *
+     * @param context the request context
+     * @param etag the ETag of the response
+     * @return true if the browser has the current response
+     */
+    protected boolean isNotModified(Context context, String etag) {
+        HttpServletResponse response = context.getResponse();
+        response.setHeader("ETag", etag);
+        if (isETagMatch(context.getRequest(), etag)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Return the ETag of the given content: the quoted MD5 digest of the
+     * content in hex.
+     *
+     * @param content the rendered content
+     * @return the ETag of the content
+     */
+    protected String computeETag(String content) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(content.getBytes("UTF-8"));
+            StringBuilder buffer = new StringBuilder(digest.length * 2 + 2);
+            buffer.append('"');
+            for (byte b : digest) {
+                buffer.append(Character.forDigit((b >> 4) & 0xf, 16));
+                buffer.append(Character.forDigit(b & 0xf, 16));
+            }
+            return buffer.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Render the content, reader or template of the result through the
+     * {@link #getResponseWriter(org.apache.click.Context) response writer}.
+     * Other results are rendered by ActionResult.
+     * <p/>
+     * Nothing is rendered if the {@link #getETag() ETag}, or the
+     * {@link #setComputeETag(boolean) computed} ETag of the content, matches
+     * the <tt>If-None-Match</tt> request header.
+     *
+     * @param context the request context
+     */
+    @Override
+    protected void renderActionResult(Context context) {
+        String localETag = getETag();
+        if (localETag != null && isNotModified(context, localETag)) {
+            return;
+        }
+
+        String content = getContent();
+        Reader reader = getReader();
+        if (content == null && reader == null && getTemplate() != null) {
+            Map<String, Object> templateModel = getModel();
+            if (templateModel == null) {
+                templateModel = new HashMap<String, Object>();
+            }
+            content = context.renderTemplate(getTemplate(), templateModel);
+        }
+
+        if (localETag == null && isComputeETag() && (content != null || reader != null)) {
+            if (content == null) {
+                content = read(reader);
+                reader = null;
+            }
+            if (isNotModified(context, computeETag(content))) {
+                return;
+            }
+        }
+
+        if (content == null && reader == null) {
+            super.renderActionResult(context);
+            return;
+        }
+
+        Writer writer = null;
+        try {
+            writer = getResponseWriter(context);
+            if (content != null) {
+                writer.write(content);
+            } else {
+                char[] buffer = new char[4096];
+                int length;
+                while ((length = reader.read(buffer)) != -1) {
+                    writer.write(buffer, 0, length);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            ClickUtils.close(reader);
+            ClickUtils.close(writer);
+        }
+    }
+
+    /**
+     * Return the Writer to render the response to. If the browser accepts
+     * gzip and compression is enabled, the returned Writer compresses the
+     * response once it exceeds the {@link #compressionThreshold}.
+     * <p/>
+     * The returned Writer must be closed to complete the response.
+     *
+     * @param context the request context
+     * @return the Writer to render the response to
+     * @throws IOException if the response Writer cannot be obtained
+     */
+    protected Writer getResponseWriter(Context context) throws IOException {
+        HttpServletResponse response = context.getResponse();
+        if (getCompressionThreshold() <= 0
+            || response.containsHeader("Content-Encoding")) {
+            return response.getWriter();
+        }
+
+        // The response differs depending on the Accept-Encoding header
+        response.addHeader("Vary", "Accept-Encoding");
+
+        HttpServletRequest request = context.getRequest();
+        if (!isGzipAccepted(request)) {
+            return response.getWriter();
+        }
+        return new CompressingWriter(response, getCompressionThreshold(),
+            getCompressionLevel());
+    }
+
+    /**
+     * Return true if the given request accepts a gzip encoded response, false
+     * otherwise. Included requests are never compressed.
+     *
+     * @param request the servlet request
+     * @return true if the request accepts a gzip encoded response
+     */
+    protected boolean isGzipAccepted(HttpServletRequest request) {
+        if (request.getAttribute("javax.servlet.include.request_uri") != null) {
+            return false;
+        }
+        String acceptEncoding = request.getHeader("Accept-Encoding");
+        if (acceptEncoding == null) {
+            return false;
+        }
+        StringTokenizer tokens = new StringTokenizer(acceptEncoding, ",");
+        while (tokens.hasMoreTokens()) {
+            String token = tokens.nextToken().trim();
+            String coding = token;
+            String quality = null;
+            int index = token.indexOf(';');
+            if (index != -1) {
+                coding = token.substring(0, index).trim();
+                quality = token.substring(index + 1).trim();
+            }
+            if ("gzip".equalsIgnoreCase(coding) || "x-gzip".equalsIgnoreCase(coding)) {
+                // "gzip;q=0" explicitly refuses gzip
+                return quality == null || !quality.matches("q\\s*=\\s*0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    private static void checkCompressionLevel(int compressionLevel) {
+        if ((compressionLevel < 1 || compressionLevel > 9)
+            && compressionLevel != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: "
+                + compressionLevel);
+        }
+    }
+
+    private static String read(Reader reader) {
+        try {
+            StringWriter writer = new StringWriter();
+            char[] buffer = new char[4096];
+            int length;
+            while ((length = reader.read(buffer)) != -1) {
+                writer.write(buffer, 0, length);
+            }
+            return writer.toString();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            ClickUtils.close(reader);
+        }
+    }
+}
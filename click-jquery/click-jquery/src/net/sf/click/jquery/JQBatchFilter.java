@@ -0,0 +1,680 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.RequestDispatcher;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import net.sf.click.jquery.util.JSONWriter;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Provides a servlet filter which dispatches batched Ajax requests.
+ * <p/>
+ * JQBehaviors with {@link net.sf.click.jquery.behavior.JQBehavior#setBatch(boolean) batch}
+ * enabled do not send their Ajax requests immediately. Instead
+ * <tt>jquery.click.js</tt> queues the requests fired within a short window,
+ * for example by all DOMREADY behaviors of a page, and sends them as a single
+ * POST request with the {@link #BATCH_HEADER} header. Each queued request is
+ * sent as a {@link #CALL_PARAM} parameter of the form
+ * "<tt>METHOD url?parameters [etag]</tt>".
+ * <p/>
+ * This filter forwards each call to its URL, as if it was a separate request,
+ * and returns the responses as one JSON document:
+ *
+ * <pre class="prettyprint">
+ * {"batch":[{"status":200,"contentType":"text/xml","body":"&lt;taconite&gt;...&lt;/taconite&gt;"}, ...]} </pre>
+ *
+ * The calls are dispatched in order on the request thread. Calls share the
+ * request headers and session of the batch request. Cookies set by calls are
+ * added to the batch response. Click headers, prefixed by
+ * "<tt>X-Click-</tt>", and the <tt>ETag</tt> header are returned in the
+ * "<tt>headers</tt>" of the result. Other response headers are discarded and
+ * responses are never compressed.
+ * <p/>
+ * Calls made with the jQuery <tt>ifModified</tt> option are conditional:
+ * the ETag of their last response is sent with the call and passed to the
+ * page as its <tt>If-None-Match</tt> header, so an unchanged page answers
+ * the call with a 304 status, as it would answer a request sent on its own.
+ * <p/>
+ * Only paths of the servlet mapping the batch request was sent to, the
+ * mapping of the ClickServlet, are dispatched, and never paths below
+ * <tt>/WEB-INF</tt> or <tt>/META-INF</tt>. Other calls are answered with a
+ * 404 status, see {@link #getPath(HttpServletRequest, String)}.
+ * <p/>
+ * Calls are dispatched with <tt>RequestDispatcher.forward</tt>, thus filters
+ * only run on calls if they are mapped with the <tt>FORWARD</tt> dispatcher.
+ * Map filters which must see batched calls, such as
+ * {@link JQVersionFilter}, with both the <tt>REQUEST</tt> and
+ * <tt>FORWARD</tt> dispatchers.
+ * <p/>
+ * Map the filter to the ClickServlet:
+ *
+ * <pre class="prettyprint">
+ * &lt;filter&gt;
+ *     &lt;filter-name&gt;JQBatchFilter&lt;/filter-name&gt;
+ *     &lt;filter-class&gt;net.sf.click.jquery.JQBatchFilter&lt;/filter-class&gt;
+ *     &lt;init-param&gt;
+ *         &lt;param-name&gt;max-calls&lt;/param-name&gt;
+ *         &lt;param-value&gt;20&lt;/param-value&gt;
+ *     &lt;/init-param&gt;
+ * &lt;/filter&gt;
+ * &lt;filter-mapping&gt;
+ *     &lt;filter-name&gt;JQBatchFilter&lt;/filter-name&gt;
+ *     &lt;servlet-name&gt;ClickServlet&lt;/servlet-name&gt;
+ * &lt;/filter-mapping&gt; </pre>
+ *
+ * Batches with more than <tt>max-calls</tt> calls, 20 by default, are
+ * rejected with a 400 status. Requests without the {@link #BATCH_HEADER}
+ * header pass through the filter unchanged.
+ */
+public class JQBatchFilter implements Filter {
+
+    // -------------------------------------------------------------- Constants
+
+    /** The request header marking a batch request. */
+    public static final String BATCH_HEADER = "X-Click-Batch";
+
+    /** The request parameter holding a batched call. */
+    public static final String CALL_PARAM = "call";
+
+    /** The default maximum number of calls of a batch. */
+    public static final int DEFAULT_MAX_CALLS = 20;
+
+    // -------------------------------------------------------------- Variables
+
+    /** The filter configuration. */
+    protected FilterConfig filterConfig;
+
+    /** The maximum number of calls of a batch. */
+    protected int maxCalls = DEFAULT_MAX_CALLS;
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Initialize the filter, reading the optional <tt>max-calls</tt> init
+     * parameter.
+     *
+     * @param filterConfig the filter configuration
+     * @throws ServletException if the <tt>max-calls</tt> parameter is invalid
+     */
+    public void init(FilterConfig filterConfig) throws ServletException {
+        this.filterConfig = filterConfig;
+        String param = filterConfig.getInitParameter("max-calls");
+        if (StringUtils.isNotBlank(param)) {
+            try {
+                maxCalls = Integer.parseInt(param.trim());
+            } catch (NumberFormatException e) {
+                throw new ServletException("Invalid max-calls init parameter: " + param);
+            }
+        }
+    }
+
+    /**
+     * Dispatch the calls of a batch request, or pass other requests down the
+     * filter chain.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param chain the filter chain
+     * @throws IOException if an I/O error occurs
+     * @throws ServletException if a servlet error occurs
+     */
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        if (!isBatchRequest(httpRequest)) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        String[] calls = httpRequest.getParameterValues(CALL_PARAM);
+        if (calls == null || calls.length == 0 || calls.length > maxCalls) {
+            httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                "A batch must contain between 1 and " + maxCalls + " calls");
+            return;
+        }
+
+        List<Map<String, Object>> results = new ArrayList<Map<String, Object>>(calls.length);
+        for (String call : calls) {
+            results.add(dispatch(httpRequest, httpResponse, call));
+        }
+
+        Map<String, Object> document = new HashMap<String, Object>(2);
+        document.put("batch", results);
+
+        httpResponse.setContentType("application/json; charset=UTF-8");
+        httpResponse.setHeader("Cache-Control", "no-cache");
+        httpResponse.setDateHeader("Expires", 0);
+        new JSONWriter().write(document, httpResponse.getWriter());
+    }
+
+    /**
+     * @see javax.servlet.Filter#destroy()
+     */
+    public void destroy() {
+    }
+
+    /**
+     * Return the maximum number of calls of a batch.
+     *
+     * @return the maximum number of calls of a batch
+     */
+    public int getMaxCalls() {
+        return maxCalls;
+    }
+
+    /**
+     * Set the maximum number of calls of a batch.
+     *
+     * @param maxCalls the maximum number of calls of a batch
+     */
+    public void setMaxCalls(int maxCalls) {
+        this.maxCalls = maxCalls;
+    }
+
+    // ------------------------------------------------------ Protected Methods
+
+    /**
+     * Return true if the given request is a batch request.
+     *
+     * @param request the servlet request
+     * @return true if the request is a batch request
+     */
+    protected boolean isBatchRequest(HttpServletRequest request) {
+        return "POST".equals(request.getMethod())
+            && request.getHeader(BATCH_HEADER) != null;
+    }
+
+    /**
+     * Dispatch the given call and return its result: the status, content type
+     * and body of the call response.
+     *
+     * @param request the batch request
+     * @param response the batch response
+     * @param call the call to dispatch, of the form
+     * "<tt>METHOD url [etag]</tt>"
+     * @return the result of the call
+     * @throws IOException if an I/O error occurs
+     */
+    protected Map<String, Object> dispatch(HttpServletRequest request,
+        HttpServletResponse response, String call) throws IOException {
+
+        Map<String, Object> result = new LinkedHashMap<String, Object>(4);
+
+        int index = call.indexOf(' ');
+        String method = (index > 0) ? call.substring(0, index).toUpperCase() : "";
+        String url = (index > 0) ? call.substring(index + 1).trim() : "";
+        if (!"GET".equals(method) && !"POST".equals(method)) {
+            result.put("status", HttpServletResponse.SC_BAD_REQUEST);
+            return result;
+        }
+
+        // The ETag of a conditional call follows its URL
+        String etag = null;
+        index = url.indexOf(' ');
+        if (index >= 0) {
+            etag = url.substring(index + 1).trim();
+            url = url.substring(0, index);
+        }
+
+        String query = null;
+        index = url.indexOf('?');
+        if (index >= 0) {
+            query = url.substring(index + 1);
+            url = url.substring(0, index);
+        }
+        String path = getPath(request, url);
+        RequestDispatcher dispatcher = (path != null) ? request.getRequestDispatcher(path) : null;
+        if (dispatcher == null) {
+            result.put("status", HttpServletResponse.SC_NOT_FOUND);
+            return result;
+        }
+
+        CallRequest callRequest = new CallRequest(request, method, parseQuery(query), etag);
+        CallResponse callResponse = new CallResponse(response);
+        try {
+            dispatcher.forward(callRequest, callResponse);
+        } catch (Exception e) {
+            filterConfig.getServletContext().log("Error dispatching batched call: " + call, e);
+            result.put("status", HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+            return result;
+        }
+
+        result.put("status", callResponse.status);
+        if (callResponse.contentType != null) {
+            result.put("contentType", callResponse.contentType);
+        }
+        result.put("body", callResponse.getBody());
+        if (!callResponse.headers.isEmpty()) {
+            result.put("headers", callResponse.headers);
+        }
+        return result;
+    }
+
+    /**
+     * Return the path, relative to the context path, of the given call URL,
+     * or null if the URL must not be dispatched. An empty URL or
+     * "<tt>#</tt>" denotes the path of the batch request.
+     * <p/>
+     * Path parameters, such as <tt>;jsessionid</tt>, are removed. The path
+     * must be within this web application and
+     * {@link #isDispatchable(HttpServletRequest, String) dispatchable}.
+     *
+     * @param request the batch request
+     * @param url the URL of the call without query string
+     * @return the path of the call or null
+     */
+    protected String getPath(HttpServletRequest request, String url) {
+        int index = url.indexOf('#');
+        if (index >= 0) {
+            url = url.substring(0, index);
+        }
+        if (url.length() == 0) {
+            String pathInfo = request.getPathInfo();
+            return request.getServletPath() + (pathInfo == null ? "" : pathInfo);
+        }
+        String contextPath = request.getContextPath();
+        if (!url.startsWith(contextPath + "/")) {
+            return null;
+        }
+        String path = removePathParameters(url.substring(contextPath.length()));
+        return isDispatchable(request, path) ? path : null;
+    }
+
+    /**
+     * Return true if the given path can be dispatched as a batched call.
+     * <p/>
+     * Paths below <tt>/WEB-INF</tt> and <tt>/META-INF</tt>, and paths with
+     * encoded characters or relative segments which could hide such a path,
+     * are never dispatched, as the container would serve these files. Other
+     * paths are dispatched if they match the servlet mapping of the batch
+     * request: the same extension for an extension mapping such as
+     * <tt>*.htm</tt>, the same prefix for a path mapping.
+     *
+     * @param request the batch request
+     * @param path the path of the call, relative to the context path
+     * @return true if the path can be dispatched
+     */
+    protected boolean isDispatchable(HttpServletRequest request, String path) {
+        if (!path.startsWith("/") || path.indexOf('%') >= 0 || path.indexOf('\\') >= 0
+            || path.indexOf("//") >= 0 || path.indexOf("/.") >= 0) {
+            return false;
+        }
+        String upperCasePath = path.toUpperCase(Locale.ENGLISH);
+        if (upperCasePath.startsWith("/WEB-INF") || upperCasePath.startsWith("/META-INF")) {
+            return false;
+        }
+
+        String servletPath = request.getServletPath();
+        if (request.getPathInfo() != null) {
+            // Path mapping, such as /app/*
+            return path.startsWith(servletPath + "/");
+        }
+        int index = servletPath.lastIndexOf('.');
+        if (index >= 0 && servletPath.indexOf('/', index) < 0) {
+            // Extension mapping, such as *.htm
+            return path.endsWith(servletPath.substring(index));
+        }
+        return path.equals(servletPath);
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    /**
+     * Remove the path parameters, introduced by a semicolon, of each segment
+     * of the given path.
+     */
+    private static String removePathParameters(String path) {
+        int index = path.indexOf(';');
+        if (index < 0) {
+            return path;
+        }
+        StringBuilder builder = new StringBuilder(path.length());
+        int start = 0;
+        while (index >= 0) {
+            builder.append(path, start, index);
+            start = path.indexOf('/', index);
+            if (start < 0) {
+                return builder.toString();
+            }
+            index = path.indexOf(';', start);
+        }
+        return builder.append(path, start, path.length()).toString();
+    }
+
+    private static Map<String, String[]> parseQuery(String query)
+        throws UnsupportedEncodingException {
+
+        Map<String, List<String>> values = new LinkedHashMap<String, List<String>>();
+        if (query != null) {
+            for (String pair : StringUtils.split(query, '&')) {
+                int index = pair.indexOf('=');
+                String name = URLDecoder.decode(index >= 0 ? pair.substring(0, index) : pair, "UTF-8");
+                String value = (index >= 0) ? URLDecoder.decode(pair.substring(index + 1), "UTF-8") : "";
+                List<String> list = values.get(name);
+                if (list == null) {
+                    list = new ArrayList<String>(1);
+                    values.put(name, list);
+                }
+                list.add(value);
+            }
+        }
+
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>(values.size());
+        for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+            List<String> list = entry.getValue();
+            parameters.put(entry.getKey(), list.toArray(new String[list.size()]));
+        }
+        return parameters;
+    }
+
+    // ---------------------------------------------------------- Inner Classes
+
+    /**
+     * Provides the request of a batched call: the method, parameters and
+     * <tt>If-None-Match</tt> header of the call, and the other headers of the
+     * batch request without the batch and compression headers.
+     */
+    static class CallRequest extends HttpServletRequestWrapper {
+
+        private final String method;
+
+        private final Map<String, String[]> parameters;
+
+        private final String ifNoneMatch;
+
+        CallRequest(HttpServletRequest request, String method, Map<String, String[]> parameters,
+            String ifNoneMatch) {
+            super(request);
+            this.method = method;
+            this.parameters = Collections.unmodifiableMap(parameters);
+            this.ifNoneMatch = ifNoneMatch;
+        }
+
+        @Override
+        public String getMethod() {
+            return method;
+        }
+
+        @Override
+        public String getParameter(String name) {
+            String[] values = parameters.get(name);
+            return (values == null) ? null : values[0];
+        }
+
+        @Override
+        public Map getParameterMap() {
+            return parameters;
+        }
+
+        @Override
+        public Enumeration getParameterNames() {
+            return Collections.enumeration(parameters.keySet());
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            return parameters.get(name);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            if ("If-None-Match".equalsIgnoreCase(name)) {
+                return ifNoneMatch;
+            }
+            return isHidden(name) ? null : super.getHeader(name);
+        }
+
+        @Override
+        public Enumeration getHeaders(String name) {
+            if ("If-None-Match".equalsIgnoreCase(name)) {
+                List<String> values = (ifNoneMatch == null) ? Collections.<String>emptyList()
+                    : Collections.singletonList(ifNoneMatch);
+                return Collections.enumeration(values);
+            }
+            if (isHidden(name)) {
+                return Collections.enumeration(Collections.emptyList());
+            }
+            return super.getHeaders(name);
+        }
+
+        private boolean isHidden(String name) {
+            return BATCH_HEADER.equalsIgnoreCase(name) || "Accept-Encoding".equalsIgnoreCase(name);
+        }
+    }
+
+    /**
+     * Provides the response of a batched call, buffering the status, content
+     * type, Click and ETag headers and body of the call.
+     */
+    static class CallResponse extends HttpServletResponseWrapper {
+
+        int status = SC_OK;
+
+        String contentType;
+
+        String characterEncoding;
+
+        final Map<String, String> headers = new LinkedHashMap<String, String>(2);
+
+        private StringWriter writer;
+
+        private PrintWriter printWriter;
+
+        private ByteArrayOutputStream bytes;
+
+        private ServletOutputStream outputStream;
+
+        CallResponse(HttpServletResponse response) {
+            super(response);
+        }
+
+        String getBody() throws UnsupportedEncodingException {
+            if (printWriter != null) {
+                printWriter.flush();
+                return writer.toString();
+            }
+            if (bytes != null) {
+                return bytes.toString(getCharacterEncoding());
+            }
+            return "";
+        }
+
+        @Override
+        public PrintWriter getWriter() {
+            if (outputStream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called");
+            }
+            if (printWriter == null) {
+                writer = new StringWriter();
+                printWriter = new PrintWriter(writer);
+            }
+            return printWriter;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            if (printWriter != null) {
+                throw new IllegalStateException("getWriter() has already been called");
+            }
+            if (outputStream == null) {
+                bytes = new ByteArrayOutputStream();
+                outputStream = new ServletOutputStream() {
+
+                    @Override
+                    public void write(int b) {
+                        bytes.write(b);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) {
+                        bytes.write(b, off, len);
+                    }
+                };
+            }
+            return outputStream;
+        }
+
+        @Override
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        @Override
+        public void setStatus(int status, String message) {
+            this.status = status;
+        }
+
+        @Override
+        public void sendError(int status) {
+            this.status = status;
+        }
+
+        @Override
+        public void sendError(int status, String message) {
+            this.status = status;
+        }
+
+        @Override
+        public void sendRedirect(String location) {
+            this.status = SC_MOVED_TEMPORARILY;
+        }
+
+        @Override
+        public void setContentType(String contentType) {
+            this.contentType = contentType;
+            int index = (contentType == null) ? -1 : contentType.toLowerCase().indexOf("charset=");
+            if (index >= 0) {
+                characterEncoding = contentType.substring(index + 8).trim();
+            }
+        }
+
+        @Override
+        public String getContentType() {
+            return contentType;
+        }
+
+        @Override
+        public void setCharacterEncoding(String characterEncoding) {
+            this.characterEncoding = characterEncoding;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return (characterEncoding == null) ? "ISO-8859-1" : characterEncoding;
+        }
+
+        @Override
+        public void setContentLength(int length) {
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if (isReturnedHeader(name)) {
+                headers.put(name, value);
+            }
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            setHeader(name, value);
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            setHeader(name, String.valueOf(value));
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            setHeader(name, String.valueOf(value));
+        }
+
+        @Override
+        public boolean containsHeader(String name) {
+            return headers.containsKey(name);
+        }
+
+        @Override
+        public void setBufferSize(int size) {
+        }
+
+        @Override
+        public void flushBuffer() {
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return false;
+        }
+
+        @Override
+        public void reset() {
+            resetBuffer();
+            status = SC_OK;
+            contentType = null;
+            characterEncoding = null;
+            headers.clear();
+        }
+
+        @Override
+        public void resetBuffer() {
+            if (writer != null) {
+                writer.getBuffer().setLength(0);
+            }
+            if (bytes != null) {
+                bytes.reset();
+            }
+        }
+
+        private boolean isReturnedHeader(String name) {
+            return name != null && (name.regionMatches(true, 0, "X-Click-", 0, 8)
+                || "ETag".equalsIgnoreCase(name));
+        }
+    }
+}
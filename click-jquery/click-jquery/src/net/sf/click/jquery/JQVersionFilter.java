@@ -0,0 +1,124 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery;
+
+import java.io.IOException;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import net.sf.click.jquery.behavior.VersionRegistry;
+
+/**
+ * Provides a servlet filter which answers the polls of unchanged topics with
+ * a 304 Not Modified status, without creating the page.
+ * <p/>
+ * JQPollBehaviors with a {@link net.sf.click.jquery.behavior.JQPollBehavior#setTopic(String) topic}
+ * send the topic in the {@link #TOPIC_PARAM} parameter, and the ETag of their
+ * last response in the <tt>If-None-Match</tt> header. If the ETag matches the
+ * current version of the topic in the
+ * {@link VersionRegistry#defaultRegistry}, this filter answers the poll at
+ * the cost of a map lookup. Other requests pass through the filter unchanged.
+ * <p/>
+ * Polls of a {@link net.sf.click.jquery.behavior.JQPollBehavior#setGroup(String) group}
+ * are sent in a batch request, and {@link JQBatchFilter} forwards each poll
+ * with the ETag of its last response as <tt>If-None-Match</tt> header. The
+ * filter only answers these polls if it is also mapped with the
+ * <tt>FORWARD</tt> dispatcher. Otherwise grouped polls reach the page, which
+ * still answers an unchanged topic with a 304 status, but only after the page
+ * is created.
+ * <p/>
+ * Map the filter to the ClickServlet, for requests and forwards:
+ *
+ * <pre class="prettyprint">
+ * &lt;filter&gt;
+ *     &lt;filter-name&gt;JQVersionFilter&lt;/filter-name&gt;
+ *     &lt;filter-class&gt;net.sf.click.jquery.JQVersionFilter&lt;/filter-class&gt;
+ * &lt;/filter&gt;
+ * &lt;filter-mapping&gt;
+ *     &lt;filter-name&gt;JQVersionFilter&lt;/filter-name&gt;
+ *     &lt;servlet-name&gt;ClickServlet&lt;/servlet-name&gt;
+ *     &lt;dispatcher&gt;REQUEST&lt;/dispatcher&gt;
+ *     &lt;dispatcher&gt;FORWARD&lt;/dispatcher&gt;
+ * &lt;/filter-mapping&gt; </pre>
+ */
+public class JQVersionFilter implements Filter {
+
+    // -------------------------------------------------------------- Constants
+
+    /** The request parameter holding the topic of a poll. */
+    public static final String TOPIC_PARAM = "X-Click-Topic";
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * @see javax.servlet.Filter#init(javax.servlet.FilterConfig)
+     */
+    public void init(FilterConfig filterConfig) throws ServletException {
+    }
+
+    /**
+     * Answer the polls of unchanged topics with a 304 status, or pass the
+     * request down the filter chain.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param chain the filter chain
+     * @throws IOException if an I/O error occurs
+     * @throws ServletException if a servlet error occurs
+     */
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String topic = getTopic(httpRequest);
+        if (topic != null) {
+            String etag = VersionRegistry.defaultRegistry.getETag(topic);
+            if (JQActionResult.isETagMatch(httpRequest, etag)) {
+                HttpServletResponse httpResponse = (HttpServletResponse) response;
+                httpResponse.setHeader("ETag", etag);
+                httpResponse.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+        chain.doFilter(request, response);
+    }
+
+    /**
+     * @see javax.servlet.Filter#destroy()
+     */
+    public void destroy() {
+    }
+
+    // ------------------------------------------------------ Protected Methods
+
+    /**
+     * Return the topic of the given poll request, or null if the request is
+     * not a conditional poll of a topic.
+     *
+     * @param request the servlet request
+     * @return the topic of the poll or null
+     */
+    protected String getTopic(HttpServletRequest request) {
+        if (!"GET".equals(request.getMethod())
+            || request.getHeader("If-None-Match") == null) {
+            return null;
+        }
+        return request.getParameter(TOPIC_PARAM);
+    }
+}
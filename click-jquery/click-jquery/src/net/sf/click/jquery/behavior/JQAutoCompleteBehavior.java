@@ -18,6 +18,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import javax.servlet.ServletContext;
+import net.sf.click.jquery.JQActionResult;
 import net.sf.click.jquery.JQEvent;
 import net.sf.click.jquery.util.JSONWriter;
 import net.sf.click.jquery.util.Options;
@@ -79,7 +80,7 @@ import org.apache.click.util.HtmlStringBuffer;
  *
  *             &#64;Override
  *             public ActionResult onAjaxAction(Control source) {
- *                 ActionResult actionResult = new ActionResult();
+ *                 ActionResult actionResult = new JQActionResult();
  *                 List autocompleteList = getAutoCompleteList(getValue());
  *                 if (autocompleteList != null) {
  *                     HtmlStringBuffer buffer = new HtmlStringBuffer(autocompleteList.size() * 5);
@@ -398,12 +399,11 @@ public abstract class JQAutoCompleteBehavior extends JQBehavior {
     @Override
     protected void setupScript(JsScript script, Control source) {
         Map templateModel = createTemplateModel(page, source, getContext());
-        String json = new JSONWriter().write(templateModel);
 
-        HtmlStringBuffer buffer = new HtmlStringBuffer();
+        StringBuilder buffer = new StringBuilder(256);
         buffer.append("jQuery(document).ready(function(){");
         buffer.append("Click.jq.autoCompleteTemplate(");
-        buffer.append(json);
+        new JSONWriter().write(templateModel, buffer);
         buffer.append(");");
 
         buffer.append("});");
@@ -27,13 +27,13 @@ import org.apache.click.ActionResult;
 import org.apache.click.element.Element;
 import org.apache.click.element.JsImport;
 import org.apache.click.element.JsScript;
+import net.sf.click.jquery.JQActionResult;
 import net.sf.click.jquery.JQEvent;
 import net.sf.click.jquery.util.JSONWriter;
 import net.sf.click.jquery.util.Options;
 import org.apache.click.service.ConfigService;
 import org.apache.click.service.LogService;
 import org.apache.click.util.ClickUtils;
-import org.apache.click.util.HtmlStringBuffer;
 import org.apache.commons.lang.StringUtils;
 
 /**
@@ -115,6 +115,18 @@ public class JQBehavior extends AbstractJQBehavior implements Serializable {
      */
     protected int delay = 0;
 
+    /**
+     * Flag indicating whether the Ajax request is batched with the other Ajax
+     * requests invoked at the same time, default value is false.
+     */
+    protected boolean batch = false;
+
+    /**
+     * Flag indicating whether the Ajax request is answered with a 304 (Not
+     * Modified) status if the response did not change, default value is false.
+     */
+    protected boolean ifModified = false;
+
     protected boolean skipSetupScript = false;
 
     protected boolean skipHeadElements = false;
@@ -252,6 +264,69 @@ public class JQBehavior extends AbstractJQBehavior implements Serializable {
         this.delay = delay;
     }
 
+    /**
+     * Return true if the Ajax request is batched with the other Ajax requests
+     * invoked at the same time.
+     *
+     * @see #setBatch(boolean)
+     *
+     * @return true if the Ajax request is batched
+     */
+    public boolean isBatch() {
+        return batch;
+    }
+
+    /**
+     * Set whether the Ajax request is batched with the other Ajax requests
+     * invoked at the same time, default value is false.
+     * <p/>
+     * Batched requests fired within a few milliseconds of each other, for
+     * example by the {@link JQEvent#DOMREADY} behaviors of a page, are sent
+     * to the server as a single HTTP request and dispatched by the
+     * {@link net.sf.click.jquery.JQBatchFilter}, which must be mapped to the
+     * ClickServlet.
+     *
+     * @param batch true if the Ajax request is batched
+     */
+    public void setBatch(boolean batch) {
+        this.batch = batch;
+    }
+
+    /**
+     * Return true if the Ajax request is answered with a 304 (Not Modified)
+     * status if the response did not change.
+     *
+     * @see #setIfModified(boolean)
+     *
+     * @return true if unchanged responses are answered with a 304 status
+     */
+    public boolean isIfModified() {
+        return ifModified;
+    }
+
+    /**
+     * Set whether the Ajax request is answered with a 304 (Not Modified)
+     * status if the response did not change since the last request of the
+     * page, default value is false.
+     * <p/>
+     * The browser sends the ETag of the last response with the request. If
+     * {@link #getETag(org.apache.click.Control, net.sf.click.jquery.JQEvent) getETag}
+     * returns the same ETag, {@link #onAction(org.apache.click.Control, net.sf.click.jquery.JQEvent) onAction}
+     * is not invoked. Otherwise the ETag of a {@link JQActionResult} returned
+     * by onAction is computed from its content, and nothing is sent if it
+     * matches. The browser treats a 304 status as "no change".
+     * <p/>
+     * <b>Please note:</b> only enable this option if the response does not
+     * depend on changes made to the page by other requests, since an
+     * unchanged response is not applied again.
+     *
+     * @param ifModified true if unchanged responses are answered with a 304
+     * status
+     */
+    public void setIfModified(boolean ifModified) {
+        this.ifModified = ifModified;
+    }
+
     /**
      * Return the data model for the JavaScript {@link #template}.
      *
@@ -543,8 +618,49 @@ public class JQBehavior extends AbstractJQBehavior implements Serializable {
         return null;
     }
 
+    /**
+     * Return the ETag of the response to the given event, or null to compute
+     * the ETag from the response. This method is only invoked if
+     * {@link #setIfModified(boolean) ifModified} is true.
+     * <p/>
+     * Override this method to supply a cheap ETag, for example the version
+     * or last modified time of the data shown, so that unchanged responses
+     * are not even created.
+     *
+     * @param source the behavior's source control
+     * @param eventType the event of the Ajax request
+     * @return the ETag of the response or null
+     */
+    public String getETag(Control source, JQEvent eventType) {
+        return null;
+    }
+
     // Callback Methods -------------------------------------------------------
 
+    /**
+     * Set up the response to the given event before the action is invoked,
+     * for example to set response headers. This method does nothing by
+     * default.
+     *
+     * @param source the behavior's source control
+     * @param eventType the event of the Ajax request
+     */
+    protected void setupResponse(Control source, JQEvent eventType) {
+    }
+
+    /**
+     * Invoke {@link #onAction(org.apache.click.Control, net.sf.click.jquery.JQEvent) onAction}
+     * for the given event and return its result. Override this method to
+     * serve the result from elsewhere, for example a cache.
+     *
+     * @param source the behavior's source control
+     * @param eventType the event of the Ajax request
+     * @return the action result
+     */
+    protected ActionResult invokeAction(Control source, JQEvent eventType) {
+        return onAction(source, eventType);
+    }
+
     @Override
     public final ActionResult onAction(Control source) {
         Context context = getContext();
@@ -553,7 +669,34 @@ public class JQBehavior extends AbstractJQBehavior implements Serializable {
         JQEvent event = new JQEvent();
         event.setType(getEventType());
         event.setWhich(whichTypeParam);
-        return onAction(source, event);
+
+        setupResponse(source, event);
+
+        if (!isIfModified()) {
+            return invokeAction(source, event);
+        }
+
+        String etag = getETag(source, event);
+        if (etag != null) {
+            JQActionResult notModified = new JQActionResult();
+            notModified.setETag(etag);
+            if (JQActionResult.isETagMatch(context.getRequest(), notModified.getETag())) {
+                return notModified;
+            }
+        }
+
+        ActionResult actionResult = invokeAction(source, event);
+        if (actionResult instanceof JQActionResult) {
+            JQActionResult result = (JQActionResult) actionResult;
+            if (result.getETag() == null) {
+                if (etag != null) {
+                    result.setETag(etag);
+                } else {
+                    result.setComputeETag(true);
+                }
+            }
+        }
+        return actionResult;
     }
 
     @Override
@@ -645,6 +788,10 @@ public class JQBehavior extends AbstractJQBehavior implements Serializable {
      * <li>"{@link #delay}" - the time to wait before making the Ajax request.
      * If more Ajax requests are fired within this period, they are merged into
      * a single request.</li>
+     * <li>"{@link #batch}" - flag indicating whether the Ajax request is
+     * batched with other Ajax requests</li>
+     * <li>"{@link #ifModified}" - flag indicating whether unchanged responses
+     * are answered with a 304 status</li>
      * <li>"{@link #timeout}" - how long to wait before wait before the Ajax
      * request should be canceled.</li>
      * <li>"{@link #timeoutRetryLimit}" - the number of times a {@link #timeout timed out}
@@ -688,9 +835,20 @@ public class JQBehavior extends AbstractJQBehavior implements Serializable {
 
         String localBusyIndicatorMessage = getBusyIndicatorMessage();
 
-        // If set, add message to options
+        // If set, add message to options. The options are only changed when
+        // the message differs, so that their cached JSON stays valid
         if (localBusyIndicatorMessage != null) {
-            getBusyIndicatorOptions().put("message", localBusyIndicatorMessage);
+            Options options = getBusyIndicatorOptions();
+            if (options == null || !localBusyIndicatorMessage.equals(options.get("message"))) {
+                if (options == null) {
+                    options = new Options();
+                } else if (options.isFrozen()) {
+                    // Frozen options could be shared, change a copy instead
+                    options = new Options(options);
+                }
+                options.put("message", localBusyIndicatorMessage);
+                setBusyIndicatorOptions(options);
+            }
         }
 
         if (!isShowBusyIndicator()) {
@@ -713,6 +871,12 @@ public class JQBehavior extends AbstractJQBehavior implements Serializable {
         if (getDelay() > 0) {
             addModel(templateModel, "delay", getDelay(), page, context);
         }
+        if (isBatch()) {
+            addModel(templateModel, "batch", true, page, context);
+        }
+        if (isIfModified()) {
+            addModel(templateModel, "ifModified", true, page, context);
+        }
 
         if (getTimeout() != 20000) {
             addModel(templateModel, "timeout", getTimeout(), page, context);
@@ -833,12 +997,12 @@ public class JQBehavior extends AbstractJQBehavior implements Serializable {
     protected void setupScript(JsScript script, Control source) {
         Map templateModel = createTemplateModel(page, source, getContext());
         templateModel.remove("context");
-        String json = new JSONWriter().write(templateModel);
 
-        HtmlStringBuffer buffer = new HtmlStringBuffer();
+        // Write the JSON straight into the script buffer
+        StringBuilder buffer = new StringBuilder(256);
         buffer.append("jQuery(document).ready(function(){");
         buffer.append("Click.jq.ajaxTemplate(");
-        buffer.append(json);
+        new JSONWriter().write(templateModel, buffer);
         buffer.append(");");
         buffer.append("});");
 
@@ -232,12 +232,11 @@ public class JQFormBehavior extends JQBehavior {
     protected void setupScript(JsScript script, Control source) {
         Map templateModel = createTemplateModel(page, source, getContext());
         templateModel.remove("context");
-        String json = new JSONWriter().write(templateModel);
 
-        HtmlStringBuffer buffer = new HtmlStringBuffer();
+        StringBuilder buffer = new StringBuilder(256);
         buffer.append("jQuery(document).ready(function(){");
         buffer.append("Click.jq.ajaxFormTemplate(");
-        buffer.append(json);
+        new JSONWriter().write(templateModel, buffer);
         buffer.append(");");
 
         buffer.append("});");
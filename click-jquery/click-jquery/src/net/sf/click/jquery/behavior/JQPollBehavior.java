@@ -16,15 +16,19 @@ package net.sf.click.jquery.behavior;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import net.sf.click.jquery.JQActionResult;
 import net.sf.click.jquery.JQEvent;
+import net.sf.click.jquery.JQVersionFilter;
+import net.sf.click.jquery.taconite.JQTaconite;
 import net.sf.click.jquery.util.JSONWriter;
+import org.apache.click.ActionResult;
 import org.apache.click.Context;
 import org.apache.click.Control;
 import org.apache.click.Page;
 import org.apache.click.element.Element;
 import org.apache.click.element.JsImport;
 import org.apache.click.element.JsScript;
-import org.apache.click.util.HtmlStringBuffer;
+import org.apache.click.util.ClickUtils;
 
 /**
  * Provide a specialized JQuery helper that triggers Ajax request at specified
@@ -183,11 +187,134 @@ import org.apache.click.util.HtmlStringBuffer;
  *         return actionResult;
  *     }
  * }); </pre>
+ *
+ * <h3>Long polling</h3>
+ *
+ * In {@link #setLongPoll(boolean) long poll} mode the server holds a poll
+ * request until new data is {@link PollSignal#signal() signalled}, or the
+ * {@link #longPollTimeout} elapsed, and the browser polls again as soon as
+ * the request completes. New data is thus shown almost immediately, while
+ * far fewer requests are made when there is no new data.
+ * <p/>
+ * <b>Note:</b> long polling is not thread-free. Servlet 2.5 does not support
+ * asynchronous requests, thus each waiting request holds its container thread
+ * for up to the long poll timeout. Only use long polling for a number of
+ * concurrent clients well below the size of the container thread pool. The
+ * number of waiting requests is limited by the
+ * {@link PollSignal#getMaxWaiting() PollSignal}, requests above the limit
+ * return immediately and fall back to interval polling. The first such
+ * request is logged as a warning, see {@link PollSignal#getRejected()}.
+ *
+ * <pre class="prettyprint">
+ * // Shared by all requests, signal() is invoked when new data arrives.
+ * // At most 20 container threads wait for new data.
+ * public static final PollSignal NEWS = new PollSignal(20);
+ *
+ * JQPollBehavior behavior = new JQPollBehavior("news") {
+ *     public ActionResult onAction(Control source, JQEvent event) {
+ *         JQTaconite actionResult = new JQTaconite();
+ *         actionResult.replaceContent(news, getLatestNews());
+ *         return actionResult;
+ *     }
+ * };
+ * behavior.setLongPoll(true);
+ * behavior.setSignal(NEWS); </pre>
+ *
+ * <h3>Push</h3>
+ *
+ * With {@link #setPush(boolean) push} enabled the page also subscribes to the
+ * poll through a Server-Sent Events connection, served by the
+ * {@link net.sf.click.jquery.push.JQPushFilter}. While connected, polling is
+ * paused and updates published to the pollId are applied as they arrive:
+ *
+ * <pre class="prettyprint">
+ * JQTaconite taconite = new JQTaconite();
+ * taconite.replaceContent("#news", getLatestNews());
+ * PushService.defaultService.publish("news", taconite); </pre>
+ *
+ * Polling resumes if the browser does not support Server-Sent Events or the
+ * connection fails.
+ * <p/>
+ * Each push connection holds a container thread and published updates reach
+ * every page subscribed to the pollId, whatever its session. Push thus only
+ * suits a small number of pages showing data every user may see, see
+ * {@link net.sf.click.jquery.push.PushService}.
+ *
+ * <h3>Poll groups</h3>
+ *
+ * Polls of a page with the same {@link #setGroup(String) group} share one
+ * timer, and the requests of the polls due on the same tick are sent as one
+ * batch request, dispatched by the {@link net.sf.click.jquery.JQBatchFilter}.
+ * Ten polls with a 5 second wait time thus make one request every 5 seconds
+ * instead of ten.
+ * <p/>
+ * Grouped polls stay conditional: each poll of the batch sends the ETag of its
+ * last response, and an unchanged poll is answered with a 304 status. To
+ * answer the polls of unchanged {@link #setTopic(String) topics} without
+ * creating the page, map the {@link net.sf.click.jquery.JQVersionFilter} with
+ * the <tt>FORWARD</tt> dispatcher, as the batched polls are forwarded.
+ *
+ * <h3>Server-driven wait time</h3>
+ *
+ * The server can steer the wait before the next poll by overriding
+ * {@link #getNextWaitTime(Control, JQEvent)}, for example to stretch the
+ * intervals under load and shorten them when the data changes often:
+ *
+ * <pre class="prettyprint">
+ * public int getNextWaitTime(Control source, JQEvent event) {
+ *     return isOverloaded() ? 60000 : 0;
+ * } </pre>
+ *
+ * Each wait is randomly varied by {@link #setJitter(int) jitter} percent, so
+ * that pages loaded at the same time, for example after a deploy, do not keep
+ * polling in step.
+ *
+ * <h3>Versioned topics</h3>
+ *
+ * A poll with a {@link #setTopic(String) topic} answers with an ETag derived
+ * from the version of the topic in the {@link VersionRegistry}, which the
+ * application bumps when the data of the topic changes. Polls of an unchanged
+ * topic are answered with a 304 status before onAction is invoked, and with
+ * the {@link net.sf.click.jquery.JQVersionFilter} mapped, before the page is
+ * even created:
+ *
+ * <pre class="prettyprint">
+ * behavior.setTopic("news");
+ *
+ * // When the news changes
+ * VersionRegistry.defaultRegistry.bump("news"); </pre>
+ *
+ * <h3>Shared topics</h3>
+ *
+ * When the poll result is the same for all pages, for example a status
+ * panel, set a {@link #setSharedTopic(String) shared topic}: the result is
+ * computed by one request per {@link #setSharedInterval(int) interval} and
+ * the rendered result is served to all polls of the topic from the
+ * {@link TopicCache}. The cost of the poll then stays flat as the number of
+ * pages grows.
+ *
+ * <h3>Hidden and idle pages</h3>
+ *
+ * Polling is paused, or slowed down to the
+ * {@link #setHiddenWaitTime(int) hiddenWaitTime}, while the page is hidden,
+ * for example in a background tab, and catches up as soon as the page is
+ * visible again. Pages without user input for
+ * {@link #setMaxIdleTime(int) maxIdleTime} are told to stop polling, and
+ * resume on the next user input.
  */
 public class JQPollBehavior extends JQBehavior {
 
     public static String jqueryPollPath = "/click-jquery/poll/jquery.poll.js";
 
+    /** The response header carrying the wait time before the next poll. */
+    public static final String WAIT_HEADER = "X-Click-Poll-Wait";
+
+    /** The response header telling the browser to stop polling. */
+    public static final String STOP_HEADER = "X-Click-Poll-Stop";
+
+    /** The request header carrying the time in ms since the last user input. */
+    public static final String IDLE_HEADER = "X-Click-Idle";
+
     private static final int DEFAULT_WAIT_TIME = 5000;
 
     private static final int DEFAULT_MAX_WAIT_TIME = 30000;
@@ -200,6 +327,12 @@ public class JQPollBehavior extends JQBehavior {
 
     private static final boolean DEFAULT_AUTO_START = true;
 
+    private static final int DEFAULT_LONG_POLL_TIMEOUT = 25000;
+
+    private static final int DEFAULT_JITTER = 10;
+
+    private static final int DEFAULT_HIDDEN_WAIT_TIME = -1;
+
     // -------------------------------------------------------------- Variables
 
     private static final long serialVersionUID = 1L;
@@ -225,6 +358,25 @@ public class JQPollBehavior extends JQBehavior {
      */
     protected int waitMultiplier = DEFAULT_WAIT_MULTIPLIER;
 
+    /**
+     * The percentage by which each wait time is randomly varied, defaults to
+     * {@value #DEFAULT_JITTER}.
+     */
+    protected int jitter = DEFAULT_JITTER;
+
+    /**
+     * The minimum wait time in ms while the page is hidden, defaults to
+     * {@value #DEFAULT_HIDDEN_WAIT_TIME}. 0 pauses polling while the page is
+     * hidden, a negative value polls as usual.
+     */
+    protected int hiddenWaitTime = DEFAULT_HIDDEN_WAIT_TIME;
+
+    /**
+     * The time in ms without user input after which the page stops polling,
+     * defaults to 0, meaning pages never stop.
+     */
+    protected int maxIdleTime;
+
     /**
      * The maximum number of polls after which the poller stops, defaults to
      * {@value #DEFAULT_MAX_POLLS}. A value of 0 or less means infinite number of polls.
@@ -244,6 +396,48 @@ public class JQPollBehavior extends JQBehavior {
      */
     protected boolean autoStart = DEFAULT_AUTO_START;
 
+    /**
+     * Flag indicating whether the server holds poll requests until new data
+     * is signalled, false by default.
+     */
+    protected boolean longPoll = false;
+
+    /**
+     * The maximum time in ms the server holds a long poll request, defaults
+     * to {@value #DEFAULT_LONG_POLL_TIMEOUT}.
+     */
+    protected int longPollTimeout = DEFAULT_LONG_POLL_TIMEOUT;
+
+    /** The signal of new data for long polls. */
+    protected transient PollSignal signal;
+
+    /**
+     * Flag indicating whether updates are pushed to the page through
+     * Server-Sent Events, false by default.
+     */
+    protected boolean push = false;
+
+    /** The name of the poll group sharing one timer and batch request. */
+    protected String group;
+
+    /** The topic whose version tells whether the poll data changed. */
+    protected String topic;
+
+    /** The registry of topic versions. */
+    protected transient VersionRegistry versionRegistry;
+
+    /** The topic whose poll result is shared by all pages. */
+    protected String sharedTopic;
+
+    /**
+     * The interval in ms at which the shared result is computed, defaults to
+     * the wait time.
+     */
+    protected int sharedInterval;
+
+    /** The cache of shared results. */
+    protected transient TopicCache topicCache;
+
     // ----------------------------------------------------------- Constructors
 
     /**
@@ -342,6 +536,72 @@ public class JQPollBehavior extends JQBehavior {
         this.waitMultiplier = waitMultiplier;
     }
 
+    /**
+     * Return the percentage by which each wait time is randomly varied.
+     *
+     * @return the percentage by which each wait time is randomly varied
+     */
+    public int getJitter() {
+        return jitter;
+    }
+
+    /**
+     * Set the percentage by which each wait time is randomly varied. A value
+     * of 10 varies a 5000 ms wait time between 4500 and 5500 ms, 0 disables
+     * the jitter.
+     *
+     * @param jitter the percentage by which each wait time is randomly varied
+     */
+    public void setJitter(int jitter) {
+        this.jitter = jitter;
+    }
+
+    /**
+     * Return the minimum wait time in ms while the page is hidden.
+     *
+     * @return the minimum wait time while the page is hidden
+     */
+    public int getHiddenWaitTime() {
+        return hiddenWaitTime;
+    }
+
+    /**
+     * Set the minimum wait time in ms while the page is hidden. 0 pauses
+     * polling while the page is hidden, a negative value, the default, polls
+     * as usual. Either way the poll catches up as soon as the page is visible
+     * again. Browsers without the Page Visibility API poll as usual.
+     *
+     * @param hiddenWaitTime the minimum wait time while the page is hidden
+     */
+    public void setHiddenWaitTime(int hiddenWaitTime) {
+        this.hiddenWaitTime = hiddenWaitTime;
+    }
+
+    /**
+     * Return the time in ms without user input after which the page stops
+     * polling.
+     *
+     * @return the time without user input after which the page stops polling
+     */
+    public int getMaxIdleTime() {
+        return maxIdleTime;
+    }
+
+    /**
+     * Set the time in ms without user input after which the page stops
+     * polling. Pages send the time since the last user input in the
+     * {@link #IDLE_HEADER} header. Polls of pages idle for longer are answered
+     * with the {@link #STOP_HEADER} header without invoking onAction, and the
+     * page resumes polling on the next user input. 0, the default, never stops
+     * the polls.
+     *
+     * @param maxIdleTime the time without user input after which the page
+     * stops polling
+     */
+    public void setMaxIdleTime(int maxIdleTime) {
+        this.maxIdleTime = maxIdleTime;
+    }
+
     /**
      * @return the maxPolls
      */
@@ -384,6 +644,305 @@ public class JQPollBehavior extends JQBehavior {
         this.autoStart = autoStart;
     }
 
+    /**
+     * Return true if the server holds poll requests until new data is
+     * signalled.
+     *
+     * @return true if long polling is enabled
+     */
+    public boolean isLongPoll() {
+        return longPoll;
+    }
+
+    /**
+     * Set whether the server holds poll requests until new data is
+     * {@link #setSignal(PollSignal) signalled}, or the
+     * {@link #setLongPollTimeout(int) long poll timeout} elapsed. Long polling
+     * implies {@link #setIfModified(boolean) ifModified}: a request which
+     * times out without new data is answered with a 304 status.
+     * <p/>
+     * The browser polls again as soon as a request completes, but at most
+     * once per {@link #setWaitTime(int) wait time}.
+     * <p/>
+     * Each waiting request holds a container thread, see
+     * {@link PollSignal}.
+     *
+     * @param longPoll true to enable long polling
+     */
+    public void setLongPoll(boolean longPoll) {
+        this.longPoll = longPoll;
+    }
+
+    /**
+     * Return the maximum time in ms the server holds a long poll request.
+     *
+     * @return the maximum time the server holds a long poll request
+     */
+    public int getLongPollTimeout() {
+        return longPollTimeout;
+    }
+
+    /**
+     * Set the maximum time in ms the server holds a long poll request. The
+     * timeout should be below the timeouts of proxies between the browser
+     * and the server.
+     *
+     * @param longPollTimeout the maximum time the server holds a long poll
+     * request
+     */
+    public void setLongPollTimeout(int longPollTimeout) {
+        this.longPollTimeout = longPollTimeout;
+    }
+
+    /**
+     * Return the signal of new data for long polls.
+     *
+     * @return the signal of new data
+     */
+    public PollSignal getSignal() {
+        return signal;
+    }
+
+    /**
+     * Set the signal of new data for long polls. The signal must be shared by
+     * all requests of the poll.
+     *
+     * @param signal the signal of new data
+     */
+    public void setSignal(PollSignal signal) {
+        this.signal = signal;
+    }
+
+    /**
+     * Return true if updates are pushed to the page through Server-Sent
+     * Events.
+     *
+     * @return true if updates are pushed to the page
+     */
+    public boolean isPush() {
+        return push;
+    }
+
+    /**
+     * Set whether updates are pushed to the page through Server-Sent Events.
+     * Updates are published through
+     * {@link net.sf.click.jquery.push.PushService#publish(String, net.sf.click.jquery.taconite.JQTaconite)}
+     * with the {@link #getPollId() pollId} of this behavior, and the
+     * {@link net.sf.click.jquery.push.JQPushFilter} must be mapped to the
+     * ClickServlet.
+     *
+     * @param push true to push updates to the page
+     */
+    public void setPush(boolean push) {
+        this.push = push;
+    }
+
+    /**
+     * Return the name of the poll group.
+     *
+     * @return the name of the poll group
+     */
+    public String getGroup() {
+        return group;
+    }
+
+    /**
+     * Set the name of the poll group. The polls of a page with the same group
+     * share one timer, and the requests of the polls due on the same tick are
+     * sent as one batch request. The
+     * {@link net.sf.click.jquery.JQBatchFilter} must be mapped to the
+     * ClickServlet. Groups are ignored in {@link #setLongPoll(boolean) long poll}
+     * mode.
+     *
+     * @param group the name of the poll group
+     */
+    public void setGroup(String group) {
+        this.group = group;
+    }
+
+    /**
+     * Return the topic whose version tells whether the poll data changed.
+     *
+     * @return the topic of the poll data
+     */
+    public String getTopic() {
+        return topic;
+    }
+
+    /**
+     * Set the topic whose version tells whether the poll data changed. Polls
+     * are answered with a 304 status, without invoking onAction, while the
+     * version of the topic in the {@link #getVersionRegistry() versionRegistry}
+     * is unchanged. Several polls can share a topic.
+     *
+     * @param topic the topic of the poll data
+     */
+    public void setTopic(String topic) {
+        this.topic = topic;
+    }
+
+    /**
+     * Return the registry of topic versions, by default
+     * {@link VersionRegistry#defaultRegistry}.
+     *
+     * @return the registry of topic versions
+     */
+    public VersionRegistry getVersionRegistry() {
+        if (versionRegistry == null) {
+            return VersionRegistry.defaultRegistry;
+        }
+        return versionRegistry;
+    }
+
+    /**
+     * Set the registry of topic versions. The
+     * {@link net.sf.click.jquery.JQVersionFilter} only checks the
+     * {@link VersionRegistry#defaultRegistry}.
+     *
+     * @param versionRegistry the registry of topic versions
+     */
+    public void setVersionRegistry(VersionRegistry versionRegistry) {
+        this.versionRegistry = versionRegistry;
+    }
+
+    /**
+     * Return the topic whose poll result is shared by all pages.
+     *
+     * @return the shared topic
+     */
+    public String getSharedTopic() {
+        return sharedTopic;
+    }
+
+    /**
+     * Set the topic whose poll result is shared by all pages. The result of
+     * onAction is computed once per {@link #getSharedInterval() sharedInterval}
+     * and served to all polls of the topic, thus it must not depend on the
+     * page, session or request parameters. JQTaconite results are rendered
+     * without HEAD elements.
+     *
+     * @param sharedTopic the shared topic
+     */
+    public void setSharedTopic(String sharedTopic) {
+        this.sharedTopic = sharedTopic;
+    }
+
+    /**
+     * Return the interval in ms at which the shared result is computed,
+     * by default the {@link #getWaitTime() wait time}.
+     *
+     * @return the interval at which the shared result is computed
+     */
+    public int getSharedInterval() {
+        if (sharedInterval <= 0) {
+            return getWaitTime();
+        }
+        return sharedInterval;
+    }
+
+    /**
+     * Set the interval in ms at which the shared result is computed.
+     *
+     * @param sharedInterval the interval at which the shared result is
+     * computed
+     */
+    public void setSharedInterval(int sharedInterval) {
+        this.sharedInterval = sharedInterval;
+    }
+
+    /**
+     * Return the cache of shared results, by default
+     * {@link TopicCache#defaultCache}.
+     *
+     * @return the cache of shared results
+     */
+    public TopicCache getTopicCache() {
+        if (topicCache == null) {
+            return TopicCache.defaultCache;
+        }
+        return topicCache;
+    }
+
+    /**
+     * Set the cache of shared results.
+     *
+     * @param topicCache the cache of shared results
+     */
+    public void setTopicCache(TopicCache topicCache) {
+        this.topicCache = topicCache;
+    }
+
+    /**
+     * Return true if {@link #setIfModified(boolean) ifModified} or
+     * {@link #setLongPoll(boolean) longPoll} is enabled, or a
+     * {@link #setTopic(String) topic} is set.
+     *
+     * @return true if unchanged responses are answered with a 304 status
+     */
+    @Override
+    public boolean isIfModified() {
+        return super.isIfModified() || isLongPoll() || getTopic() != null;
+    }
+
+    /**
+     * Return the ETag of the poll response. In long poll mode the ETag is
+     * derived from the {@link #getSignal() signal} version: if the browser
+     * already has the current version, this method waits until new data is
+     * signalled or the long poll timeout elapsed. Otherwise, if a
+     * {@link #setTopic(String) topic} is set, the ETag is derived from the
+     * version of the topic.
+     *
+     * @param source the behavior's source control
+     * @param eventType the event of the Ajax request
+     * @return the ETag of the response or null
+     */
+    @Override
+    public String getETag(Control source, JQEvent eventType) {
+        PollSignal localSignal = getSignal();
+        if (!isLongPoll() || localSignal == null) {
+            if (getTopic() != null) {
+                return getVersionRegistry().getETag(getTopic());
+            }
+            return super.getETag(source, eventType);
+        }
+
+        long version = localSignal.getVersion();
+        String etag = getVersionETag(version);
+        if (JQActionResult.isETagMatch(getContext().getRequest(), etag)
+            && !isIdle(getContext())) {
+            // The browser has the current data, wait for new data
+            long rejected = localSignal.getRejected();
+            try {
+                version = localSignal.await(version, getLongPollTimeout());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                version = localSignal.getVersion();
+            }
+            if (rejected == 0 && localSignal.getRejected() > 0) {
+                logFirstRejected(localSignal);
+            }
+            etag = getVersionETag(version);
+        }
+        return etag;
+    }
+
+    /**
+     * Return the wait time in ms before the next poll, or 0 to let the browser
+     * apply its own wait time. The wait time is sent in the
+     * {@link #WAIT_HEADER} header and overrides the wait time and backoff of
+     * the browser, including the {@link #getMaxWaitTime() maxWaitTime}.
+     * <p/>
+     * Override this method to steer the polling rate from the server. This
+     * method returns 0 by default.
+     *
+     * @param source the behavior's source control
+     * @param eventType the event of the Ajax request
+     * @return the wait time in ms before the next poll, or 0
+     */
+    public int getNextWaitTime(Control source, JQEvent eventType) {
+        return 0;
+    }
+
     @Override
     public void setDelay(int delay) {
         throw new UnsupportedOperationException("Delay not supported by JQPollBehavior");
@@ -391,6 +950,94 @@ public class JQPollBehavior extends JQBehavior {
 
     // Protected Methods ------------------------------------------------------
 
+    /**
+     * Return the result of onAction, or the cached result of the
+     * {@link #setSharedTopic(String) shared topic}. Polls of
+     * {@link #isIdle(Context) idle} pages are answered with an empty
+     * JQTaconite.
+     *
+     * @param source the behavior's source control
+     * @param eventType the event of the Ajax request
+     * @return the action result
+     */
+    @Override
+    protected ActionResult invokeAction(Control source, JQEvent eventType) {
+        if (isIdle(getContext())) {
+            // The page stops polling, see setupResponse
+            return new JQTaconite();
+        }
+
+        String localTopic = getSharedTopic();
+        if (localTopic == null) {
+            return super.invokeAction(source, eventType);
+        }
+
+        TopicCache cache = getTopicCache();
+        ActionResult result = cache.get(localTopic, getSharedInterval());
+        if (result != null) {
+            return result;
+        }
+
+        boolean computed = false;
+        try {
+            result = super.invokeAction(source, eventType);
+            if (result == null) {
+                return null;
+            }
+            // put releases the topic, even if rendering the result fails
+            computed = true;
+            return cache.put(localTopic, result);
+        } finally {
+            if (!computed) {
+                // Let another poll compute the result, whatever was thrown
+                cache.abandon(localTopic);
+            }
+        }
+    }
+
+    /**
+     * Set the {@link #STOP_HEADER} header if the page is
+     * {@link #isIdle(Context) idle}, otherwise set the {@link #WAIT_HEADER}
+     * header to the {@link #getNextWaitTime(Control, JQEvent) next wait time},
+     * if any.
+     *
+     * @param source the behavior's source control
+     * @param eventType the event of the Ajax request
+     */
+    @Override
+    protected void setupResponse(Control source, JQEvent eventType) {
+        if (isIdle(getContext())) {
+            getContext().getResponse().setHeader(STOP_HEADER, "idle");
+            return;
+        }
+        int nextWaitTime = getNextWaitTime(source, eventType);
+        if (nextWaitTime > 0) {
+            getContext().getResponse().setHeader(WAIT_HEADER, String.valueOf(nextWaitTime));
+        }
+    }
+
+    /**
+     * Return true if the page of the poll request had no user input for more
+     * than {@link #getMaxIdleTime() maxIdleTime}.
+     *
+     * @param context the request context
+     * @return true if the page is idle
+     */
+    protected boolean isIdle(Context context) {
+        if (getMaxIdleTime() <= 0) {
+            return false;
+        }
+        String idle = context.getRequest().getHeader(IDLE_HEADER);
+        if (idle == null) {
+            return false;
+        }
+        try {
+            return Long.parseLong(idle.trim()) > getMaxIdleTime();
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
     /**
      * Create the poll data model for the Ajax {@link #template}.
      *
@@ -413,6 +1060,18 @@ public class JQPollBehavior extends JQBehavior {
             addModel(pollModel, "max_wait", getMaxWaitTime(), page, context);
         }
 
+        if (getWaitMultiplier() != DEFAULT_WAIT_MULTIPLIER) {
+            addModel(pollModel, "wait_multiplier", getWaitMultiplier(), page, context);
+        }
+
+        if (getJitter() != DEFAULT_JITTER) {
+            addModel(pollModel, "jitter", getJitter(), page, context);
+        }
+
+        if (getHiddenWaitTime() != DEFAULT_HIDDEN_WAIT_TIME) {
+            addModel(pollModel, "hidden_wait", getHiddenWaitTime(), page, context);
+        }
+
         if (getMaxPolls() != DEFAULT_MAX_POLLS) {
             addModel(pollModel, "max_polls", getMaxPolls(), page, context);
         }
@@ -425,6 +1084,18 @@ public class JQPollBehavior extends JQBehavior {
             addModel(pollModel, "auto_start", false, page, context);
         }
 
+        if (isLongPoll()) {
+            addModel(pollModel, "long_poll", true, page, context);
+        }
+
+        if (isPush()) {
+            addModel(pollModel, "push", true, page, context);
+        }
+
+        if (getGroup() != null) {
+            addModel(pollModel, "group", getGroup(), page, context);
+        }
+
         return pollModel;
     }
 
@@ -442,19 +1113,28 @@ public class JQPollBehavior extends JQBehavior {
 
     @Override
     protected void setupScript(JsScript script, Control source) {
+        if (getTopic() != null) {
+            // Let the JQVersionFilter answer unchanged polls
+            setData(JQVersionFilter.TOPIC_PARAM, getTopic());
+        }
+
         Map templateModel = createTemplateModel(page, source, getContext());
         templateModel.remove("context");
-        String templateJson = new JSONWriter().write(templateModel);
+
+        // The request must not time out while the server holds it
+        if (isLongPoll() && getTimeout() < getLongPollTimeout() + 10000) {
+            templateModel.put("timeout", getLongPollTimeout() + 10000);
+        }
 
         Map pollModel = createPollModel(page, source, getContext());
-        String pollJson = new JSONWriter().write(pollModel);
 
-        HtmlStringBuffer buffer = new HtmlStringBuffer();
+        JSONWriter writer = new JSONWriter();
+        StringBuilder buffer = new StringBuilder(256);
         buffer.append("jQuery(document).ready(function(){");
         buffer.append("Click.jq.pollTemplate(");
-        buffer.append(templateJson);
+        writer.write(templateModel, buffer);
         buffer.append(",");
-        buffer.append(pollJson);
+        writer.write(pollModel, buffer);
         buffer.append(");");
         buffer.append("});");
 
@@ -465,4 +1145,18 @@ public class JQPollBehavior extends JQBehavior {
     public boolean isAjaxTarget(Context context) {
         return true;
     }
+
+    // Private Methods --------------------------------------------------------
+
+    private String getVersionETag(long version) {
+        return "\"" + Long.toString(version, 36) + "\"";
+    }
+
+    private void logFirstRejected(PollSignal localSignal) {
+        Context context = getContext();
+        ClickUtils.getConfigService(context.getServletContext()).getLogService().warn(
+            "long poll of " + getPollId() + " did not wait as " + localSignal.getMaxWaiting()
+            + " requests are waiting already, long polls above this limit fall back to"
+            + " interval polling");
+    }
 }
@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.behavior;
+
+/**
+ * Provides a signal on which long poll requests wait for new data.
+ * <p/>
+ * The signal has a version which is incremented each time new data is
+ * {@link #signal() signalled}. A request which already has the data of the
+ * current version {@link #await(long, long) waits} until the version changes
+ * or the wait times out.
+ * <p/>
+ * <b>Note:</b> waiting does not free the container thread. This module
+ * targets the Servlet 2.5 API, which has no asynchronous requests, so each
+ * waiting request blocks one container thread until it is signalled or times
+ * out. Long polling lowers latency and the number of idle requests, not the
+ * number of threads, and does not scale to more concurrent clients than the
+ * container has threads to spare.
+ * <p/>
+ * The number of waiting requests is therefore limited to
+ * {@link #getMaxWaiting() maxWaiting}, which must be well below the size of
+ * the container thread pool. Requests above the limit return immediately,
+ * and the browser polls again after the poll wait time, as in interval
+ * polling. These requests are counted as {@link #getRejected() rejected},
+ * and JQPollBehavior logs a warning for the first one.
+ * <p/>
+ * PollSignal is thread safe. A signal is typically shared by all requests,
+ * for example stored in a static variable or the servlet context.
+ *
+ * @see JQPollBehavior#setSignal(PollSignal)
+ */
+public class PollSignal {
+
+    // -------------------------------------------------------------- Constants
+
+    /** The default maximum number of waiting requests. */
+    public static final int DEFAULT_MAX_WAITING = 50;
+
+    // -------------------------------------------------------------- Variables
+
+    /** The maximum number of waiting requests. */
+    private final int maxWaiting;
+
+    /**
+     * The current version, starting at the creation time so that versions
+     * are not reused after a restart.
+     */
+    private long version = System.currentTimeMillis();
+
+    /** The number of waiting requests. */
+    private int waiting;
+
+    /** The number of requests which returned immediately at the limit. */
+    private long rejected;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a new PollSignal for at most {@value #DEFAULT_MAX_WAITING}
+     * waiting requests.
+     */
+    public PollSignal() {
+        this(DEFAULT_MAX_WAITING);
+    }
+
+    /**
+     * Create a new PollSignal for at most the given number of waiting
+     * requests.
+     *
+     * @param maxWaiting the maximum number of waiting requests
+     */
+    public PollSignal(int maxWaiting) {
+        if (maxWaiting < 0) {
+            throw new IllegalArgumentException("maxWaiting must not be negative");
+        }
+        this.maxWaiting = maxWaiting;
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Signal new data, waking up all waiting requests.
+     */
+    public synchronized void signal() {
+        version++;
+        notifyAll();
+    }
+
+    /**
+     * Return the current version.
+     *
+     * @return the current version
+     */
+    public synchronized long getVersion() {
+        return version;
+    }
+
+    /**
+     * Wait until the version differs from the given version, or the given
+     * timeout elapsed, and return the current version. Return immediately if
+     * the version already differs or the maximum number of requests are
+     * waiting, the latter is counted as {@link #getRejected() rejected}.
+     *
+     * @param version the version the caller has
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the current version
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public synchronized long await(long version, long timeout) throws InterruptedException {
+        if (this.version != version) {
+            return this.version;
+        }
+        if (waiting >= maxWaiting) {
+            rejected++;
+            return this.version;
+        }
+        waiting++;
+        try {
+            long deadline = System.currentTimeMillis() + timeout;
+            long remaining = timeout;
+            while (this.version == version && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return this.version;
+        } finally {
+            waiting--;
+        }
+    }
+
+    /**
+     * Return the maximum number of waiting requests.
+     *
+     * @return the maximum number of waiting requests
+     */
+    public int getMaxWaiting() {
+        return maxWaiting;
+    }
+
+    /**
+     * Return the number of waiting requests.
+     *
+     * @return the number of waiting requests
+     */
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * Return the number of requests which returned immediately, without
+     * waiting, because the maximum number of requests were waiting. A
+     * growing count means long polls fall back to interval polling and
+     * maxWaiting, or the number of clients, should be revisited.
+     *
+     * @return the number of requests rejected at the limit
+     */
+    public synchronized long getRejected() {
+        return rejected;
+    }
+}
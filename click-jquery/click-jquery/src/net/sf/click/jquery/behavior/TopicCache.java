@@ -0,0 +1,256 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.behavior;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.click.jquery.JQActionResult;
+import net.sf.click.jquery.taconite.JQTaconite;
+import org.apache.click.ActionResult;
+
+/**
+ * Provides a cache of the rendered poll results of shared topics.
+ * <p/>
+ * The result of a poll with a {@link JQPollBehavior#setSharedTopic(String) shared topic}
+ * is the same for all pages. It is computed by one poll request per
+ * {@link JQPollBehavior#setSharedInterval(int) interval}, rendered once and
+ * the rendered content is served to all other polls of the topic. While a
+ * request computes the new result, the other requests are served the
+ * previous result. The first result of a topic is awaited by the other
+ * requests for at most the maximum age of the result, after which they
+ * compute their own result without caching it.
+ * <p/>
+ * Only JQTaconite results, rendered without HEAD elements, and JQActionResults
+ * with content are cached.
+ * <p/>
+ * TopicCache is thread safe.
+ */
+public class TopicCache {
+
+    // -------------------------------------------------------------- Variables
+
+    /** The TopicCache used by JQPollBehavior by default. */
+    public static TopicCache defaultCache = new TopicCache();
+
+    /** The cached results by topic. */
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    /** The computations of the topics whose result is being computed. */
+    private final ConcurrentMap<String, Computation> computing =
+        new ConcurrentHashMap<String, Computation>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Remove the cached result of the given topic, so that the next poll
+     * computes a new result.
+     *
+     * @param topic the topic to remove
+     */
+    public void remove(String topic) {
+        entries.remove(topic);
+    }
+
+    /**
+     * Remove all cached results.
+     */
+    public void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Return the number of polls served from the cache.
+     *
+     * @return the number of polls served from the cache
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of polls which computed their result.
+     *
+     * @return the number of polls which computed their result
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    // ------------------------------------------------ Package Private Methods
+
+    /**
+     * Return the cached result of the given topic if it is younger than the
+     * given maximum age, or if another request is computing the result.
+     * Otherwise return null, and the caller must compute the result and
+     * either {@link #put(String, ActionResult) put} it or
+     * {@link #abandon(String) abandon} the topic.
+     * <p/>
+     * Only one request computes the result of a topic at a time, the
+     * calling thread then owns the topic until it puts or abandons it. A
+     * request finding no result while another request computes the first
+     * result of the topic waits at most the given maximum age for it. If no
+     * result is computed by then, null is returned and the result computed
+     * by the caller is not cached.
+     *
+     * @param topic the shared topic
+     * @param maxAge the maximum age of the result in milliseconds
+     * @return the cached result or null
+     */
+    JQActionResult get(String topic, long maxAge) {
+        Entry entry = entries.get(topic);
+        if (entry != null && System.currentTimeMillis() - entry.created < maxAge) {
+            hits.incrementAndGet();
+            return entry.createResult();
+        }
+
+        Computation computation = new Computation();
+        Computation current = computing.putIfAbsent(topic, computation);
+        if (current == null) {
+            // The calling thread computes the result
+            misses.incrementAndGet();
+            return null;
+        }
+
+        if (entry == null) {
+            try {
+                if (current.done.await(maxAge, TimeUnit.MILLISECONDS)) {
+                    entry = entries.get(topic);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (entry != null) {
+            hits.incrementAndGet();
+            return entry.createResult();
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Cache the given result of the given topic if the calling thread owns the
+     * topic, and return the result to serve. Results which cannot be cached
+     * are returned unchanged.
+     *
+     * @param topic the shared topic
+     * @param result the computed result
+     * @return the result to serve
+     */
+    ActionResult put(String topic, ActionResult result) {
+        Computation computation = computing.get(topic);
+        if (computation == null || computation.owner != Thread.currentThread()) {
+            return result;
+        }
+        try {
+            String content = null;
+            if (result instanceof JQTaconite) {
+                JQTaconite taconite = (JQTaconite) result;
+                // Render the commands the same way for all pages
+                taconite.setSkipHeadElements(true);
+                taconite.setDiffEnabled(false);
+                content = taconite.toString();
+            } else if (result instanceof JQActionResult) {
+                content = result.getContent();
+            }
+            if (content == null) {
+                return result;
+            }
+
+            Entry entry = new Entry(content, result.getContentType());
+            entries.put(topic, entry);
+            return entry.createResult();
+        } finally {
+            release(topic, computation);
+        }
+    }
+
+    /**
+     * Abandon the computation of the result of the given topic, for example
+     * if it failed. Nothing is done if the calling thread does not own the
+     * topic.
+     *
+     * @param topic the shared topic
+     */
+    void abandon(String topic) {
+        Computation computation = computing.get(topic);
+        if (computation != null && computation.owner == Thread.currentThread()) {
+            release(topic, computation);
+        }
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    private void release(String topic, Computation computation) {
+        computing.remove(topic, computation);
+        computation.done.countDown();
+    }
+
+    // ---------------------------------------------------------- Inner Classes
+
+    /**
+     * Provides the computation of the result of a topic: the thread owning
+     * the topic, and the latch released once the result is put or abandoned.
+     */
+    static class Computation {
+
+        final Thread owner = Thread.currentThread();
+
+        final CountDownLatch done = new CountDownLatch(1);
+    }
+
+    /**
+     * Provides a cached result: its content, content type and ETag.
+     */
+    static class Entry {
+
+        final String content;
+
+        final String contentType;
+
+        final String etag;
+
+        final long created = System.currentTimeMillis();
+
+        Entry(String content, String contentType) {
+            this.content = content;
+            this.contentType = contentType;
+            this.etag = new ETagResult().computeETag(content);
+        }
+
+        JQActionResult createResult() {
+            JQActionResult result = new JQActionResult(content, contentType);
+            result.setETag(etag);
+            return result;
+        }
+    }
+
+    /**
+     * Provides the ETag computation of JQActionResult.
+     */
+    static class ETagResult extends JQActionResult {
+
+        @Override
+        protected String computeETag(String content) {
+            return super.computeETag(content);
+        }
+    }
+}
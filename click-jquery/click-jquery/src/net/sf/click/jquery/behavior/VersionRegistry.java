@@ -0,0 +1,105 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.behavior;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Provides a registry of data versions by topic.
+ * <p/>
+ * Application code {@link #bump(String) bumps} the version of a topic each
+ * time its data changes. Polls of the topic answer with an ETag derived from
+ * the version, and the browser echoes the ETag of the last response it
+ * received. A poll whose ETag matches the current version is answered with a
+ * 304 Not Modified status without invoking the poll behavior, or, with the
+ * {@link net.sf.click.jquery.JQVersionFilter} mapped, without even creating
+ * the page.
+ *
+ * <pre class="prettyprint">
+ * // When the news changes
+ * VersionRegistry.defaultRegistry.bump("news"); </pre>
+ *
+ * Versions start at the creation time of the registry, so that versions are
+ * not reused after a restart.
+ * <p/>
+ * VersionRegistry is thread safe.
+ *
+ * @see JQPollBehavior#setTopic(String)
+ */
+public class VersionRegistry {
+
+    // -------------------------------------------------------------- Variables
+
+    /**
+     * The VersionRegistry used by JQPollBehavior and JQVersionFilter by
+     * default.
+     */
+    public static VersionRegistry defaultRegistry = new VersionRegistry();
+
+    /** The version of the topics never bumped. */
+    private final long initialVersion = System.currentTimeMillis();
+
+    /** The versions by topic. */
+    private final ConcurrentMap<String, AtomicLong> versions =
+        new ConcurrentHashMap<String, AtomicLong>();
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Increment the version of the given topic and return the new version.
+     *
+     * @param topic the topic whose data changed
+     * @return the new version of the topic
+     */
+    public long bump(String topic) {
+        if (topic == null) {
+            throw new IllegalArgumentException("Null topic parameter");
+        }
+        AtomicLong version = versions.get(topic);
+        if (version == null) {
+            version = new AtomicLong(initialVersion);
+            AtomicLong existing = versions.putIfAbsent(topic, version);
+            if (existing != null) {
+                version = existing;
+            }
+        }
+        return version.incrementAndGet();
+    }
+
+    /**
+     * Return the current version of the given topic.
+     *
+     * @param topic the topic
+     * @return the current version of the topic
+     */
+    public long getVersion(String topic) {
+        if (topic == null) {
+            throw new IllegalArgumentException("Null topic parameter");
+        }
+        AtomicLong version = versions.get(topic);
+        return (version == null) ? initialVersion : version.get();
+    }
+
+    /**
+     * Return the quoted ETag of the current version of the given topic.
+     *
+     * @param topic the topic
+     * @return the ETag of the current version of the topic
+     */
+    public String getETag(String topic) {
+        return "\"" + Long.toString(getVersion(topic), 36) + "\"";
+    }
+}
@@ -0,0 +1,313 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.push;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Provides a servlet filter which streams the JQTaconite updates published
+ * through the {@link PushService} to the browser as Server-Sent Events.
+ * <p/>
+ * JQPollBehaviors with {@link net.sf.click.jquery.behavior.JQPollBehavior#setPush(boolean) push}
+ * enabled open one <tt>EventSource</tt> per page, a GET request to the page
+ * with the {@link #PUSH_PARAM} parameter listing the pollIds of the page.
+ * Each published update is sent as a <tt>taconite</tt> event, which
+ * <tt>jquery.templates.js</tt> processes like the response of a poll.
+ * <p/>
+ * <b>Note:</b> push does not scale to thousands of pages. The Servlet 2.5 API
+ * has no asynchronous requests, so a connection holds its container thread
+ * while it is open. Connections are therefore closed after
+ * <tt>connection-timeout</tt> milliseconds, 60000 by default, and the browser
+ * reconnects automatically after <tt>retry</tt> milliseconds, 3000 by
+ * default. A comment is sent every <tt>heartbeat</tt> milliseconds, 15000 by
+ * default, to keep proxies from closing an idle connection and to detect
+ * closed connections. Updates published while the browser reconnects are
+ * not replayed, instead each poll of the page fetches once every time the
+ * connection opens. The number of connections is limited by
+ * {@link PushService#getMaxConnections()}, by default
+ * {@value PushService#DEFAULT_MAX_CONNECTIONS}: connections above the limit
+ * are rejected with a 503 status and the page keeps polling. Keep the limit
+ * well below the size of the container thread pool.
+ * <p/>
+ * Published updates are sent to every page subscribed to the pollId,
+ * whatever its session, and the pollIds are chosen by the client. Override
+ * {@link #isSubscriptionAllowed(HttpServletRequest, String)} to check which
+ * pollIds a request may subscribe to, for example against its session, when
+ * updates must not be seen by all users. Requests subscribing to a pollId
+ * which is not allowed are rejected with a 403 status.
+ * <p/>
+ * Map the filter to the ClickServlet:
+ *
+ * <pre class="prettyprint">
+ * &lt;filter&gt;
+ *     &lt;filter-name&gt;JQPushFilter&lt;/filter-name&gt;
+ *     &lt;filter-class&gt;net.sf.click.jquery.push.JQPushFilter&lt;/filter-class&gt;
+ *     &lt;init-param&gt;
+ *         &lt;param-name&gt;connection-timeout&lt;/param-name&gt;
+ *         &lt;param-value&gt;60000&lt;/param-value&gt;
+ *     &lt;/init-param&gt;
+ * &lt;/filter&gt;
+ * &lt;filter-mapping&gt;
+ *     &lt;filter-name&gt;JQPushFilter&lt;/filter-name&gt;
+ *     &lt;servlet-name&gt;ClickServlet&lt;/servlet-name&gt;
+ * &lt;/filter-mapping&gt; </pre>
+ *
+ * Requests without the {@link #PUSH_PARAM} parameter pass through the filter
+ * unchanged.
+ */
+public class JQPushFilter implements Filter {
+
+    // -------------------------------------------------------------- Constants
+
+    /** The request parameter listing the pollIds to subscribe to. */
+    public static final String PUSH_PARAM = "X-Click-Push";
+
+    /** The default maximum duration of a connection in milliseconds. */
+    public static final long DEFAULT_CONNECTION_TIMEOUT = 60000;
+
+    /** The default interval between heartbeats in milliseconds. */
+    public static final long DEFAULT_HEARTBEAT = 15000;
+
+    /** The default browser reconnection delay in milliseconds. */
+    public static final long DEFAULT_RETRY = 3000;
+
+    // -------------------------------------------------------------- Variables
+
+    /** The filter configuration. */
+    protected FilterConfig filterConfig;
+
+    /** The push service, by default {@link PushService#defaultService}. */
+    protected PushService pushService;
+
+    /** The maximum duration of a connection in milliseconds. */
+    protected long connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+
+    /** The interval between heartbeats in milliseconds. */
+    protected long heartbeat = DEFAULT_HEARTBEAT;
+
+    /** The browser reconnection delay in milliseconds. */
+    protected long retry = DEFAULT_RETRY;
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Initialize the filter, reading the optional <tt>connection-timeout</tt>,
+     * <tt>heartbeat</tt> and <tt>retry</tt> init parameters.
+     *
+     * @param filterConfig the filter configuration
+     * @throws ServletException if an init parameter is invalid
+     */
+    public void init(FilterConfig filterConfig) throws ServletException {
+        this.filterConfig = filterConfig;
+        connectionTimeout = getLongParameter("connection-timeout", connectionTimeout);
+        heartbeat = getLongParameter("heartbeat", heartbeat);
+        retry = getLongParameter("retry", retry);
+    }
+
+    /**
+     * Stream the updates of a push request, or pass other requests down the
+     * filter chain.
+     *
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param chain the filter chain
+     * @throws IOException if an I/O error occurs
+     * @throws ServletException if a servlet error occurs
+     */
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+        throws IOException, ServletException {
+
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        Set<String> pollIds = getPollIds(httpRequest);
+        if (pollIds == null) {
+            chain.doFilter(request, response);
+            return;
+        }
+
+        HttpServletResponse httpResponse = (HttpServletResponse) response;
+        if (pollIds.isEmpty()) {
+            httpResponse.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                "No pollIds to subscribe to");
+            return;
+        }
+
+        for (String pollId : pollIds) {
+            if (!isSubscriptionAllowed(httpRequest, pollId)) {
+                httpResponse.sendError(HttpServletResponse.SC_FORBIDDEN,
+                    "Subscription not allowed");
+                return;
+            }
+        }
+
+        PushService service = getPushService();
+        PushConnection connection = service.connect(pollIds);
+        if (connection == null) {
+            // Status 503 makes the EventSource fail, so the page keeps polling
+            httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                "Too many push connections");
+            return;
+        }
+
+        try {
+            httpResponse.setContentType("text/event-stream; charset=UTF-8");
+            httpResponse.setHeader("Cache-Control", "no-cache");
+            httpResponse.setDateHeader("Expires", 0);
+
+            PrintWriter writer = httpResponse.getWriter();
+            writer.write("retry: " + retry + "\n\n");
+            writer.flush();
+
+            long deadline = System.currentTimeMillis() + connectionTimeout;
+            long remaining = connectionTimeout;
+            while (remaining > 0 && !writer.checkError()) {
+                PushConnection.Message message = connection.take(Math.min(heartbeat, remaining));
+                if (message != null) {
+                    writeEvent(writer, "taconite", message.data);
+                } else {
+                    writer.write(": \n\n");
+                }
+                writer.flush();
+                remaining = deadline - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            service.disconnect(connection);
+        }
+    }
+
+    /**
+     * @see javax.servlet.Filter#destroy()
+     */
+    public void destroy() {
+    }
+
+    /**
+     * Return the push service, by default {@link PushService#defaultService}.
+     *
+     * @return the push service
+     */
+    public PushService getPushService() {
+        if (pushService == null) {
+            return PushService.defaultService;
+        }
+        return pushService;
+    }
+
+    /**
+     * Set the push service.
+     *
+     * @param pushService the push service
+     */
+    public void setPushService(PushService pushService) {
+        this.pushService = pushService;
+    }
+
+    // ------------------------------------------------------ Protected Methods
+
+    /**
+     * Return the pollIds the given request subscribes to, or null if the
+     * request is not a push request.
+     *
+     * @param request the servlet request
+     * @return the pollIds to subscribe to, or null if the request is not a
+     * push request
+     */
+    protected Set<String> getPollIds(HttpServletRequest request) {
+        if (!"GET".equals(request.getMethod())) {
+            return null;
+        }
+        String param = request.getParameter(PUSH_PARAM);
+        if (param == null) {
+            return null;
+        }
+        Set<String> pollIds = new LinkedHashSet<String>();
+        for (String pollId : StringUtils.split(param, ',')) {
+            pollId = pollId.trim();
+            if (pollId.length() > 0) {
+                pollIds.add(pollId);
+            }
+        }
+        return pollIds;
+    }
+
+    /**
+     * Return true if the given request may subscribe to the given pollId.
+     * <p/>
+     * This method returns true: any request may subscribe to any pollId.
+     * Override it to restrict subscriptions, for example to pollIds stored in
+     * the session of the request.
+     *
+     * @param request the push request
+     * @param pollId the pollId to subscribe to
+     * @return true if the request may subscribe to the pollId
+     */
+    protected boolean isSubscriptionAllowed(HttpServletRequest request, String pollId) {
+        return true;
+    }
+
+    /**
+     * Write the given event. Each line of the data is written as a separate
+     * <tt>data</tt> field, as required by the Server-Sent Events format.
+     *
+     * @param writer the response writer
+     * @param event the event name
+     * @param data the event data
+     */
+    protected void writeEvent(PrintWriter writer, String event, String data) {
+        writer.write("event: ");
+        writer.write(event);
+        writer.write('\n');
+        int start = 0;
+        int length = data.length();
+        while (start <= length) {
+            int end = data.indexOf('\n', start);
+            if (end < 0) {
+                end = length;
+            }
+            int lineEnd = (end > start && data.charAt(end - 1) == '\r') ? end - 1 : end;
+            writer.write("data: ");
+            writer.write(data, start, lineEnd - start);
+            writer.write('\n');
+            start = end + 1;
+        }
+        writer.write('\n');
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    private long getLongParameter(String name, long defaultValue) throws ServletException {
+        String param = filterConfig.getInitParameter(name);
+        if (StringUtils.isBlank(param)) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(param.trim());
+        } catch (NumberFormatException e) {
+            throw new ServletException("Invalid " + name + " init parameter: " + param);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.push;
+
+/**
+ * Provides the policies applied when a message is published to a push
+ * connection which queue is full, because the browser reads slower than
+ * messages are published.
+ */
+public enum OverflowPolicy {
+
+    /** Drop the oldest queued message to queue the new message. */
+    DROP_OLDEST,
+
+    /** Drop the new message. */
+    DROP_NEWEST,
+
+    /**
+     * Replace a queued message of the same poll with the new message, as the
+     * new message supersedes it. This applies whether or not the queue is
+     * full. If no message of the same poll is queued and the queue is full,
+     * the oldest queued message is dropped.
+     */
+    COALESCE
+}
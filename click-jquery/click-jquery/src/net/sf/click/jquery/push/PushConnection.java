@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.push;
+
+import java.util.LinkedList;
+import java.util.Set;
+
+/**
+ * Provides a push connection of a page: the polls the page subscribed to and
+ * the bounded queue of messages not yet sent to the browser.
+ * <p/>
+ * PushConnection is thread safe.
+ */
+final class PushConnection {
+
+    // -------------------------------------------------------------- Variables
+
+    /** The ids of the polls the connection subscribed to. */
+    final Set<String> pollIds;
+
+    /** The queued messages, oldest first. */
+    private final LinkedList<Message> queue = new LinkedList<Message>();
+
+    /** The maximum number of queued messages. */
+    private final int capacity;
+
+    /** The policy applied when the queue is full. */
+    private final OverflowPolicy overflowPolicy;
+
+    private boolean closed;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a new PushConnection subscribed to the given polls.
+     *
+     * @param pollIds the ids of the polls to subscribe to
+     * @param capacity the maximum number of queued messages
+     * @param overflowPolicy the policy applied when the queue is full
+     */
+    PushConnection(Set<String> pollIds, int capacity, OverflowPolicy overflowPolicy) {
+        this.pollIds = pollIds;
+        this.capacity = capacity;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    // ------------------------------------------------ Package Private Methods
+
+    /**
+     * Queue the given message. Return false if a message was dropped, either
+     * the given message or a queued message.
+     *
+     * @param pollId the id of the poll of the message
+     * @param data the message data
+     * @return false if a message was dropped
+     */
+    synchronized boolean offer(String pollId, String data) {
+        if (closed) {
+            return true;
+        }
+
+        if (overflowPolicy == OverflowPolicy.COALESCE) {
+            for (Message message : queue) {
+                if (message.pollId.equals(pollId)) {
+                    message.data = data;
+                    return true;
+                }
+            }
+        }
+
+        boolean dropped = false;
+        if (queue.size() >= capacity) {
+            if (overflowPolicy == OverflowPolicy.DROP_NEWEST) {
+                return false;
+            }
+            queue.removeFirst();
+            dropped = true;
+        }
+        queue.addLast(new Message(pollId, data));
+        notifyAll();
+        return !dropped;
+    }
+
+    /**
+     * Return the oldest queued message, waiting at most the given time for a
+     * message. Return null if no message was queued within the given time or
+     * the connection is closed.
+     *
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the oldest queued message or null
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    synchronized Message take(long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        long remaining = timeout;
+        while (queue.isEmpty() && !closed && remaining > 0) {
+            wait(remaining);
+            remaining = deadline - System.currentTimeMillis();
+        }
+        return (queue.isEmpty() || closed) ? null : queue.removeFirst();
+    }
+
+    /**
+     * Close the connection, discarding the queued messages.
+     */
+    synchronized void close() {
+        closed = true;
+        queue.clear();
+        notifyAll();
+    }
+
+    /**
+     * Return the number of queued messages.
+     *
+     * @return the number of queued messages
+     */
+    synchronized int size() {
+        return queue.size();
+    }
+
+    // ---------------------------------------------------------- Inner Classes
+
+    /**
+     * Provides a queued message.
+     */
+    static class Message {
+
+        final String pollId;
+
+        String data;
+
+        Message(String pollId, String data) {
+            this.pollId = pollId;
+            this.data = data;
+        }
+    }
+}
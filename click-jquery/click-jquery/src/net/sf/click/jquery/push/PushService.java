@@ -0,0 +1,324 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.push;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import net.sf.click.jquery.taconite.JQTaconite;
+import org.apache.click.ActionResult;
+
+/**
+ * Provides the publishing of JQTaconite updates to the pages subscribed to a
+ * poll.
+ * <p/>
+ * JQPollBehaviors with {@link net.sf.click.jquery.behavior.JQPollBehavior#setPush(boolean) push}
+ * enabled open a single Server-Sent Events connection per page, served by
+ * {@link JQPushFilter}, subscribing to the polls of the page. Behaviors and
+ * services publish updates to a poll by its pollId:
+ *
+ * <pre class="prettyprint">
+ * JQTaconite taconite = new JQTaconite();
+ * taconite.replaceContent("#clock", getTime());
+ * PushService.defaultService.publish("clock", taconite); </pre>
+ *
+ * Each connection queues at most {@link #getQueueCapacity() queueCapacity}
+ * messages not yet sent to the browser. When the queue of a slow browser is
+ * full the {@link #getOverflowPolicy() overflowPolicy} applies. Dropped
+ * messages are counted.
+ * <p/>
+ * At most {@link #getMaxConnections() maxConnections} connections are
+ * accepted. Pages which cannot connect keep polling.
+ * <p/>
+ * <b>Note:</b> push does not scale to thousands of pages. The Servlet 2.5 API
+ * has no asynchronous requests, so each connection holds a container thread
+ * for as long as it is open, see {@link JQPushFilter}. The default of
+ * {@value #DEFAULT_MAX_CONNECTIONS} connections is deliberately low. Raise it
+ * only as far as the container thread pool allows, and let other pages poll
+ * with a {@link net.sf.click.jquery.behavior.JQPollBehavior#setTopic(String) topic},
+ * which answers unchanged polls with a 304 status.
+ * <p/>
+ * <b>Note:</b> pollIds are global. An update published to a pollId is sent to
+ * every page subscribed to it, across all sessions, and by default any
+ * client may subscribe to any pollId. Only publish data every user may see,
+ * or restrict subscriptions with
+ * {@link JQPushFilter#isSubscriptionAllowed(javax.servlet.http.HttpServletRequest, String)}.
+ * <p/>
+ * PushService is thread safe.
+ */
+public class PushService {
+
+    // -------------------------------------------------------------- Constants
+
+    /** The default maximum number of queued messages per connection. */
+    public static final int DEFAULT_QUEUE_CAPACITY = 16;
+
+    /** The default maximum number of connections. */
+    public static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+    /**
+     * The PushService used by {@link JQPushFilter}, with the default queue
+     * capacity, the {@link OverflowPolicy#COALESCE} policy and the default
+     * maximum number of connections.
+     */
+    public static PushService defaultService = new PushService();
+
+    // -------------------------------------------------------------- Variables
+
+    /** The connections per subscribed poll id. */
+    private final Map<String, List<PushConnection>> subscriptions =
+        new HashMap<String, List<PushConnection>>();
+
+    /** The maximum number of queued messages per connection. */
+    private final int queueCapacity;
+
+    /** The policy applied when the queue of a connection is full. */
+    private final OverflowPolicy overflowPolicy;
+
+    /** The maximum number of connections. */
+    private final int maxConnections;
+
+    /** The number of connections, guarded by subscriptions. */
+    private int connectionCount;
+
+    private final AtomicLong published = new AtomicLong();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a new PushService with the default queue capacity, the
+     * {@link OverflowPolicy#COALESCE} policy and the default maximum number of
+     * connections.
+     */
+    public PushService() {
+        this(DEFAULT_QUEUE_CAPACITY, OverflowPolicy.COALESCE, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Create a new PushService.
+     *
+     * @param queueCapacity the maximum number of queued messages per
+     * connection
+     * @param overflowPolicy the policy applied when the queue of a connection
+     * is full
+     * @param maxConnections the maximum number of connections
+     */
+    public PushService(int queueCapacity, OverflowPolicy overflowPolicy, int maxConnections) {
+        if (queueCapacity <= 0) {
+            throw new IllegalArgumentException("queueCapacity must be greater than 0");
+        }
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Null overflowPolicy parameter");
+        }
+        this.queueCapacity = queueCapacity;
+        this.overflowPolicy = overflowPolicy;
+        this.maxConnections = maxConnections;
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Publish the given JQTaconite to the pages subscribed to the given poll.
+     * The JQTaconite is rendered once, as JSON, without HEAD elements, as the
+     * HEAD elements loaded by each page differ.
+     * <p/>
+     * The update is sent to all subscribed pages, whatever their session.
+     *
+     * @param pollId the id of the poll to publish to
+     * @param taconite the commands to publish
+     * @return the number of connections the commands were published to
+     */
+    public int publish(String pollId, JQTaconite taconite) {
+        if (taconite == null) {
+            throw new IllegalArgumentException("Null taconite parameter");
+        }
+        if (!hasSubscribers(pollId)) {
+            return 0;
+        }
+        taconite.setContentType(ActionResult.JSON);
+        taconite.setSkipHeadElements(true);
+        taconite.setDiffEnabled(false);
+        return publish(pollId, taconite.toString());
+    }
+
+    /**
+     * Publish the given JQTaconite JSON document to the pages subscribed to
+     * the given poll.
+     *
+     * @param pollId the id of the poll to publish to
+     * @param json the JQTaconite JSON document to publish
+     * @return the number of connections the document was published to
+     */
+    public int publish(String pollId, String json) {
+        if (pollId == null) {
+            throw new IllegalArgumentException("Null pollId parameter");
+        }
+        if (json == null) {
+            throw new IllegalArgumentException("Null json parameter");
+        }
+
+        List<PushConnection> connections;
+        synchronized (subscriptions) {
+            connections = subscriptions.get(pollId);
+            if (connections == null) {
+                return 0;
+            }
+            connections = new ArrayList<PushConnection>(connections);
+        }
+
+        published.incrementAndGet();
+        for (int i = 0, size = connections.size(); i < size; i++) {
+            if (!connections.get(i).offer(pollId, json)) {
+                dropped.incrementAndGet();
+            }
+        }
+        return connections.size();
+    }
+
+    /**
+     * Return true if a page is subscribed to the given poll.
+     *
+     * @param pollId the id of the poll
+     * @return true if a page is subscribed to the poll
+     */
+    public boolean hasSubscribers(String pollId) {
+        synchronized (subscriptions) {
+            return subscriptions.containsKey(pollId);
+        }
+    }
+
+    /**
+     * Return the number of connections.
+     *
+     * @return the number of connections
+     */
+    public int getConnectionCount() {
+        synchronized (subscriptions) {
+            return connectionCount;
+        }
+    }
+
+    /**
+     * Return the maximum number of queued messages per connection.
+     *
+     * @return the maximum number of queued messages per connection
+     */
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Return the policy applied when the queue of a connection is full.
+     *
+     * @return the policy applied when the queue of a connection is full
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    /**
+     * Return the maximum number of connections.
+     *
+     * @return the maximum number of connections
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Return the number of published messages.
+     *
+     * @return the number of published messages
+     */
+    public long getPublished() {
+        return published.get();
+    }
+
+    /**
+     * Return the number of messages dropped because the queue of a connection
+     * was full.
+     *
+     * @return the number of dropped messages
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * Return the push statistics.
+     *
+     * @return the push statistics
+     */
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[connections=" + getConnectionCount()
+            + ", published=" + getPublished() + ", dropped=" + getDropped() + "]";
+    }
+
+    // ------------------------------------------------ Package Private Methods
+
+    /**
+     * Return a new connection subscribed to the given polls, or null if the
+     * maximum number of connections is reached.
+     *
+     * @param pollIds the ids of the polls to subscribe to
+     * @return the new connection or null
+     */
+    PushConnection connect(Set<String> pollIds) {
+        PushConnection connection = new PushConnection(new LinkedHashSet<String>(pollIds),
+            queueCapacity, overflowPolicy);
+        synchronized (subscriptions) {
+            if (connectionCount >= maxConnections) {
+                return null;
+            }
+            connectionCount++;
+            for (String pollId : connection.pollIds) {
+                List<PushConnection> connections = subscriptions.get(pollId);
+                if (connections == null) {
+                    connections = new ArrayList<PushConnection>(4);
+                    subscriptions.put(pollId, connections);
+                }
+                connections.add(connection);
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * Close the given connection and remove its subscriptions.
+     *
+     * @param connection the connection to close
+     */
+    void disconnect(PushConnection connection) {
+        connection.close();
+        synchronized (subscriptions) {
+            connectionCount--;
+            for (String pollId : connection.pollIds) {
+                List<PushConnection> connections = subscriptions.get(pollId);
+                if (connections != null) {
+                    connections.remove(connection);
+                    if (connections.isEmpty()) {
+                        subscriptions.remove(pollId);
+                    }
+                }
+            }
+        }
+    }
+}
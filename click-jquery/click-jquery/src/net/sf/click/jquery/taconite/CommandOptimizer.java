@@ -0,0 +1,38 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.taconite;
+
+import java.util.List;
+
+/**
+ * Provides an optimizer of the {@link JQTaconite} command list, which is
+ * invoked before the commands are rendered.
+ * <p/>
+ * An optimizer can remove, merge or reorder commands, as long as the browser
+ * ends up with the same DOM as when executing the original commands.
+ *
+ * @see DefaultCommandOptimizer
+ * @see JQTaconite#setCommandOptimizer(CommandOptimizer)
+ */
+public interface CommandOptimizer {
+
+    /**
+     * Return the optimized list of the given commands. The given list may be
+     * modified and returned.
+     *
+     * @param commands the commands to optimize
+     * @return the optimized list of commands
+     */
+    List<JQCommand> optimize(List<JQCommand> commands);
+}
@@ -0,0 +1,340 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.taconite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.click.Control;
+import org.apache.click.util.ClickUtils;
+import org.apache.commons.lang.ObjectUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Provides a {@link CommandOptimizer} for JQTaconite.
+ * <p/>
+ * The optimizer applies the following rules to consecutive commands targeting
+ * the same CSS selector:
+ *
+ * <ul>
+ * <li>commands changing the content of an element ({@link JQTaconite#APPEND},
+ * {@link JQTaconite#PREPEND}, {@link JQTaconite#EMPTY} and
+ * {@link JQTaconite#REPLACE_CONTENT}) are dropped when followed by a
+ * {@link JQTaconite#REPLACE_CONTENT}, {@link JQTaconite#REPLACE} or
+ * {@link JQTaconite#REMOVE} command</li>
+ * <li>{@link JQTaconite#CSS}, {@link JQTaconite#SHOW} and
+ * {@link JQTaconite#HIDE} commands are dropped when followed by a
+ * {@link JQTaconite#REPLACE} or {@link JQTaconite#REMOVE} command</li>
+ * <li>a {@link JQTaconite#REPLACE} command replacing a Control by itself is
+ * dropped when followed by a {@link JQTaconite#REPLACE} or
+ * {@link JQTaconite#REMOVE} command</li>
+ * <li>repeated {@link JQTaconite#CSS}, {@link JQTaconite#ATTR},
+ * {@link JQTaconite#ADD_CLASS}, {@link JQTaconite#REMOVE_CLASS},
+ * {@link JQTaconite#SHOW}, {@link JQTaconite#HIDE} and
+ * {@link JQTaconite#EMPTY} commands are dropped</li>
+ * <li>adjacent {@link JQTaconite#CSS} or {@link JQTaconite#ATTR} commands are
+ * merged into a single command setting all the name/value pairs</li>
+ * </ul>
+ *
+ * Adjacent {@link JQTaconite#ADD_HEADER} commands are merged as well.
+ * <p/>
+ * Commands are never optimized across a command with a different selector.
+ * Different selectors can match the same elements, for example <tt>#a</tt>
+ * and <tt>.x</tt>, so in <tt>hide #a; show .x; hide #a</tt> the second
+ * <tt>hide</tt> is not repeated. Only the predefined commands listed above
+ * are optimized. Any other command, such as {@link JQTaconite#EVAL},
+ * {@link JQTaconite#CUSTOM} or a custom jQuery function, could depend on the
+ * DOM state so commands are never optimized across it either. Selectors containing pseudo classes, attribute filters
+ * or sibling combinators are not optimized either, as the elements they match
+ * can change with the commands around them. JQCommand subclasses are left
+ * untouched.
+ * <p/>
+ * JQTaconite does not optimize its commands by default, see
+ * {@link JQTaconite#setCommandOptimizer(CommandOptimizer)}.
+ * <p/>
+ * The optimizer runs in linear time and is thread safe.
+ */
+public class DefaultCommandOptimizer implements CommandOptimizer {
+
+    // -------------------------------------------------------------- Constants
+
+    /** Commands which only change the elements matched by their selector. */
+    private static final Set<String> LOCAL_COMMANDS = asSet(JQTaconite.ADD_CLASS,
+        JQTaconite.AFTER, JQTaconite.APPEND, JQTaconite.ATTR, JQTaconite.BEFORE,
+        JQTaconite.CSS, JQTaconite.EMPTY, JQTaconite.HIDE, JQTaconite.PREPEND,
+        JQTaconite.REMOVE, JQTaconite.REMOVE_CLASS, JQTaconite.REPLACE,
+        JQTaconite.REPLACE_CONTENT, JQTaconite.SHOW, JQTaconite.WRAP);
+
+    /** Commands which have no effect once the element content is replaced. */
+    private static final Set<String> CONTENT_COMMANDS = asSet(JQTaconite.APPEND,
+        JQTaconite.EMPTY, JQTaconite.PREPEND, JQTaconite.REPLACE_CONTENT);
+
+    /** Commands which have no effect once the element is replaced. */
+    private static final Set<String> ELEMENT_COMMANDS = asSet(JQTaconite.APPEND,
+        JQTaconite.CSS, JQTaconite.EMPTY, JQTaconite.HIDE, JQTaconite.PREPEND,
+        JQTaconite.REPLACE_CONTENT, JQTaconite.SHOW);
+
+    /** Commands which have no further effect when repeated. */
+    private static final Set<String> IDEMPOTENT_COMMANDS = asSet(JQTaconite.ADD_CLASS,
+        JQTaconite.ATTR, JQTaconite.CSS, JQTaconite.EMPTY, JQTaconite.HIDE,
+        JQTaconite.REMOVE_CLASS, JQTaconite.SHOW);
+
+    /** Selector characters which make the matched elements depend on the DOM state. */
+    private static final String UNSAFE_SELECTOR_CHARS = ":[+~";
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Return the optimized list of the given commands.
+     *
+     * @param commands the commands to optimize
+     * @return the optimized list of commands
+     */
+    public List<JQCommand> optimize(List<JQCommand> commands) {
+        int size = commands.size();
+        if (size < 2) {
+            return commands;
+        }
+
+        JQCommand[] result = commands.toArray(new JQCommand[size]);
+
+        // Commands created by this optimizer, which can be modified
+        boolean[] copies = new boolean[size];
+
+        // The indexes of the consecutive commands targeting the current
+        // selector. Commands on another selector could match the same
+        // elements, thus the indexes are cleared when the selector changes
+        List<Integer> indexes = new ArrayList<Integer>();
+        String target = null;
+
+        int previous = -1;
+        for (int i = 0; i < size; i++) {
+            JQCommand command = result[i];
+            String selector = getLocalSelector(command);
+            if (selector == null || !selector.equals(target)) {
+                indexes.clear();
+            }
+
+            if (selector != null && !indexes.isEmpty()) {
+                JQCommand last = result[indexes.get(indexes.size() - 1)];
+                if (isRepeated(last, command)) {
+                    result[i] = null;
+                    continue;
+                }
+            }
+
+            if (previous >= 0 && isMergeable(result[previous], command)) {
+                if (!copies[previous]) {
+                    result[previous] = copy(result[previous]);
+                    copies[previous] = true;
+                }
+                merge(result[previous], command);
+                result[i] = null;
+                continue;
+            }
+
+            target = selector;
+            if (selector != null) {
+                dropOverwritten(result, indexes, command);
+                if (JQTaconite.REPLACE.equals(command.getCommand())
+                    || JQTaconite.REMOVE.equals(command.getCommand())) {
+                    // Later commands target the new elements, if any
+                    indexes.clear();
+                }
+                indexes.add(i);
+            }
+            previous = i;
+        }
+
+        List<JQCommand> optimized = new ArrayList<JQCommand>(size);
+        for (JQCommand command : result) {
+            if (command != null) {
+                optimized.add(command);
+            }
+        }
+        return optimized;
+    }
+
+    // ------------------------------------------------------ Protected Methods
+
+    /**
+     * Return the selector of the given command if the command only changes
+     * the elements matched by the selector, null otherwise.
+     *
+     * @param command the command to check
+     * @return the selector of the command or null if the command could depend
+     * on the DOM state
+     */
+    protected String getLocalSelector(JQCommand command) {
+        if (command.getClass() != JQCommand.class
+            || !LOCAL_COMMANDS.contains(command.getCommand())) {
+            return null;
+        }
+        String selector = command.getSelector();
+        if (StringUtils.isBlank(selector)
+            || StringUtils.containsAny(selector, UNSAFE_SELECTOR_CHARS)) {
+            return null;
+        }
+        return selector;
+    }
+
+    /**
+     * Return true if the effect of the given command is undone by the given
+     * later command targeting the same selector.
+     *
+     * @param command the command to check
+     * @param later the later command targeting the same selector
+     * @return true if the command is overwritten by the later command
+     */
+    protected boolean isOverwritten(JQCommand command, JQCommand later) {
+        String name = command.getCommand();
+        String laterName = later.getCommand();
+        if (JQTaconite.REPLACE_CONTENT.equals(laterName)) {
+            return CONTENT_COMMANDS.contains(name);
+        }
+        if (JQTaconite.REPLACE.equals(laterName) || JQTaconite.REMOVE.equals(laterName)) {
+            return ELEMENT_COMMANDS.contains(name)
+                || (JQTaconite.REPLACE.equals(name) && isReplacedBySelf(command));
+        }
+        return false;
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    private void dropOverwritten(JQCommand[] result, List<Integer> indexes,
+        JQCommand command) {
+
+        int kept = 0;
+        for (int i = 0, size = indexes.size(); i < size; i++) {
+            Integer index = indexes.get(i);
+            if (isOverwritten(result[index], command)) {
+                result[index] = null;
+            } else {
+                indexes.set(kept++, index);
+            }
+        }
+        indexes.subList(kept, indexes.size()).clear();
+    }
+
+    /**
+     * Return true if the given REPLACE command replaces a Control by itself,
+     * thus the selector matches the new element as well.
+     */
+    private boolean isReplacedBySelf(JQCommand command) {
+        List content = command.getContent();
+        if (content.size() != 1 || !(content.get(0) instanceof Control)) {
+            return false;
+        }
+        Control control = (Control) content.get(0);
+        return command.getSelector().equals(ClickUtils.getCssSelector(control));
+    }
+
+    /**
+     * Return true if the given command repeats the given last command
+     * targeting the same selector, without further effect.
+     */
+    private boolean isRepeated(JQCommand last, JQCommand command) {
+        return IDEMPOTENT_COMMANDS.contains(command.getCommand())
+            && command.getCommand().equals(last.getCommand())
+            && last.getContent().isEmpty()
+            && command.getContent().isEmpty()
+            && ObjectUtils.equals(last.getName(), command.getName())
+            && ObjectUtils.equals(last.getValue(), command.getValue())
+            && getArguments(last).equals(getArguments(command));
+    }
+
+    /**
+     * Return true if the given command can be merged into the given previous
+     * command.
+     */
+    private boolean isMergeable(JQCommand previous, JQCommand command) {
+        if (previous.getClass() != JQCommand.class
+            || command.getClass() != JQCommand.class
+            || !previous.getCommand().equals(command.getCommand())) {
+            return false;
+        }
+        String name = command.getCommand();
+        if (JQTaconite.ADD_HEADER.equals(name)) {
+            return true;
+        }
+        if (!JQTaconite.CSS.equals(name) && !JQTaconite.ATTR.equals(name)) {
+            return false;
+        }
+        String selector = command.getSelector();
+        return selector != null
+            && selector.equals(previous.getSelector())
+            && getPairs(previous) != null
+            && getPairs(command) != null;
+    }
+
+    private void merge(JQCommand merged, JQCommand command) {
+        if (JQTaconite.ADD_HEADER.equals(command.getCommand())) {
+            merged.getContent().addAll(command.getContent());
+        } else {
+            merged.getArguments().addAll(getPairs(command));
+        }
+    }
+
+    /**
+     * Return a copy of the given command. CSS and ATTR name/value pairs are
+     * copied as arguments, which the browser applies as a single map.
+     */
+    private JQCommand copy(JQCommand command) {
+        JQCommand copy = new JQCommand(command.getCommand(), command.getSelector());
+        copy.setCharacterData(command.isCharacterData());
+        if (JQTaconite.ADD_HEADER.equals(command.getCommand())) {
+            copy.setContent(new ArrayList(command.getContent()));
+        } else {
+            copy.getArguments().addAll(getPairs(command));
+        }
+        return copy;
+    }
+
+    /**
+     * Return the name/value pairs set by the given CSS or ATTR command, or
+     * null if the command does not set name/value pairs.
+     */
+    private List<String> getPairs(JQCommand command) {
+        if (!command.getContent().isEmpty()) {
+            return null;
+        }
+        List<String> pairs = new ArrayList<String>();
+        if (command.getName() != null || command.getValue() != null) {
+            if (command.getName() == null || command.getValue() == null) {
+                return null;
+            }
+            pairs.add(command.getName());
+            pairs.add(command.getValue());
+        }
+        pairs.addAll(getArguments(command));
+        if (pairs.isEmpty() || pairs.size() % 2 != 0) {
+            return null;
+        }
+        return pairs;
+    }
+
+    private List<String> getArguments(JQCommand command) {
+        if (command.hasArguments()) {
+            return command.getArguments();
+        }
+        return Collections.emptyList();
+    }
+
+    private static Set<String> asSet(String... values) {
+        return Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(values)));
+    }
+}
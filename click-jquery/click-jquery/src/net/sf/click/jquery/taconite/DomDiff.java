@@ -0,0 +1,353 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.taconite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.servlet.http.HttpSession;
+import org.apache.click.Context;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Provides the server side DOM diff of {@link JQTaconite}: the markup of a
+ * replaced Control is compared with the markup last sent to the browser for
+ * the same Control, and only the changes are sent.
+ * <p/>
+ * The fingerprints of the markup sent to the browser are stored in the
+ * session, per page load, once the response is written. Each page load is identified by the
+ * {@link #PAGE_HEADER} request header which <tt>jquery.click.js</tt> adds to
+ * Ajax requests, so a reloaded page never receives a diff against markup it
+ * does not have.
+ * <p/>
+ * Changes are sent as {@link JQTaconite#REPLACE_CONTENT},
+ * {@link JQTaconite#ATTR}, <tt>removeAttr</tt>,
+ * {@link JQTaconite#ADD_CLASS} and {@link JQTaconite#REMOVE_CLASS} commands
+ * targeting the changed elements by their position below the Control. When
+ * the diff is not smaller than the markup itself, the Control is replaced.
+ * <p/>
+ * Concurrent requests of a page load, such as a poll and a click, can be
+ * compared with the same fingerprint and the browser can apply their
+ * responses in any order. A fingerprint is therefore only stored if the
+ * fingerprint its markup was compared with is still stored. Otherwise the
+ * fingerprint is removed, and the next request replaces the Control.
+ */
+final class DomDiff {
+
+    // -------------------------------------------------------------- Constants
+
+    /** The request header identifying the page load. */
+    static final String PAGE_HEADER = "X-Click-Page";
+
+    /** The session attribute of the stored fingerprints. */
+    static final String SESSION_KEY = DomDiff.class.getName();
+
+    /** The maximum number of fingerprints stored per session. */
+    static final int MAX_ENTRIES = 64;
+
+    /** The approximate size of a command without its content. */
+    private static final int COMMAND_SIZE = 40;
+
+    // ----------------------------------------------------------- Constructors
+
+    private DomDiff() {
+    }
+
+    // ------------------------------------------------ Package Private Methods
+
+    /**
+     * Return the commands updating the markup last sent for the given
+     * selector to the given markup. The update of the fingerprint is added to
+     * the given updates, which must be {@link #commit(Context, Map) committed}
+     * once the commands are sent.
+     *
+     * @param context the request context
+     * @param selector the selector of the replaced Control
+     * @param markup the markup of the replaced Control
+     * @param maxCommands the maximum number of commands of the diff
+     * @param updates the fingerprint updates to add the given markup to
+     * @return the commands updating the browser to the given markup
+     */
+    static List<JQCommand> diff(Context context, String selector, String markup,
+        int maxCommands, Map<String, Update> updates) {
+
+        String pageId = context.getRequest().getHeader(PAGE_HEADER);
+        if (StringUtils.isBlank(pageId)) {
+            return replace(selector, markup);
+        }
+
+        Map<String, MarkupNode> store = getStore(context);
+        String key = pageId + ' ' + selector;
+        MarkupNode previous;
+        synchronized (store) {
+            previous = store.get(key);
+        }
+
+        // Markup which cannot be parsed removes the fingerprint
+        MarkupNode current = MarkupNode.parse(markup);
+        updates.put(key, new Update(previous, current));
+        if (previous == null || current == null) {
+            return replace(selector, markup);
+        }
+
+        List<JQCommand> commands = diff(previous, current, markup, selector, maxCommands);
+        if (commands == null) {
+            return replace(selector, markup);
+        }
+        return commands;
+    }
+
+    /**
+     * Store the fingerprints of the markup sent to the browser, which the next
+     * requests of the page load are compared with. A fingerprint which was
+     * stored by another request since it was compared is removed instead.
+     *
+     * @param context the request context
+     * @param updates the fingerprint updates by page load and selector
+     */
+    static void commit(Context context, Map<String, Update> updates) {
+        Map<String, MarkupNode> store = getStore(context);
+        synchronized (store) {
+            for (Map.Entry<String, Update> entry : updates.entrySet()) {
+                Update update = entry.getValue();
+                if (update.current != null && store.get(entry.getKey()) == update.previous) {
+                    store.put(entry.getKey(), update.current);
+                } else {
+                    store.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the commands updating the previous markup to the current markup,
+     * or null if the Control must be replaced instead.
+     *
+     * @param previous the fingerprint of the previous markup
+     * @param current the fingerprint of the current markup
+     * @param markup the current markup
+     * @param selector the selector of the root element
+     * @param maxCommands the maximum number of commands
+     * @return the commands updating the previous markup or null
+     */
+    static List<JQCommand> diff(MarkupNode previous, MarkupNode current, String markup,
+        String selector, int maxCommands) {
+
+        // The Control is located by its root element
+        if (!previous.tag.equals(current.tag)
+            || !StringUtils.equals(previous.getAttribute("id"), current.getAttribute("id"))) {
+            return null;
+        }
+
+        List<JQCommand> commands = new ArrayList<JQCommand>();
+        diffElement(previous, current, markup, selector, commands);
+
+        if (commands.size() > maxCommands) {
+            return null;
+        }
+        int size = 0;
+        for (JQCommand command : commands) {
+            size += COMMAND_SIZE;
+            for (Object content : command.getContent()) {
+                size += ((String) content).length();
+            }
+        }
+        if (size >= markup.length()) {
+            return null;
+        }
+        return commands;
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    private static void diffElement(MarkupNode previous, MarkupNode current,
+        String markup, String selector, List<JQCommand> commands) {
+
+        if (previous.hash == current.hash) {
+            return;
+        }
+        if (!previous.tag.equals(current.tag)
+            || (MarkupNode.RAW_TEXT_ELEMENTS.contains(current.tag)
+                && previous.contentHash != current.contentHash)) {
+            // Raw text, such as a script, is only applied by a new element
+            commands.add(new JQCommand(JQTaconite.REPLACE, selector,
+                markup.substring(current.start, current.end)));
+            return;
+        }
+
+        if (!diffAttributes(previous, current, selector, commands)) {
+            commands.add(new JQCommand(JQTaconite.REPLACE, selector,
+                markup.substring(current.start, current.end)));
+            return;
+        }
+
+        if (previous.contentHash != current.contentHash) {
+            // Text or child elements changed, replace the content
+            if (current.contentStart == current.contentEnd) {
+                commands.add(new JQCommand(JQTaconite.EMPTY, selector));
+            } else {
+                commands.add(new JQCommand(JQTaconite.REPLACE_CONTENT, selector,
+                    markup.substring(current.contentStart, current.contentEnd)));
+            }
+            return;
+        }
+
+        for (int i = 0, size = current.children.size(); i < size; i++) {
+            diffElement(previous.children.get(i), current.children.get(i), markup,
+                selector + " > :nth-child(" + (i + 1) + ")", commands);
+        }
+    }
+
+    /**
+     * Add the commands updating the attributes of the previous element to the
+     * attributes of the current element. Return false if the attributes
+     * cannot be updated and the element must be replaced.
+     */
+    private static boolean diffAttributes(MarkupNode previous, MarkupNode current,
+        String selector, List<JQCommand> commands) {
+
+        String[] attributes = current.attributes;
+        for (int i = 0; i < attributes.length; i += 2) {
+            String name = attributes[i];
+            String value = attributes[i + 1];
+            String previousValue = previous.getAttribute(name);
+            if (value.equals(previousValue)) {
+                continue;
+            }
+            if (!isUpdatable(name)) {
+                return false;
+            }
+            if ("class".equals(name) && previousValue != null) {
+                diffClasses(previousValue, value, selector, commands);
+            } else {
+                commands.add(new JQCommand(JQTaconite.ATTR, selector).name(name).value(value));
+            }
+        }
+
+        attributes = previous.attributes;
+        for (int i = 0; i < attributes.length; i += 2) {
+            String name = attributes[i];
+            if (current.getAttribute(name) == null) {
+                if (!isUpdatable(name)) {
+                    return false;
+                }
+                commands.add(new JQCommand("removeAttr", selector).arguments(name));
+            }
+        }
+        return true;
+    }
+
+    private static void diffClasses(String previousValue, String value, String selector,
+        List<JQCommand> commands) {
+
+        Set<String> previous = split(previousValue);
+        Set<String> current = split(value);
+
+        StringBuilder added = new StringBuilder();
+        for (String name : current) {
+            if (!previous.contains(name)) {
+                added.append(added.length() == 0 ? "" : " ").append(name);
+            }
+        }
+        StringBuilder removed = new StringBuilder();
+        for (String name : previous) {
+            if (!current.contains(name)) {
+                removed.append(removed.length() == 0 ? "" : " ").append(name);
+            }
+        }
+        if (removed.length() > 0) {
+            commands.add(new JQCommand(JQTaconite.REMOVE_CLASS, selector)
+                .arguments(removed.toString()));
+        }
+        if (added.length() > 0) {
+            commands.add(new JQCommand(JQTaconite.ADD_CLASS, selector)
+                .arguments(added.toString()));
+        }
+    }
+
+    /**
+     * Return true if the given attribute can be set through jQuery. Event
+     * handlers are not reliably updated by all browsers and the type of an
+     * input cannot be changed.
+     */
+    private static boolean isUpdatable(String name) {
+        return !name.startsWith("on") && !"type".equals(name) && !"id".equals(name);
+    }
+
+    private static Set<String> split(String value) {
+        Set<String> names = new LinkedHashSet<String>();
+        Collections.addAll(names, StringUtils.split(value));
+        return names;
+    }
+
+    private static List<JQCommand> replace(String selector, String markup) {
+        List<JQCommand> commands = new ArrayList<JQCommand>(1);
+        commands.add(new JQCommand(JQTaconite.REPLACE, selector, markup));
+        return commands;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, MarkupNode> getStore(Context context) {
+        HttpSession session = context.getSession();
+        synchronized (session) {
+            Map<String, MarkupNode> store =
+                (Map<String, MarkupNode>) session.getAttribute(SESSION_KEY);
+            if (store == null) {
+                store = new Store();
+                session.setAttribute(SESSION_KEY, store);
+            }
+            return store;
+        }
+    }
+
+    // ---------------------------------------------------------- Inner Classes
+
+    /**
+     * Provides the update of a stored fingerprint: the fingerprint the markup
+     * was compared with, and the fingerprint of the markup, which is null if
+     * the markup could not be parsed.
+     */
+    static final class Update {
+
+        final MarkupNode previous;
+
+        final MarkupNode current;
+
+        Update(MarkupNode previous, MarkupNode current) {
+            this.previous = previous;
+            this.current = current;
+        }
+    }
+
+    /**
+     * Provides a least recently used map of fingerprints.
+     */
+    static class Store extends LinkedHashMap<String, MarkupNode> {
+
+        private static final long serialVersionUID = 1L;
+
+        Store() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MarkupNode> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.taconite;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.click.Context;
+import org.apache.click.Control;
+import org.apache.click.util.HtmlStringBuffer;
+
+/**
+ * Provides a cache of the rendered markup of Controls.
+ * <p/>
+ * The markup of a Control is cached per version: as long as the Control is
+ * rendered with the same version, the cached markup is returned instead of
+ * rendering the Control again. A Control is identified by its class and
+ * its ID, or its name if no ID is set, within the requested page and
+ * locale. Controls without ID and name are not cached.
+ * <p/>
+ * The cache holds at most {@link #getMaxEntries() maxEntries} fragments,
+ * evicting the least recently used fragment once full. Fragments expire
+ * after {@link #getTimeToLive() timeToLive} milliseconds.
+ * <p/>
+ * The number of hits, misses, evictions and expirations are counted to tune
+ * the cache size and time to live.
+ * <p/>
+ * FragmentCache is thread safe.
+ *
+ * @see JQTaconite#setFragmentVersion(org.apache.click.Control, java.lang.Object)
+ */
+public class FragmentCache {
+
+    // -------------------------------------------------------------- Variables
+
+    /** The cached fragments, in least recently used order. */
+    private final Map<String, Fragment> fragments;
+
+    /** The maximum number of cached fragments. */
+    private final int maxEntries;
+
+    /** The time to live of a fragment in milliseconds. */
+    private final long timeToLive;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong expirations = new AtomicLong();
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a new FragmentCache holding at most the given number of fragments
+     * for the given time.
+     *
+     * @param maxEntries the maximum number of cached fragments
+     * @param timeToLive the time to live of a fragment in milliseconds, 0 or
+     * less for no expiry
+     */
+    public FragmentCache(int maxEntries, long timeToLive) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be greater than 0");
+        }
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.fragments = new LinkedHashMap<String, Fragment>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Fragment> eldest) {
+                if (size() > FragmentCache.this.maxEntries) {
+                    evictions.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Return the markup of the given Control for the given version. The
+     * cached markup is returned if present, otherwise the Control is rendered
+     * and its markup cached.
+     *
+     * @param control the Control to render
+     * @param version the version of the Control
+     * @return the markup of the Control
+     */
+    public String render(Control control, Object version) {
+        if (control == null) {
+            throw new IllegalArgumentException("Null control parameter");
+        }
+        if (version == null) {
+            throw new IllegalArgumentException("Null version parameter");
+        }
+
+        String key = getKey(control, version);
+        if (key == null) {
+            return renderControl(control);
+        }
+
+        long now = System.currentTimeMillis();
+        synchronized (fragments) {
+            Fragment fragment = fragments.get(key);
+            if (fragment != null) {
+                if (fragment.expires == 0 || fragment.expires > now) {
+                    hits.incrementAndGet();
+                    return fragment.markup;
+                }
+                fragments.remove(key);
+                expirations.incrementAndGet();
+            }
+        }
+
+        misses.incrementAndGet();
+        String markup = renderControl(control);
+        long expires = (timeToLive > 0) ? now + timeToLive : 0;
+        synchronized (fragments) {
+            fragments.put(key, new Fragment(markup, expires));
+        }
+        return markup;
+    }
+
+    /**
+     * Remove all cached fragments. The statistics are not reset.
+     */
+    public void clear() {
+        synchronized (fragments) {
+            fragments.clear();
+        }
+    }
+
+    /**
+     * Return the number of cached fragments.
+     *
+     * @return the number of cached fragments
+     */
+    public int size() {
+        synchronized (fragments) {
+            return fragments.size();
+        }
+    }
+
+    /**
+     * Return the maximum number of cached fragments.
+     *
+     * @return the maximum number of cached fragments
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    /**
+     * Return the time to live of a fragment in milliseconds.
+     *
+     * @return the time to live of a fragment in milliseconds
+     */
+    public long getTimeToLive() {
+        return timeToLive;
+    }
+
+    /**
+     * Return the number of renders served from the cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Return the number of renders not served from the cache, including
+     * expired fragments.
+     *
+     * @return the number of cache misses
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Return the number of fragments evicted to make room for new fragments.
+     *
+     * @return the number of evicted fragments
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Return the number of fragments removed because they expired.
+     *
+     * @return the number of expired fragments
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * Return the cache statistics.
+     *
+     * @return the cache statistics
+     */
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + "[size=" + size() + ", hits=" + getHits()
+            + ", misses=" + getMisses() + ", evictions=" + getEvictions()
+            + ", expirations=" + getExpirations() + "]";
+    }
+
+    // ------------------------------------------------------ Protected Methods
+
+    /**
+     * Return the cache key of the given Control and version, or null if the
+     * Control cannot be identified. The key consists of the requested page
+     * path, the request locale, the Control class and ID or name, and the
+     * version.
+     *
+     * @param control the Control to identify
+     * @param version the version of the Control
+     * @return the cache key of the Control or null
+     */
+    protected String getKey(Control control, Object version) {
+        String id = control.getId();
+        if (id == null) {
+            id = control.getName();
+            if (id == null) {
+                return null;
+            }
+        }
+        HtmlStringBuffer key = new HtmlStringBuffer(96);
+        if (Context.hasThreadLocalContext()) {
+            Context context = Context.getThreadLocalContext();
+            key.append(context.getResourcePath()).append('|');
+            key.append(context.getLocale()).append('|');
+        }
+        key.append(control.getClass().getName()).append('#').append(id);
+        key.append('|').append(version);
+        return key.toString();
+    }
+
+    /**
+     * Render the given Control.
+     *
+     * @param control the Control to render
+     * @return the markup of the Control
+     */
+    protected String renderControl(Control control) {
+        HtmlStringBuffer buffer = new HtmlStringBuffer();
+        control.render(buffer);
+        return buffer.toString();
+    }
+
+    // ---------------------------------------------------------- Inner Classes
+
+    /**
+     * Provides a cached fragment.
+     */
+    static class Fragment {
+
+        final String markup;
+
+        /** The expiry time in milliseconds, 0 if the fragment does not expire. */
+        final long expires;
+
+        Fragment(String markup, long expires) {
+            this.markup = markup;
+            this.expires = expires;
+        }
+    }
+}
@@ -18,6 +18,7 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import net.sf.click.jquery.util.StringEscaper;
 import org.apache.click.Context;
 import org.apache.click.Control;
 import org.apache.click.element.Element;
@@ -597,6 +598,51 @@ public class JQCommand {
         }
     }
 
+    /**
+     * Render the JSON representation of the command. The command is rendered
+     * as an object with the properties "<tt>cmd</tt>", "<tt>select</tt>",
+     * "<tt>name</tt>", "<tt>value</tt>", "<tt>args</tt>" and
+     * "<tt>content</tt>". Properties which are not set are omitted.
+     * <p/>
+     * The content is rendered as a single HTML string, except for the
+     * {@link JQTaconite#ADD_HEADER} command which content is rendered as an
+     * array of HTML strings, one per HEAD element.
+     *
+     * @param buffer the buffer to render output to
+     */
+    public void renderJson(HtmlStringBuffer buffer) {
+        buffer.append("{\"cmd\":");
+        appendJsonString(getCommand(), buffer);
+        if (getSelector() != null) {
+            buffer.append(",\"select\":");
+            appendJsonString(getSelector(), buffer);
+        }
+        if (getName() != null) {
+            buffer.append(",\"name\":");
+            appendJsonString(getName(), buffer);
+        }
+        if (getValue() != null) {
+            buffer.append(",\"value\":");
+            appendJsonString(getValue(), buffer);
+        }
+        if (hasArguments()) {
+            buffer.append(",\"args\":[");
+            List args = getArguments();
+            for (int i = 0; i < args.size(); i++) {
+                if (i > 0) {
+                    buffer.append(',');
+                }
+                appendJsonString((String) args.get(i), buffer);
+            }
+            buffer.append(']');
+        }
+        if (!getContent().isEmpty()) {
+            buffer.append(",\"content\":");
+            renderJsonContent(buffer);
+        }
+        buffer.append('}');
+    }
+
     /**
      * Render the XML representation of the command.
      *
@@ -639,16 +685,16 @@ public class JQCommand {
      */
     protected void renderTagBegin(String tagName, HtmlStringBuffer buffer) {
         buffer.elementStart(tagName);
-        buffer.appendAttribute("select", getSelector());
-        buffer.appendAttribute("name", getName());
-        buffer.appendAttribute("value", getValue());
+        appendXmlAttribute("select", getSelector(), buffer);
+        appendXmlAttribute("name", getName(), buffer);
+        appendXmlAttribute("value", getValue(), buffer);
         if (hasArguments()) {
             List args = getArguments();
             for (int i = 0; i < args.size(); i++) {
                 String arg = (String) args.get(i);
                 buffer.append(" arg").append(i + 1);
                 buffer.append("=\"");
-                buffer.append(arg);
+                buffer.append(StringEscaper.XML.escape(arg));
                 buffer.append("\"");
             }
         }
@@ -674,25 +720,11 @@ public class JQCommand {
         }
 
         for (Object content : getContent()) {
-            if (content instanceof Control) {
-                ((Control) content).render(buffer);
-            } else if (content instanceof JsScript) {
-                JsScript script = (JsScript) content;
-                if (wrapInCDATA) {
-                    script.setCharacterData(false);
-                }
-
-                if (isEval) {
-                    renderJsScriptContent(script, buffer);
-                } else {
-                    script.render(buffer);
-                }
-            } else if (content instanceof Element) {
-                ((Element) content).render(buffer);
-            } else {
-                buffer.append(content.toString());
-            }
+            renderContentItem(content, isEval, wrapInCDATA, buffer);
             buffer.append("\n");
+            if (buffer instanceof ResponseBuffer) {
+                ((ResponseBuffer) buffer).flushIfFull();
+            }
         }
 
         if (wrapInCDATA) {
@@ -700,6 +732,47 @@ public class JQCommand {
         }
     }
 
+    /**
+     * Render this command content as JSON to the specified buffer.
+     * <p/>
+     * Each content item is rendered on its own and escaped into the buffer.
+     * When rendering to the response, large items are escaped straight into
+     * the response writer, so the content of a command is never buffered as
+     * a whole.
+     *
+     * @param buffer the buffer to append the output to
+     */
+    protected void renderJsonContent(HtmlStringBuffer buffer) {
+        boolean isEval = JQTaconite.EVAL.equals(getCommand());
+        boolean isHeader = JQTaconite.ADD_HEADER.equals(getCommand());
+        List contents = getContent();
+
+        buffer.append(isHeader ? '[' : '"');
+        for (int i = 0; i < contents.size(); i++) {
+            if (isHeader) {
+                if (i > 0) {
+                    buffer.append(',');
+                }
+                buffer.append('"');
+            }
+
+            HtmlStringBuffer item = new HtmlStringBuffer();
+            renderContentItem(contents.get(i), isEval, false, item);
+            if (!isHeader) {
+                item.append('\n');
+            }
+            appendJsonEscaped(item.toString(), buffer);
+
+            if (isHeader) {
+                buffer.append('"');
+            }
+            if (buffer instanceof ResponseBuffer) {
+                ((ResponseBuffer) buffer).flushIfFull();
+            }
+        }
+        buffer.append(isHeader ? ']' : '"');
+    }
+
     /**
      * Close the specifies tag.
      *
@@ -712,6 +785,79 @@ public class JQCommand {
 
     // -------------------------------------------------------- Private Methods
 
+    /**
+     * Render the given content item to the given buffer.
+     *
+     * @param content the content item to render
+     * @param isEval true if the command is an EVAL command
+     * @param wrapInCDATA true if the content is wrapped in CDATA
+     * @param buffer the buffer to render the content item to
+     */
+    private void renderContentItem(Object content, boolean isEval, boolean wrapInCDATA,
+        HtmlStringBuffer buffer) {
+        if (content instanceof Control) {
+            ((Control) content).render(buffer);
+        } else if (content instanceof JsScript) {
+            JsScript script = (JsScript) content;
+            if (wrapInCDATA) {
+                script.setCharacterData(false);
+            }
+
+            if (isEval) {
+                renderJsScriptContent(script, buffer);
+            } else {
+                script.render(buffer);
+            }
+        } else if (content instanceof Element) {
+            ((Element) content).render(buffer);
+        } else {
+            buffer.append(content.toString());
+        }
+    }
+
+    /**
+     * Append the given attribute with an escaped value, if the value is not
+     * null. HtmlStringBuffer.appendAttribute does not escape quotes, which
+     * would break the XML document.
+     *
+     * @param name the attribute name
+     * @param value the attribute value
+     * @param buffer the buffer to append the attribute to
+     */
+    private void appendXmlAttribute(String name, String value, HtmlStringBuffer buffer) {
+        if (value != null) {
+            buffer.append(' ').append(name).append("=\"");
+            buffer.append(StringEscaper.XML.escape(value));
+            buffer.append('"');
+        }
+    }
+
+    /**
+     * Append the given value as a quoted and escaped JSON string.
+     *
+     * @param value the value to append
+     * @param buffer the buffer to append the value to
+     */
+    private void appendJsonString(String value, HtmlStringBuffer buffer) {
+        buffer.append('"');
+        buffer.append(StringEscaper.JSON.escape(value));
+        buffer.append('"');
+    }
+
+    /**
+     * Append the given value escaped as JSON string content, without quotes.
+     *
+     * @param value the value to append
+     * @param buffer the buffer to append the value to
+     */
+    private void appendJsonEscaped(String value, HtmlStringBuffer buffer) {
+        if (buffer instanceof ResponseBuffer) {
+            ((ResponseBuffer) buffer).appendEscaped(value, StringEscaper.JSON);
+        } else {
+            buffer.append(StringEscaper.JSON.escape(value));
+        }
+    }
+
     /**
      * JsScript doesn't expose a public method to render "only" its content.
      * This method will render only the content of a JsScript.
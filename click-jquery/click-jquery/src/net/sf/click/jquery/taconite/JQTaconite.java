@@ -13,13 +13,19 @@
  */
 package net.sf.click.jquery.taconite;
 
-import java.io.StringReader;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import net.sf.click.jquery.JQActionResult;
 import org.apache.click.Context;
 import org.apache.click.Control;
-import org.apache.click.ActionResult;
 import org.apache.click.util.HtmlStringBuffer;
 import org.apache.click.element.CssStyle;
 import org.apache.click.element.Element;
@@ -183,8 +189,34 @@ import org.apache.commons.lang.StringUtils;
  * those situations simply ignore the ID attribute.
  * </li>
  * </ul>
+ *
+ * <h3>JSON format</h3>
+ *
+ * By default JQTaconite renders an XML document. Setting the content type to
+ * {@link #JSON} renders the same commands as a JSON document instead, which
+ * is smaller and faster to apply in the browser, as content is inserted as
+ * HTML instead of being converted from XML nodes:
+ *
+ * <pre class="prettyprint">
+ * JQTaconite actionResult = new JQTaconite();
+ * actionResult.setContentType(ActionResult.JSON);
+ * actionResult.replace(table); </pre>
+ *
+ * The JSON document has the form:
+ *
+ * <pre class="prettyprint">
+ * {"taconite":[
+ * {"cmd":"replace","select":"#table","content":"&lt;table ..."},
+ * {"cmd":"addHeader","content":["&lt;script ...", "&lt;link ..."]},
+ * {"cmd":"eval","content":"alert('done')"}
+ * ]} </pre>
+ *
+ * Each command has the properties "<tt>cmd</tt>", "<tt>select</tt>",
+ * "<tt>name</tt>", "<tt>value</tt>", "<tt>args</tt>" and "<tt>content</tt>",
+ * which are omitted if not set. The "<tt>jquery.click.js</tt>" library
+ * detects and applies both formats.
  */
-public class JQTaconite extends ActionResult {
+public class JQTaconite extends JQActionResult {
 
     // -------------------------------------------------------------- Constants
 
@@ -254,11 +286,58 @@ public class JQTaconite extends ActionResult {
 
     // -------------------------------------------------------------- Variables
 
+    /** The default optimizer of the command list of new JQTaconite instances. */
+    private static volatile CommandOptimizer defaultCommandOptimizer;
+
+    /** The default cache of rendered Controls of new JQTaconite instances. */
+    private static volatile FragmentCache defaultFragmentCache =
+        new FragmentCache(256, 10 * 60 * 1000L);
+
+    /** The default executor of new JQTaconite instances. */
+    private static volatile Executor defaultRenderExecutor;
+
     /** The list of commands to execute. */
     protected List<JQCommand> commands = new ArrayList<JQCommand>();
 
     protected boolean skipHeadElements = false;
 
+    /**
+     * The size of the buffer used to stream the response, the buffer is
+     * written and flushed to the response each time it fills up. The default
+     * value is 8192 characters.
+     */
+    protected int bufferSize = 8192;
+
+    /** The optimizer of the command list, null to disable optimization. */
+    protected CommandOptimizer commandOptimizer = defaultCommandOptimizer;
+
+    /**
+     * Indicates whether replaced Controls are sent as the difference with the
+     * markup last sent to the browser, false by default.
+     */
+    protected boolean diffEnabled = false;
+
+    /**
+     * The maximum number of commands of the difference of a replaced Control,
+     * above which the Control is replaced. The default value is 20.
+     */
+    protected int maxDiffCommands = 20;
+
+    /** The cache of rendered Controls, null to disable caching. */
+    protected FragmentCache fragmentCache = defaultFragmentCache;
+
+    /** The versions of the Controls which markup is cached. */
+    protected Map<Control, Object> fragmentVersions;
+
+    /**
+     * The fingerprints of the markup diffed by {@link #diffCommands()}, which
+     * are stored in the session once the response is written.
+     */
+    private Map<String, DomDiff.Update> diffFingerprints;
+
+    /** The executor to render Controls in parallel, null to render sequentially. */
+    protected Executor renderExecutor = defaultRenderExecutor;
+
     // ----------------------------------------------------------- Constructors
 
     /**
@@ -286,6 +365,75 @@ public class JQTaconite extends ActionResult {
 
     // --------------------------------------------------------- Public Methods
 
+    /**
+     * Return the default optimizer of the command list of new JQTaconite
+     * instances, null by default which disables optimization.
+     *
+     * @return the default optimizer of the command list
+     */
+    public static CommandOptimizer getDefaultCommandOptimizer() {
+        return defaultCommandOptimizer;
+    }
+
+    /**
+     * Set the default optimizer of the command list of new JQTaconite
+     * instances, for example a {@link DefaultCommandOptimizer}. A null value
+     * disables optimization.
+     *
+     * @param commandOptimizer the default optimizer of the command list
+     */
+    public static void setDefaultCommandOptimizer(CommandOptimizer commandOptimizer) {
+        defaultCommandOptimizer = commandOptimizer;
+    }
+
+    /**
+     * Return the default cache of rendered Controls of new JQTaconite
+     * instances, holding 256 fragments for 10 minutes by default.
+     *
+     * @return the default cache of rendered Controls
+     */
+    public static FragmentCache getDefaultFragmentCache() {
+        return defaultFragmentCache;
+    }
+
+    /**
+     * Set the default cache of rendered Controls of new JQTaconite instances.
+     * Only Controls with a
+     * {@link #setFragmentVersion(org.apache.click.Control, java.lang.Object) fragment version}
+     * are cached. A null value disables caching.
+     *
+     * @param fragmentCache the default cache of rendered Controls
+     */
+    public static void setDefaultFragmentCache(FragmentCache fragmentCache) {
+        defaultFragmentCache = fragmentCache;
+    }
+
+    /**
+     * Return the default executor on which new JQTaconite instances render
+     * their Controls in parallel, null by default.
+     *
+     * @return the default executor of new JQTaconite instances
+     */
+    public static Executor getDefaultRenderExecutor() {
+        return defaultRenderExecutor;
+    }
+
+    /**
+     * Set the default executor on which new JQTaconite instances render their
+     * Controls in parallel. A null value renders Controls sequentially.
+     * <p/>
+     * <b>Please note:</b> this renders the Controls of all JQTaconite
+     * instances in parallel, thus all Controls added to JQTaconite must be
+     * thread safe, see {@link #setRenderExecutor(java.util.concurrent.Executor)}.
+     * Prefer setting the executor on the JQTaconite instances which Controls
+     * are known to be thread safe.
+     *
+     * @param renderExecutor the default executor of new JQTaconite instances
+     */
+    public static void setDefaultRenderExecutor(Executor renderExecutor) {
+        defaultRenderExecutor = renderExecutor;
+    }
+
     /**
      * Return the JQTaconite XML document root tag: "<tt>taconite</tt>".
      *
@@ -309,6 +457,229 @@ public class JQTaconite extends ActionResult {
         this.skipHeadElements = skipHeadElements;
     }
 
+    /**
+     * Return the size of the buffer used to stream the response.
+     *
+     * @return the size of the buffer used to stream the response
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Set the size of the buffer used to stream the response. The buffer is
+     * written and flushed to the response each time it fills up, so the
+     * memory used by a response does not grow with the size of the response.
+     *
+     * @param bufferSize the size of the buffer used to stream the response
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be greater than 0");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Return the optimizer of the command list.
+     *
+     * @return the optimizer of the command list
+     */
+    public CommandOptimizer getCommandOptimizer() {
+        return commandOptimizer;
+    }
+
+    /**
+     * Set the optimizer of the command list, which removes and merges
+     * redundant commands before rendering. A null value disables
+     * optimization.
+     *
+     * @param commandOptimizer the optimizer of the command list
+     */
+    public void setCommandOptimizer(CommandOptimizer commandOptimizer) {
+        this.commandOptimizer = commandOptimizer;
+    }
+
+    /**
+     * Return true if replaced Controls are sent as the difference with the
+     * markup last sent to the browser.
+     *
+     * @return true if replaced Controls are sent as a difference
+     */
+    public boolean isDiffEnabled() {
+        return diffEnabled;
+    }
+
+    /**
+     * Set whether Controls replaced through {@link #replace(org.apache.click.Control)}
+     * are sent as the difference with the markup last sent to the browser for
+     * the same Control.
+     * <p/>
+     * The server keeps a fingerprint of the markup sent for each replaced
+     * Control in the session. On the next Ajax request, the new markup is
+     * compared with the fingerprint and only the changed text, attributes
+     * and CSS classes are sent, through {@link #REPLACE_CONTENT},
+     * {@link #ATTR}, {@link #ADD_CLASS} and {@link #REMOVE_CLASS} commands.
+     * The Control is replaced on the first request of a page load, and when
+     * the difference is not smaller than the markup.
+     * <p/>
+     * This is useful for large Controls of which only a small part changes
+     * per request, such as a Table which row is edited. The browser must
+     * hold the markup last sent, thus the Control must only be updated
+     * through JQTaconite. A session is created if none exists.
+     * <p/>
+     * The fingerprints are only stored once JQTaconite is written to the
+     * response. Rendering JQTaconite through {@link #toString()} or
+     * {@link #render(org.apache.click.util.HtmlStringBuffer)}, and responses
+     * answered with a 304 Not Modified status, do not change the markup the
+     * next request is compared with.
+     *
+     * @param diffEnabled true to send replaced Controls as a difference
+     */
+    public void setDiffEnabled(boolean diffEnabled) {
+        this.diffEnabled = diffEnabled;
+    }
+
+    /**
+     * Return the maximum number of commands of the difference of a replaced
+     * Control.
+     *
+     * @return the maximum number of commands of a difference
+     */
+    public int getMaxDiffCommands() {
+        return maxDiffCommands;
+    }
+
+    /**
+     * Set the maximum number of commands of the difference of a replaced
+     * Control, above which the Control is replaced instead.
+     *
+     * @param maxDiffCommands the maximum number of commands of a difference
+     */
+    public void setMaxDiffCommands(int maxDiffCommands) {
+        this.maxDiffCommands = maxDiffCommands;
+    }
+
+    /**
+     * Return the cache of rendered Controls.
+     *
+     * @return the cache of rendered Controls
+     */
+    public FragmentCache getFragmentCache() {
+        return fragmentCache;
+    }
+
+    /**
+     * Set the cache of rendered Controls. A null value disables caching.
+     *
+     * @param fragmentCache the cache of rendered Controls
+     */
+    public void setFragmentCache(FragmentCache fragmentCache) {
+        this.fragmentCache = fragmentCache;
+    }
+
+    /**
+     * Set the version of the markup of the given Control, which enables
+     * caching the markup in the {@link #getFragmentCache() fragment cache}.
+     * As long as the Control is added with the same version, the cached
+     * markup is used instead of rendering the Control.
+     * <p/>
+     * The version must change whenever the markup of the Control changes,
+     * for example:
+     *
+     * <pre class="prettyprint">
+     * JQTaconite taconite = new JQTaconite();
+     * RevenueChart chart = new RevenueChart("chart");
+     * taconite.append("#dashboard", chart);
+     *
+     * // The chart only changes with the year
+     * taconite.setFragmentVersion(chart, year); </pre>
+     *
+     * The HEAD elements of cached Controls are still processed on every
+     * request.
+     *
+     * @param control the Control to cache
+     * @param version the version of the Control markup, or null to remove the
+     * version
+     */
+    public void setFragmentVersion(Control control, Object version) {
+        if (control == null) {
+            throw new IllegalArgumentException("Null control parameter");
+        }
+        if (version == null) {
+            if (fragmentVersions != null) {
+                fragmentVersions.remove(control);
+            }
+            return;
+        }
+        if (fragmentVersions == null) {
+            fragmentVersions = new IdentityHashMap<Control, Object>();
+        }
+        fragmentVersions.put(control, version);
+    }
+
+    /**
+     * Return the executor on which Controls are rendered in parallel.
+     *
+     * @return the executor on which Controls are rendered in parallel
+     */
+    public Executor getRenderExecutor() {
+        return renderExecutor;
+    }
+
+    /**
+     * Set the executor on which the Controls of the commands are rendered in
+     * parallel. Each Control is rendered into its own buffer and the results
+     * are written in command order, so the response time approaches the time
+     * of the slowest Control instead of the sum of all Controls. A null value
+     * renders Controls sequentially.
+     * <p/>
+     * The executor should be bounded and shared by all requests, for example:
+     *
+     * <pre class="prettyprint">
+     * // In a ServletContextListener
+     * RENDER_EXECUTOR = new ThreadPoolExecutor(4, 4, 60, TimeUnit.SECONDS,
+     *     new ArrayBlockingQueue&lt;Runnable&gt;(100));
+     *
+     * // In the Page, for Controls which are thread safe
+     * taconite.setRenderExecutor(RENDER_EXECUTOR); </pre>
+     *
+     * Controls which the executor rejects, or which it has not started
+     * rendering once the request thread is done, are rendered by the request
+     * thread, so a saturated or shut down executor never blocks the request.
+     * <p/>
+     * <b>Please note:</b> Click makes no thread safety promises for Pages,
+     * Controls or template rendering. Only set an executor if all Controls
+     * added to this JQTaconite are thread safe: rendering must not change
+     * the state of the Control, of the Page or of other Controls, for example
+     * through lazily created children or HEAD elements, and must not depend
+     * on other Controls, as the Controls are rendered at the same time.
+     * <p/>
+     * The request Context is made available to the rendering threads through
+     * a non public Click API, accessed by reflection. If that access is not
+     * permitted, a warning is logged and Controls are rendered sequentially.
+     *
+     * @param renderExecutor the executor on which Controls are rendered in
+     * parallel
+     */
+    public void setRenderExecutor(Executor renderExecutor) {
+        this.renderExecutor = renderExecutor;
+    }
+
+    /**
+     * Return the version of the markup of the given Control, or null if the
+     * markup of the Control is not cached.
+     *
+     * @param control the Control which version to return
+     * @return the version of the Control markup or null
+     */
+    public Object getFragmentVersion(Control control) {
+        if (fragmentVersions == null) {
+            return null;
+        }
+        return fragmentVersions.get(control);
+    }
+
     /**
      * Add the given command to the list of commands.
      *
@@ -1493,19 +1864,67 @@ public class JQTaconite extends ActionResult {
     }
 
    /**
-     * Render JQTaconite to the specified response.
+     * Render JQTaconite to the response of the given context. The commands
+     * are streamed to the response Writer through a buffer of
+     * {@link #bufferSize} characters, instead of being rendered to a String
+     * first. If compression is enabled, large responses are gzip compressed
+     * when the browser accepts it, see
+     * {@link net.sf.click.jquery.JQActionResult}.
+     * <p/>
+     * Nothing is rendered if the {@link #getETag() ETag}, or the
+     * {@link #setComputeETag(boolean) computed} ETag of the commands, matches
+     * the <tt>If-None-Match</tt> request header. Computing the ETag renders
+     * the commands to a String first.
      *
-     * @param request the page servlet request
-     * @param response the page servlet response
+     * @param context the request context
      */
     @Override
     protected void renderActionResult(Context context) {
-        setReader(new StringReader(toString()));
-        super.renderActionResult(context);
+        String localETag = getETag();
+        if (localETag != null && isNotModified(context, localETag)) {
+            return;
+        }
+
+        Writer writer = null;
+        try {
+            if (localETag == null && isComputeETag()) {
+                String content = toString();
+                if (isNotModified(context, computeETag(content))) {
+                    return;
+                }
+                writer = getResponseWriter(context);
+                writer.write(content);
+                commitDiff(context);
+                return;
+            }
+
+            writer = getResponseWriter(context);
+            ResponseBuffer buffer = new ResponseBuffer(writer, getBufferSize());
+            render(buffer);
+            buffer.flush();
+            commitDiff(context);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            ClickUtils.close(writer);
+        }
     }
 
     /**
-     * Render the XML representation of JQTaconite to the given buffer.
+     * Return true if JQTaconite is rendered as JSON, false if rendered as XML.
+     * JSON is rendered if the {@link #setContentType(java.lang.String) content type}
+     * is {@link #JSON}.
+     *
+     * @return true if JQTaconite is rendered as JSON
+     */
+    public boolean isJsonFormat() {
+        String contentType = getContentType();
+        return contentType != null && contentType.startsWith(JSON);
+    }
+
+    /**
+     * Render the XML or {@link #isJsonFormat() JSON} representation of
+     * JQTaconite to the given buffer.
      *
      * @param buffer the buffer to render output to
      */
@@ -1513,6 +1932,15 @@ public class JQTaconite extends ActionResult {
         if (!isSkipHeadElements()) {
             processHeadElements();
         }
+        diffCommands();
+        cacheFragments();
+        renderControls();
+        optimizeCommands();
+
+        if (isJsonFormat()) {
+            renderJson(buffer);
+            return;
+        }
 
         String tag = getTag();
         renderTagBegin(tag, buffer);
@@ -1525,9 +1953,10 @@ public class JQTaconite extends ActionResult {
     }
 
     /**
-     * Return a XML representation of JQTaconite.
+     * Return the XML or {@link #isJsonFormat() JSON} representation of
+     * JQTaconite.
      *
-     * @return the XML representation of JQTaconite
+     * @return the XML or JSON representation of JQTaconite
      */
     @Override
     public String toString() {
@@ -1557,6 +1986,115 @@ public class JQTaconite extends ActionResult {
         return selector;
     }
 
+    /**
+     * Replace the {@link #REPLACE} commands of Controls with the difference
+     * with the markup last sent to the browser, if
+     * {@link #isDiffEnabled() diff is enabled}. The fingerprints of the new
+     * markup are kept until the response is written.
+     */
+    protected void diffCommands() {
+        if (!isDiffEnabled() || !Context.hasThreadLocalContext()) {
+            return;
+        }
+        Context context = Context.getThreadLocalContext();
+
+        List<JQCommand> result = null;
+        for (int i = 0, size = commands.size(); i < size; i++) {
+            JQCommand command = commands.get(i);
+            Control control = getReplacedControl(command);
+            if (control == null) {
+                if (result != null) {
+                    result.add(command);
+                }
+                continue;
+            }
+            if (result == null) {
+                result = new ArrayList<JQCommand>(commands.subList(0, i));
+            }
+            if (diffFingerprints == null) {
+                diffFingerprints = new HashMap<String, DomDiff.Update>();
+            }
+            result.addAll(DomDiff.diff(context, command.getSelector(),
+                renderFragment(control), getMaxDiffCommands(), diffFingerprints));
+        }
+
+        if (result != null) {
+            commands.clear();
+            commands.addAll(result);
+        }
+    }
+
+    /**
+     * Replace the Controls which have a
+     * {@link #setFragmentVersion(org.apache.click.Control, java.lang.Object) fragment version}
+     * with their cached markup.
+     */
+    protected void cacheFragments() {
+        if (fragmentVersions == null || fragmentVersions.isEmpty()
+            || getFragmentCache() == null) {
+            return;
+        }
+        for (int i = 0, size = commands.size(); i < size; i++) {
+            JQCommand command = commands.get(i);
+            if (command.getClass() != JQCommand.class) {
+                continue;
+            }
+            List content = command.getContent();
+            for (int j = 0, count = content.size(); j < count; j++) {
+                Object item = content.get(j);
+                if (item instanceof Control && fragmentVersions.containsKey(item)) {
+                    content.set(j, renderFragment((Control) item));
+                }
+            }
+        }
+    }
+
+    /**
+     * Render the Controls of the commands in parallel on the
+     * {@link #getRenderExecutor() render executor}, if set.
+     */
+    protected void renderControls() {
+        Executor executor = getRenderExecutor();
+        if (executor != null) {
+            ParallelRenderer.render(commands, executor);
+        }
+    }
+
+    /**
+     * Return the markup of the given Control, from the
+     * {@link #getFragmentCache() fragment cache} if the Control has a
+     * {@link #setFragmentVersion(org.apache.click.Control, java.lang.Object) fragment version}.
+     *
+     * @param control the Control to render
+     * @return the markup of the Control
+     */
+    protected String renderFragment(Control control) {
+        Object version = getFragmentVersion(control);
+        FragmentCache cache = getFragmentCache();
+        if (version != null && cache != null) {
+            return cache.render(control, version);
+        }
+        HtmlStringBuffer buffer = new HtmlStringBuffer();
+        control.render(buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * Optimize the command list with the {@link #getCommandOptimizer() command
+     * optimizer}, if set.
+     */
+    protected void optimizeCommands() {
+        CommandOptimizer optimizer = getCommandOptimizer();
+        if (optimizer == null || commands.size() < 2) {
+            return;
+        }
+        List<JQCommand> optimized = optimizer.optimize(commands);
+        if (optimized != commands) {
+            commands.clear();
+            commands.addAll(optimized);
+        }
+    }
+
     /**
      * Render the {@link #getTag() tag} name to the given buffer.
      *
@@ -1576,9 +2114,31 @@ public class JQTaconite extends ActionResult {
         for (JQCommand command : commands) {
             command.render(buffer);
             buffer.append("\n");
+            if (buffer instanceof ResponseBuffer) {
+                ((ResponseBuffer) buffer).flushIfFull();
+            }
         }
     }
 
+    /**
+     * Render the JSON representation of JQTaconite to the given buffer.
+     *
+     * @param buffer the buffer to render to
+     */
+    protected void renderJson(HtmlStringBuffer buffer) {
+        buffer.append("{\"").append(getTag()).append("\":[\n");
+        for (int i = 0, size = commands.size(); i < size; i++) {
+            if (i > 0) {
+                buffer.append(",\n");
+            }
+            commands.get(i).renderJson(buffer);
+            if (buffer instanceof ResponseBuffer) {
+                ((ResponseBuffer) buffer).flushIfFull();
+            }
+        }
+        buffer.append("\n]}");
+    }
+
     /**
      * Closes the specified tag.
      *
@@ -1611,10 +2171,12 @@ public class JQTaconite extends ActionResult {
 
         PageImports pageImports = new PageImports(null);
 
-        Iterator it = commands.iterator();
+        // Rebuild the command list instead of removing commands in place,
+        // which is quadratic for an ArrayList
+        List<JQCommand> processed = new ArrayList<JQCommand>(commands.size() + 2);
         List<JQCommand> evalCommands = null;
-        while (it.hasNext()) {
-            JQCommand command = (JQCommand) it.next();
+        for (int i = 0, size = commands.size(); i < size; i++) {
+            JQCommand command = commands.get(i);
 
             if (EVAL.equals(command.getCommand())) {
                 // Eval commands are not added to the head section of the taconite
@@ -1624,22 +2186,31 @@ public class JQTaconite extends ActionResult {
                     evalCommands = new ArrayList<JQCommand>();
                 }
                 evalCommands.add(command);
-                it.remove();
                 continue;
             }
             processHeadElements(command, pageImports);
 
             // Ensure the addHeader commands are removed since they were already
             // processed by the line above
-            if (ADD_HEADER.equals(command.getCommand())) {
-                it.remove();
+            if (!ADD_HEADER.equals(command.getCommand())) {
+                processed.add(command);
             }
         }
 
         List<Element> headElements = pageImports.getHeadElements();
+        List<Element> jsElements = pageImports.getJsElements();
+
+        // Skip the resources the browser already loaded
+        if (Context.hasThreadLocalContext()) {
+            Set<String> loaded =
+                ResourceManifest.getLoadedResources(Context.getThreadLocalContext());
+            headElements = ResourceManifest.removeLoaded(headElements, loaded);
+            jsElements = ResourceManifest.removeLoaded(jsElements, loaded);
+        }
 
         // Ensure CssStyle content is wrapped in CDATA tags because the content
-        // must be valid XML.
+        // must be valid XML. This applies to JSON too, as the browser parses
+        // head elements as XML in both formats.
         for (int i = 0, size = headElements.size(); i < size; i++) {
             Element element = headElements.get(i);
             if (element instanceof CssStyle) {
@@ -1647,8 +2218,6 @@ public class JQTaconite extends ActionResult {
             }
         }
 
-        List<Element> jsElements = pageImports.getJsElements();
-
         JQCommand headElementsCommand = new JQCommand(JQTaconite.ADD_HEADER);
         headElementsCommand.setContent(headElements);
 
@@ -1663,23 +2232,26 @@ public class JQTaconite extends ActionResult {
         // commands
         if (headElementsCommand.getContent().size() > 0) {
             int i = 0;
-            for (int size = commands.size(); i < size; i++) {
-                JQCommand command = commands.get(i);
+            for (int size = processed.size(); i < size; i++) {
+                JQCommand command = processed.get(i);
                 if (!CUSTOM.equals(command.getCommand())) {
                     break;
                 }
             }
-            commands.add(i, headElementsCommand);
+            processed.add(i, headElementsCommand);
         }
 
         // Add JsScript elements at the bottom of the command list
         if(jsScriptsCommand.getContent().size() > 0) {
-            commands.add(jsScriptsCommand);
+            processed.add(jsScriptsCommand);
         }
         // Add eval commands last
         if (evalCommands != null) {
-            commands.addAll(evalCommands);
+            processed.addAll(evalCommands);
         }
+
+        commands.clear();
+        commands.addAll(processed);
     }
 
     /**
@@ -1714,6 +2286,19 @@ public class JQTaconite extends ActionResult {
 
     // ------------------------------------------------ Package Private Methods
 
+    /**
+     * Store the fingerprints of the diffed markup in the session, once the
+     * markup was written to the response.
+     *
+     * @param context the request context
+     */
+    void commitDiff(Context context) {
+        if (diffFingerprints != null && !diffFingerprints.isEmpty()) {
+            DomDiff.commit(context, diffFingerprints);
+            diffFingerprints = null;
+        }
+    }
+
     /**
      * Process the HEAD elements of the given command and add the elements to
      * pageImports.
@@ -1737,6 +2322,27 @@ public class JQTaconite extends ActionResult {
         }
     }
 
+    /**
+     * Return the Control replaced by itself by the given command, or null if
+     * the command does not replace a Control by itself.
+     *
+     * @param command the command to check
+     * @return the Control replaced by the command or null
+     */
+    Control getReplacedControl(JQCommand command) {
+        if (command.getClass() != JQCommand.class
+            || !REPLACE.equals(command.getCommand())
+            || command.getContent().size() != 1
+            || !(command.getContent().get(0) instanceof Control)) {
+            return null;
+        }
+        Control control = (Control) command.getContent().get(0);
+        if (!StringUtils.equals(command.getSelector(), ClickUtils.getCssSelector(control))) {
+            return null;
+        }
+        return control;
+    }
+
     /**
      * Add the JavaScript elements (JsImport and JsScript) to either one of the
      * two given commands. JsScript elements must be added to jsScriptsCommand
@@ -1755,6 +2361,7 @@ public class JQTaconite extends ActionResult {
             Element element = (Element) it.next();
             if (element instanceof JsScript) {
                 JsScript jsScript = (JsScript) element;
+                // The browser parses scripts as XML, in JSON format too
                 jsScript.setCharacterData(true);
 
                 // If any JavaScript relies on a DOM ready function, we need to
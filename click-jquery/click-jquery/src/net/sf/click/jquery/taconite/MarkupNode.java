@@ -0,0 +1,489 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.taconite;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.lang.StringEscapeUtils;
+
+/**
+ * Provides the fingerprint of an element of rendered markup, used to compute
+ * the difference between two renderings of a Control.
+ * <p/>
+ * A node keeps its tag, its attributes and its child elements. Text and
+ * comments are only kept as a hash, which keeps the fingerprint small
+ * enough to store in the session.
+ * <p/>
+ * The parser only accepts the well formed markup rendered by Click controls.
+ * Markup which the browser parses into a different DOM is rejected so that
+ * the diff never targets the wrong element. This includes unbalanced tags,
+ * elements which implicitly close an open element, such as a
+ * <tt>&lt;div&gt;</tt> inside a <tt>&lt;p&gt;</tt> or nested links, and
+ * table or select content which the browser moves or wraps in an implicit
+ * element, such as table rows outside a table section.
+ */
+final class MarkupNode implements Serializable {
+
+    // -------------------------------------------------------------- Constants
+
+    private static final long serialVersionUID = 1L;
+
+    /** Elements which have no content and no end tag. */
+    private static final Set<String> VOID_ELEMENTS = new HashSet<String>(Arrays.asList(
+        "area", "base", "br", "col", "hr", "img", "input", "link", "meta", "param"));
+
+    /** Elements which content is raw text. */
+    static final Set<String> RAW_TEXT_ELEMENTS = new HashSet<String>(Arrays.asList(
+        "script", "style", "textarea", "title"));
+
+    /** Elements which the browser does not parse into child elements. */
+    private static final Set<String> UNSUPPORTED_ELEMENTS = new HashSet<String>(Arrays.asList(
+        "body", "frameset", "head", "html", "iframe", "noembed", "noframes", "noscript",
+        "plaintext", "template", "xmp"));
+
+    /** Elements which start tag closes an open paragraph. */
+    private static final Set<String> PARAGRAPH_CLOSERS = new HashSet<String>(Arrays.asList(
+        "address", "article", "aside", "blockquote", "center", "dd", "details", "dialog",
+        "dir", "div", "dl", "dt", "fieldset", "figcaption", "figure", "footer", "form", "h1",
+        "h2", "h3", "h4", "h5", "h6", "header", "hgroup", "hr", "li", "listing", "main",
+        "menu", "nav", "ol", "p", "pre", "section", "summary", "table", "ul"));
+
+    /** Elements which limit the scope of an open paragraph, link or button. */
+    private static final Set<String> SCOPE_ELEMENTS = new HashSet<String>(Arrays.asList(
+        "applet", "caption", "marquee", "object", "table", "td", "th"));
+
+    /** Elements which stop the implicit closing of an open list item. */
+    private static final Set<String> LIST_ITEM_SCOPE_ELEMENTS = new HashSet<String>(
+        Arrays.asList("applet", "article", "aside", "blockquote", "button", "caption",
+        "center", "dd", "details", "dialog", "dir", "dl", "dt", "fieldset", "figcaption",
+        "figure", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6", "header", "hgroup",
+        "li", "listing", "main", "marquee", "menu", "nav", "object", "ol", "pre", "section",
+        "select", "summary", "table", "tbody", "td", "textarea", "tfoot", "th", "thead",
+        "tr", "ul"));
+
+    private static final Set<String> HEADINGS = new HashSet<String>(Arrays.asList(
+        "h1", "h2", "h3", "h4", "h5", "h6"));
+
+    /** Elements which are ignored outside the element allowed to contain them. */
+    private static final Set<String> TABLE_ELEMENTS = new HashSet<String>(Arrays.asList(
+        "caption", "col", "colgroup", "tbody", "td", "tfoot", "th", "thead", "tr"));
+
+    /** Elements which text is moved before the table. */
+    private static final Set<String> TABLE_CONTEXT_ELEMENTS = new HashSet<String>(
+        Arrays.asList("colgroup", "table", "tbody", "tfoot", "thead", "tr"));
+
+    /**
+     * The child elements allowed in table and select elements. Other elements
+     * are moved before the table, wrapped in an implicit element or ignored.
+     */
+    private static final Map<String, Set<String>> ALLOWED_CHILDREN =
+        new HashMap<String, Set<String>>();
+
+    static {
+        Set<String> section = new HashSet<String>(Arrays.asList("tr", "script", "style"));
+        ALLOWED_CHILDREN.put("table", new HashSet<String>(Arrays.asList(
+            "caption", "colgroup", "tbody", "tfoot", "thead", "script", "style")));
+        ALLOWED_CHILDREN.put("tbody", section);
+        ALLOWED_CHILDREN.put("tfoot", section);
+        ALLOWED_CHILDREN.put("thead", section);
+        ALLOWED_CHILDREN.put("tr", new HashSet<String>(Arrays.asList(
+            "td", "th", "script", "style")));
+        ALLOWED_CHILDREN.put("colgroup", new HashSet<String>(Arrays.asList("col")));
+        ALLOWED_CHILDREN.put("select", new HashSet<String>(Arrays.asList(
+            "option", "optgroup", "script")));
+        ALLOWED_CHILDREN.put("optgroup", new HashSet<String>(Arrays.asList(
+            "option", "script")));
+        ALLOWED_CHILDREN.put("option", new HashSet<String>());
+    }
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    // -------------------------------------------------------------- Variables
+
+    /** The lower case tag name. */
+    final String tag;
+
+    /** The attribute names and unescaped values, in name/value pairs. */
+    final String[] attributes;
+
+    /** The child elements. */
+    final List<MarkupNode> children = new ArrayList<MarkupNode>(4);
+
+    /** The hash of the text, comments and child tags of the element. */
+    long contentHash = FNV_OFFSET;
+
+    /** The hash of the element and all its descendants. */
+    long hash;
+
+    /** The offset of the start tag in the parsed markup. */
+    transient int start;
+
+    /** The offset of the content in the parsed markup. */
+    transient int contentStart;
+
+    /** The offset of the end tag in the parsed markup. */
+    transient int contentEnd;
+
+    /** The offset after the end tag in the parsed markup. */
+    transient int end;
+
+    // ----------------------------------------------------------- Constructors
+
+    private MarkupNode(String tag, String[] attributes) {
+        this.tag = tag;
+        this.attributes = attributes;
+    }
+
+    // ------------------------------------------------ Package Private Methods
+
+    /**
+     * Parse the given markup and return its root element, or null if the
+     * markup does not consist of a single well formed root element.
+     *
+     * @param markup the markup to parse
+     * @return the root element of the markup or null
+     */
+    static MarkupNode parse(String markup) {
+        List<MarkupNode> stack = new ArrayList<MarkupNode>();
+        MarkupNode root = null;
+        int length = markup.length();
+        int pos = 0;
+
+        while (pos < length) {
+            int lt = markup.indexOf('<', pos);
+            int textEnd = (lt == -1) ? length : lt;
+            if (textEnd > pos) {
+                if (stack.isEmpty()) {
+                    if (!isBlank(markup, pos, textEnd)) {
+                        return null;
+                    }
+                } else {
+                    MarkupNode parent = current(stack);
+                    if (TABLE_CONTEXT_ELEMENTS.contains(parent.tag)
+                        && !isBlank(markup, pos, textEnd)) {
+                        return null;
+                    }
+                    parent.addContent(markup, pos, textEnd);
+                }
+            }
+            if (lt == -1) {
+                break;
+            }
+
+            if (markup.startsWith("<!--", lt)) {
+                int close = markup.indexOf("-->", lt + 4);
+                if (close == -1 || stack.isEmpty()) {
+                    return null;
+                }
+                pos = close + 3;
+                current(stack).addContent(markup, lt, pos);
+
+            } else if (markup.startsWith("</", lt)) {
+                int gt = markup.indexOf('>', lt);
+                if (gt == -1 || stack.isEmpty()) {
+                    return null;
+                }
+                String name = markup.substring(lt + 2, gt).trim().toLowerCase();
+                MarkupNode node = stack.remove(stack.size() - 1);
+                if (!node.tag.equals(name)) {
+                    return null;
+                }
+                pos = gt + 1;
+                node.close(lt, pos);
+
+            } else if (lt + 1 < length && Character.isLetter(markup.charAt(lt + 1))) {
+                MarkupNode parent = stack.isEmpty() ? null : current(stack);
+                int[] tagEnd = new int[2];
+                MarkupNode node = parseStartTag(markup, lt, tagEnd);
+                if (node == null || UNSUPPORTED_ELEMENTS.contains(node.tag)) {
+                    return null;
+                }
+                if (parent == null) {
+                    if (root != null) {
+                        return null;
+                    }
+                    root = node;
+                } else {
+                    if (!isNestable(stack, node.tag)) {
+                        return null;
+                    }
+                    parent.addChild(node);
+                }
+                node.start = lt;
+                pos = tagEnd[0];
+                node.contentStart = pos;
+
+                if (tagEnd[1] == 1 || VOID_ELEMENTS.contains(node.tag)) {
+                    node.close(pos, pos);
+                } else if (RAW_TEXT_ELEMENTS.contains(node.tag)) {
+                    int close = indexOfIgnoreCase(markup, "</" + node.tag, pos);
+                    int gt = (close == -1) ? -1 : markup.indexOf('>', close);
+                    if (gt == -1) {
+                        return null;
+                    }
+                    node.addContent(markup, pos, close);
+                    pos = gt + 1;
+                    node.close(close, pos);
+                } else {
+                    stack.add(node);
+                }
+
+            } else {
+                // DOCTYPE, processing instructions and stray '<' characters
+                return null;
+            }
+        }
+
+        if (!stack.isEmpty()) {
+            return null;
+        }
+        return root;
+    }
+
+    /**
+     * Return the value of the given attribute, or null if the attribute is
+     * not set.
+     *
+     * @param name the attribute name
+     * @return the attribute value or null
+     */
+    String getAttribute(String name) {
+        for (int i = 0; i < attributes.length; i += 2) {
+            if (attributes[i].equals(name)) {
+                return attributes[i + 1];
+            }
+        }
+        return null;
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    private void addContent(String markup, int from, int to) {
+        long h = contentHash;
+        for (int i = from; i < to; i++) {
+            h = (h ^ markup.charAt(i)) * FNV_PRIME;
+        }
+        contentHash = (h ^ 0xff) * FNV_PRIME;
+    }
+
+    private void addChild(MarkupNode child) {
+        children.add(child);
+        long h = contentHash;
+        for (int i = 0, length = child.tag.length(); i < length; i++) {
+            h = (h ^ child.tag.charAt(i)) * FNV_PRIME;
+        }
+        contentHash = (h ^ 0xfe) * FNV_PRIME;
+    }
+
+    private void close(int contentEnd, int end) {
+        this.contentEnd = contentEnd;
+        this.end = end;
+
+        long h = FNV_OFFSET;
+        h = mix(h, tag);
+        for (int i = 0; i < attributes.length; i++) {
+            h = mix(h, attributes[i]);
+        }
+        h = (h ^ contentHash) * FNV_PRIME;
+        for (int i = 0, size = children.size(); i < size; i++) {
+            h = (h ^ children.get(i).hash) * FNV_PRIME;
+        }
+        hash = h;
+    }
+
+    /**
+     * Parse the start tag at the given offset. The offset after the tag is
+     * returned in tagEnd[0], and tagEnd[1] is set to 1 if the tag is self
+     * closing.
+     */
+    private static MarkupNode parseStartTag(String markup, int lt, int[] tagEnd) {
+        int length = markup.length();
+        int pos = lt + 1;
+        while (pos < length && isNameChar(markup.charAt(pos))) {
+            pos++;
+        }
+        String tag = markup.substring(lt + 1, pos).toLowerCase();
+
+        List<String> attributes = new ArrayList<String>();
+        while (true) {
+            while (pos < length && Character.isWhitespace(markup.charAt(pos))) {
+                pos++;
+            }
+            if (pos >= length) {
+                return null;
+            }
+            char ch = markup.charAt(pos);
+            if (ch == '>') {
+                pos++;
+                break;
+            }
+            if (ch == '/' && pos + 1 < length && markup.charAt(pos + 1) == '>') {
+                pos += 2;
+                tagEnd[1] = 1;
+                break;
+            }
+
+            int nameStart = pos;
+            while (pos < length && isNameChar(markup.charAt(pos))) {
+                pos++;
+            }
+            if (pos == nameStart) {
+                return null;
+            }
+            String name = markup.substring(nameStart, pos).toLowerCase();
+            String value = "";
+            while (pos < length && Character.isWhitespace(markup.charAt(pos))) {
+                pos++;
+            }
+            if (pos < length && markup.charAt(pos) == '=') {
+                pos++;
+                while (pos < length && Character.isWhitespace(markup.charAt(pos))) {
+                    pos++;
+                }
+                if (pos >= length) {
+                    return null;
+                }
+                char quote = markup.charAt(pos);
+                int valueStart;
+                int valueEnd;
+                if (quote == '"' || quote == '\'') {
+                    valueStart = pos + 1;
+                    valueEnd = markup.indexOf(quote, valueStart);
+                    if (valueEnd == -1) {
+                        return null;
+                    }
+                    pos = valueEnd + 1;
+                } else {
+                    valueStart = pos;
+                    while (pos < length && !Character.isWhitespace(markup.charAt(pos))
+                        && markup.charAt(pos) != '>') {
+                        pos++;
+                    }
+                    valueEnd = pos;
+                }
+                value = StringEscapeUtils.unescapeHtml(markup.substring(valueStart, valueEnd));
+            }
+            attributes.add(name);
+            attributes.add(value);
+        }
+
+        tagEnd[0] = pos;
+        return new MarkupNode(tag, attributes.toArray(new String[attributes.size()]));
+    }
+
+    /**
+     * Return true if the browser parses an element with the given tag as a
+     * child of the current element of the given stack of open elements.
+     */
+    private static boolean isNestable(List<MarkupNode> stack, String tag) {
+        String parent = current(stack).tag;
+        Set<String> allowed = ALLOWED_CHILDREN.get(parent);
+        if (allowed != null) {
+            return allowed.contains(tag);
+        }
+        if (TABLE_ELEMENTS.contains(tag)) {
+            return false;
+        }
+
+        if (PARAGRAPH_CLOSERS.contains(tag) && isOpen(stack, "p", true)) {
+            return false;
+        }
+        if (HEADINGS.contains(tag) && HEADINGS.contains(parent)) {
+            return false;
+        }
+        if ("a".equals(tag) || "button".equals(tag)) {
+            return !isOpen(stack, tag, false);
+        }
+        if ("form".equals(tag)) {
+            for (int i = stack.size() - 1; i >= 0; i--) {
+                if ("form".equals(stack.get(i).tag)) {
+                    return false;
+                }
+            }
+        }
+        if ("li".equals(tag) || "dd".equals(tag) || "dt".equals(tag)) {
+            for (int i = stack.size() - 1; i >= 0; i--) {
+                String open = stack.get(i).tag;
+                if (open.equals(tag) || (!"li".equals(tag)
+                    && ("dd".equals(open) || "dt".equals(open)))) {
+                    return false;
+                }
+                if (LIST_ITEM_SCOPE_ELEMENTS.contains(open)) {
+                    break;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Return true if an element with the given tag is open in the scope of
+     * the current element, which is also limited by buttons if buttonScope is
+     * true.
+     */
+    private static boolean isOpen(List<MarkupNode> stack, String tag, boolean buttonScope) {
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            String open = stack.get(i).tag;
+            if (open.equals(tag)) {
+                return true;
+            }
+            if (SCOPE_ELEMENTS.contains(open) || (buttonScope && "button".equals(open))) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static long mix(long h, String value) {
+        for (int i = 0, length = value.length(); i < length; i++) {
+            h = (h ^ value.charAt(i)) * FNV_PRIME;
+        }
+        return (h ^ 0xff) * FNV_PRIME;
+    }
+
+    private static MarkupNode current(List<MarkupNode> stack) {
+        return stack.get(stack.size() - 1);
+    }
+
+    private static boolean isNameChar(char ch) {
+        return Character.isLetterOrDigit(ch) || ch == '-' || ch == '_' || ch == ':'
+            || ch == '.';
+    }
+
+    private static boolean isBlank(String markup, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!Character.isWhitespace(markup.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int indexOfIgnoreCase(String markup, String value, int from) {
+        for (int i = from, last = markup.length() - value.length(); i <= last; i++) {
+            if (markup.regionMatches(true, i, value, 0, value.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.taconite;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import org.apache.click.Context;
+import org.apache.click.Control;
+import org.apache.click.service.LogService;
+import org.apache.click.util.ClickUtils;
+import org.apache.click.util.HtmlStringBuffer;
+
+/**
+ * Provides the parallel rendering of the Controls of JQTaconite commands.
+ * <p/>
+ * Each Control is rendered on the executor into its own buffer, and the
+ * rendered markup replaces the Control in the command content, so the
+ * commands are still rendered in order. Controls rejected by the executor,
+ * for example because its queue is full, are rendered by the calling thread.
+ * So are Controls still queued once the calling thread collects the markup,
+ * thus the request never waits behind other requests or on an executor which
+ * discards tasks.
+ * <p/>
+ * The request Context is made available to the rendering threads, as
+ * Controls look it up through <tt>Context.getThreadLocalContext()</tt>. Click
+ * does not expose the Context stack, thus its non public methods are called
+ * through reflection. If that is not permitted, for example by a security
+ * manager or a Click version without these methods, a warning is logged once
+ * and Controls are rendered sequentially.
+ * <p/>
+ * Click makes no thread safety promises for Pages, Controls or template
+ * rendering. Parallel rendering is opted into by setting a render executor,
+ * and the Controls rendered must be thread safe, see
+ * {@link JQTaconite#setRenderExecutor(java.util.concurrent.Executor)}.
+ */
+final class ParallelRenderer {
+
+    // -------------------------------------------------------------- Constants
+
+    /** The Context.pushThreadLocalContext method, or null if not accessible. */
+    private static final Method PUSH_CONTEXT;
+
+    /** The Context.popThreadLocalContext method, or null if not accessible. */
+    private static final Method POP_CONTEXT;
+
+    /** The reason the Context methods are not accessible, or null. */
+    private static final Exception LOOKUP_FAILURE;
+
+    static {
+        Method push = null;
+        Method pop = null;
+        Exception failure = null;
+        try {
+            push = Context.class.getDeclaredMethod("pushThreadLocalContext", Context.class);
+            pop = Context.class.getDeclaredMethod("popThreadLocalContext");
+            push.setAccessible(true);
+            pop.setAccessible(true);
+        } catch (Exception e) {
+            push = null;
+            pop = null;
+            failure = e;
+        }
+        PUSH_CONTEXT = push;
+        POP_CONTEXT = pop;
+        LOOKUP_FAILURE = failure;
+    }
+
+    // -------------------------------------------------------------- Variables
+
+    /** Indicates if the lookup failure was logged. */
+    private static volatile boolean failureLogged;
+
+    // ----------------------------------------------------------- Constructors
+
+    private ParallelRenderer() {
+    }
+
+    // ------------------------------------------------ Package Private Methods
+
+    /**
+     * Render the Controls of the given commands on the given executor and
+     * replace them with their markup. Nothing is done if the commands contain
+     * less than two Controls.
+     *
+     * @param commands the commands which Controls to render
+     * @param executor the executor to render the Controls on
+     */
+    static void render(List<JQCommand> commands, Executor executor) {
+        if (!Context.hasThreadLocalContext()) {
+            return;
+        }
+        if (PUSH_CONTEXT == null) {
+            logLookupFailure(Context.getThreadLocalContext());
+            return;
+        }
+
+        List<List> contents = new ArrayList<List>();
+        List<Integer> indexes = new ArrayList<Integer>();
+        for (int i = 0, size = commands.size(); i < size; i++) {
+            JQCommand command = commands.get(i);
+            if (command.getClass() != JQCommand.class) {
+                continue;
+            }
+            List content = command.getContent();
+            for (int j = 0, count = content.size(); j < count; j++) {
+                if (content.get(j) instanceof Control) {
+                    contents.add(content);
+                    indexes.add(j);
+                }
+            }
+        }
+        if (contents.size() < 2) {
+            return;
+        }
+
+        Context context = Context.getThreadLocalContext();
+        List<FutureTask<String>> tasks = new ArrayList<FutureTask<String>>(contents.size());
+        for (int i = 0, size = contents.size(); i < size; i++) {
+            Control control = (Control) contents.get(i).get(indexes.get(i));
+            FutureTask<String> task = new FutureTask<String>(new RenderTask(control, context));
+            tasks.add(task);
+
+            // The calling thread renders the last Control itself
+            if (i == size - 1) {
+                task.run();
+                continue;
+            }
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        }
+
+        for (int i = 0, size = tasks.size(); i < size; i++) {
+            contents.get(i).set(indexes.get(i), getMarkup(tasks.get(i)));
+        }
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    private static void logLookupFailure(Context context) {
+        if (failureLogged) {
+            return;
+        }
+        failureLogged = true;
+        LogService logger =
+            ClickUtils.getConfigService(context.getServletContext()).getLogService();
+        logger.warn("JQTaconite render executor ignored, Controls are rendered"
+            + " sequentially: the Click Context methods are not accessible", LOOKUP_FAILURE);
+    }
+
+    private static String getMarkup(FutureTask<String> task) {
+        // Render the Control if the executor has not started it yet, running
+        // a started task does nothing
+        task.run();
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while rendering", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    // ---------------------------------------------------------- Inner Classes
+
+    /**
+     * Provides the rendering of a Control with the request Context.
+     */
+    static class RenderTask implements Callable<String> {
+
+        private final Control control;
+
+        private final Context context;
+
+        RenderTask(Control control, Context context) {
+            this.control = control;
+            this.context = context;
+        }
+
+        public String call() throws Exception {
+            boolean pushed = false;
+            if (!Context.hasThreadLocalContext()
+                || Context.getThreadLocalContext() != context) {
+                PUSH_CONTEXT.invoke(null, context);
+                pushed = true;
+            }
+            try {
+                HtmlStringBuffer buffer = new HtmlStringBuffer();
+                control.render(buffer);
+                return buffer.toString();
+            } finally {
+                if (pushed) {
+                    POP_CONTEXT.invoke(null);
+                }
+            }
+        }
+    }
+}
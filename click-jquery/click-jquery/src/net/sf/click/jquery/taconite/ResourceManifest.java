@@ -0,0 +1,143 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.taconite;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.click.Context;
+import org.apache.click.element.CssImport;
+import org.apache.click.element.CssStyle;
+import org.apache.click.element.Element;
+import org.apache.click.element.JsImport;
+import org.apache.click.element.JsScript;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Provides the manifest of the resources already loaded by the browser.
+ * <p/>
+ * <tt>jquery.click.js</tt> sends the {@link #RESOURCES_HEADER} request header
+ * with every Ajax request: a comma separated list of the digests of the
+ * JavaScript and CSS imports, and the scripts and styles with an ID, loaded
+ * by the page. HEAD elements in the manifest are not sent again, as the
+ * browser would ignore them anyway.
+ * <p/>
+ * A digest is the 32 bit FNV-1a hash, in base 36, of
+ * "<tt>js:</tt>" plus the script <tt>src</tt>, "<tt>css:</tt>" plus the link
+ * <tt>href</tt>, or "<tt>id:</tt>" plus the element ID. JsScripts executed
+ * on DOM ready are always sent, as they run on every request.
+ * <p/>
+ * The browser computes the same digests in <tt>Click.jq.resourceDigest</tt>.
+ */
+final class ResourceManifest {
+
+    // -------------------------------------------------------------- Constants
+
+    /** The request header listing the digests of the loaded resources. */
+    static final String RESOURCES_HEADER = "X-Click-Resources";
+
+    private static final int FNV_OFFSET = 0x811c9dc5;
+
+    private static final int FNV_PRIME = 16777619;
+
+    // ----------------------------------------------------------- Constructors
+
+    private ResourceManifest() {
+    }
+
+    // ------------------------------------------------ Package Private Methods
+
+    /**
+     * Return the digests of the resources loaded by the browser, or an empty
+     * set if the request has no manifest.
+     *
+     * @param context the request context
+     * @return the digests of the loaded resources
+     */
+    static Set<String> getLoadedResources(Context context) {
+        String header = context.getRequest().getHeader(RESOURCES_HEADER);
+        if (StringUtils.isBlank(header)) {
+            return Collections.emptySet();
+        }
+        Set<String> digests = new HashSet<String>();
+        Collections.addAll(digests, StringUtils.split(header, ", "));
+        return digests;
+    }
+
+    /**
+     * Return the given elements without the elements loaded by the browser.
+     *
+     * @param elements the HEAD elements to filter
+     * @param loaded the digests of the loaded resources
+     * @return the elements not loaded by the browser
+     */
+    static List<Element> removeLoaded(List<Element> elements, Set<String> loaded) {
+        if (loaded.isEmpty() || elements.isEmpty()) {
+            return elements;
+        }
+        List<Element> result = new ArrayList<Element>(elements.size());
+        for (int i = 0, size = elements.size(); i < size; i++) {
+            Element element = elements.get(i);
+            String digest = getDigest(element);
+            if (digest == null || !loaded.contains(digest)) {
+                result.add(element);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Return the digest of the given HEAD element, or null if the element
+     * cannot be identified.
+     *
+     * @param element the HEAD element
+     * @return the digest of the element or null
+     */
+    static String getDigest(Element element) {
+        if (element instanceof JsImport) {
+            String src = ((JsImport) element).getSrc();
+            return (src == null) ? null : digest("js:" + src);
+        }
+        if (element instanceof CssImport) {
+            String href = ((CssImport) element).getHref();
+            return (href == null) ? null : digest("css:" + href);
+        }
+        if (element instanceof JsScript && ((JsScript) element).isExecuteOnDomReady()) {
+            // DOM ready scripts are executed on every Ajax request
+            return null;
+        }
+        if (element instanceof JsScript || element instanceof CssStyle) {
+            String id = element.getId();
+            return StringUtils.isBlank(id) ? null : digest("id:" + id);
+        }
+        return null;
+    }
+
+    /**
+     * Return the 32 bit FNV-1a hash of the given value in base 36.
+     *
+     * @param value the value to hash
+     * @return the hash of the value
+     */
+    static String digest(String value) {
+        int h = FNV_OFFSET;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            h ^= value.charAt(i);
+            h *= FNV_PRIME;
+        }
+        return Long.toString(h & 0xffffffffL, 36);
+    }
+}
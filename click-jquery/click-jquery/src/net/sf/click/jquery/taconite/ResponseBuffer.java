@@ -0,0 +1,108 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.taconite;
+
+import java.io.IOException;
+import java.io.Writer;
+import net.sf.click.jquery.util.StringEscaper;
+import org.apache.click.util.HtmlStringBuffer;
+
+/**
+ * Provides a bounded HtmlStringBuffer which is written to a Writer as the
+ * buffer fills up.
+ * <p/>
+ * HtmlStringBuffer cannot be drained while a value is appended, so the
+ * buffer is only written at safe points, between JQTaconite commands and
+ * between the content items of a command. A single item larger than the
+ * buffer temporarily grows the buffer, which shrinks back once written.
+ * Escaped values larger than the free space of the buffer are escaped
+ * straight into the writer instead.
+ */
+class ResponseBuffer extends HtmlStringBuffer {
+
+    // -------------------------------------------------------------- Variables
+
+    /** The writer the buffer is written to. */
+    private final Writer writer;
+
+    /** The buffer size after which the buffer is written to the writer. */
+    private final int size;
+
+    // ----------------------------------------------------------- Constructors
+
+    /**
+     * Create a new ResponseBuffer for the given writer and buffer size.
+     *
+     * @param writer the writer to write the buffer to
+     * @param size the size after which the buffer is written
+     */
+    ResponseBuffer(Writer writer, int size) {
+        super(size);
+        if (writer == null) {
+            throw new IllegalArgumentException("Null writer parameter");
+        }
+        this.writer = writer;
+        this.size = size;
+    }
+
+    // ------------------------------------------------ Package Private Methods
+
+    /**
+     * Write and flush the buffer if it reached its size.
+     */
+    void flushIfFull() {
+        if (count >= size) {
+            flush();
+        }
+    }
+
+    /**
+     * Append the given value escaped with the given escaper. If the value does
+     * not fit in the buffer, the buffer is written and the value is escaped
+     * straight into the writer.
+     *
+     * @param value the value to append
+     * @param escaper the escaper of the value
+     */
+    void appendEscaped(String value, StringEscaper escaper) {
+        if (count + value.length() <= size) {
+            append(escaper.escape(value));
+            return;
+        }
+        try {
+            writer.write(characters, 0, count);
+            count = 0;
+            escaper.escape(value, writer);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write the buffer to the writer and flush the writer.
+     */
+    void flush() {
+        try {
+            writer.write(characters, 0, count);
+            writer.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        count = 0;
+        if (characters.length > size) {
+            // Release the memory of an oversized content item
+            characters = new char[size];
+        }
+    }
+}
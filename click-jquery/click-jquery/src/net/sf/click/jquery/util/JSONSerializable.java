@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.util;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a bean class for which a dedicated JSON serializer is generated at
+ * compile time.
+ * <p/>
+ * When the <tt>click-jquery-apt</tt> annotation processor is on the compiler
+ * classpath, it generates a {@link JSONTypeAdapter} for each annotated class.
+ * The serializer is named after the class with the {@link #SUFFIX} appended,
+ * for example <tt>com.mycorp.ChartPoint_JSONSerializer</tt> for
+ * <tt>com.mycorp.ChartPoint</tt>, and <tt>com.mycorp.Chart_Point_JSONSerializer</tt>
+ * for the nested class <tt>com.mycorp.Chart.Point</tt>.
+ * <p/>
+ * {@link JSONWriter} uses the generated serializer instead of reflection to
+ * write the bean's public properties and fields. If no serializer was
+ * generated, the bean is written through reflection as usual. Type adapters
+ * registered with
+ * {@link JSONWriter#registerTypeAdapter(java.lang.Class, net.sf.click.jquery.util.JSONTypeAdapter)}
+ * take precedence over generated serializers.
+ *
+ * <pre class="prettyprint">
+ * &#64;JSONSerializable
+ * public class ChartPoint {
+ *
+ *     public int getX() { ... }
+ *
+ *     public int getY() { ... }
+ * } </pre>
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface JSONSerializable {
+
+    /** The suffix of generated serializer class names: "<tt>_JSONSerializer</tt>". */
+    String SUFFIX = "_JSONSerializer";
+}
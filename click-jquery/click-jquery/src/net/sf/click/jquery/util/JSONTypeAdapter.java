@@ -0,0 +1,53 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.util;
+
+import java.io.IOException;
+
+/**
+ * Provides the JSON representation of values of a specific type.
+ * <p/>
+ * Type adapters are registered with
+ * {@link JSONWriter#registerTypeAdapter(java.lang.Class, net.sf.click.jquery.util.JSONTypeAdapter)}
+ * and take precedence over the built-in JSONWriter conversions. For example:
+ *
+ * <pre class="prettyprint">
+ * JSONWriter.registerTypeAdapter(Money.class, new JSONTypeAdapter() {
+ *
+ *     public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+ *         Money money = (Money) value;
+ *         out.append("{\"amount\":");
+ *         out.append(money.getAmount().toPlainString());
+ *         out.append(",\"currency\":");
+ *         writer.writeString(money.getCurrency());
+ *         out.append('}');
+ *     }
+ * }); </pre>
+ */
+public interface JSONTypeAdapter {
+
+    /**
+     * Write the JSON representation of the given value to the given output.
+     * <p/>
+     * Nested values should be written through
+     * {@link JSONWriter#writeValue(java.lang.Object)} so that they are
+     * checked for cyclic references.
+     *
+     * @param value the value to write, never null
+     * @param writer the JSONWriter writing the value
+     * @param out the output to write to
+     * @throws IOException if the output cannot be written
+     */
+    void write(Object value, JSONWriter writer, Appendable out) throws IOException;
+}
@@ -4,16 +4,28 @@ import java.beans.BeanInfo;
 import java.beans.IntrospectionException;
 import java.beans.Introspector;
 import java.beans.PropertyDescriptor;
+import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Provides a JSON Writer that will output its content in the JSON format.
@@ -33,12 +45,72 @@ public class JSONWriter {
 
     // -------------------------------------------------------------- variables
 
-    private StringBuilder builder = new StringBuilder();
+    private StringBuilder builder;
 
-    private ListStack<Object> calls = new ListStack<Object>();
+    /** The destination of the JSON output. */
+    private Appendable out;
+
+    /**
+     * The objects currently being written, mapped to their depth. Identity
+     * based so that cycle checks are constant time.
+     */
+    private Map<Object, Integer> calls = new IdentityHashMap<Object, Integer>();
 
     private boolean emitClassName = false;
 
+    /** The maximum nesting depth, 0 or less means unlimited. */
+    private int maxDepth = 0;
+
+    /** How cyclic references are written, defaults to {@link CyclePolicy#NULL}. */
+    private CyclePolicy cyclePolicy = CyclePolicy.NULL;
+
+    /** The escaper of JSON string values. */
+    private StringEscaper escaper = StringEscaper.JSON;
+
+    /** The indentation of one nesting level in formatted output. */
+    private String indent = "  ";
+
+    /** The line separator of formatted output. */
+    private String newline = "\n";
+
+    /** Indicates if the current output is formatted. */
+    private boolean formatted;
+
+    /** The current nesting level of formatted output. */
+    private int level;
+
+    /**
+     * Per class cache of bean accessors. Keys are weak and values are soft
+     * references so that cached classes (and their ClassLoaders) can be
+     * garbage collected after an application is redeployed.
+     */
+    private static final Map<Class<?>, Reference<BeanProperties>> BEAN_CACHE =
+        Collections.synchronizedMap(new WeakHashMap<Class<?>, Reference<BeanProperties>>());
+
+    /** The application registered type adapters, in registration order. */
+    private static final List<TypeRegistration> TYPE_ADAPTERS =
+        new CopyOnWriteArrayList<TypeRegistration>();
+
+    /**
+     * Per class cache of resolved type adapters. As for BEAN_CACHE, keys are
+     * weak and values are soft references: generated and registered adapters
+     * refer to the class, and would otherwise keep its ClassLoader alive.
+     */
+    private static final Map<Class<?>, Reference<JSONTypeAdapter>> ADAPTER_CACHE =
+        Collections.synchronizedMap(new WeakHashMap<Class<?>, Reference<JSONTypeAdapter>>());
+
+    /** Incremented each time the registered type adapters change. */
+    private static volatile int adapterGeneration;
+
+    /** The class of the last written value. */
+    private Class<?> lastClass;
+
+    /** The type adapter of the last written value. */
+    private JSONTypeAdapter lastAdapter;
+
+    /** The adapterGeneration lastAdapter was resolved in. */
+    private int lastGeneration;
+
     // ----------------------------------------------------------- constructors
 
     public JSONWriter(boolean emitClassName) {
@@ -48,143 +120,635 @@ public class JSONWriter {
     public JSONWriter() {
     }
 
+    // ------------------------------------------------------------ constants
+
+    /**
+     * Specifies how a cyclic reference, an object which refers back to an
+     * object that is still being written, is handled.
+     */
+    public enum CyclePolicy {
+
+        /** Write the cyclic reference as <tt>null</tt>. */
+        NULL,
+
+        /**
+         * Write the cyclic reference as <tt>{"$ref":depth}</tt>, where depth
+         * is the nesting depth of the referenced object, 0 being the root.
+         */
+        REFERENCE,
+
+        /** Throw an IllegalStateException. */
+        FAIL
+    }
+
+    // ------------------------------------------------------- public properties
+
+    /**
+     * Return the maximum nesting depth of maps, arrays, collections and beans.
+     *
+     * @return the maximum nesting depth, 0 or less means unlimited
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Set the maximum nesting depth of maps, arrays, collections and beans.
+     * Writing an object graph that is nested deeper fails with an
+     * IllegalStateException.
+     *
+     * @param maxDepth the maximum nesting depth, 0 or less means unlimited
+     */
+    public void setMaxDepth(int maxDepth) {
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Return how cyclic references are written.
+     *
+     * @return the cycle policy
+     */
+    public CyclePolicy getCyclePolicy() {
+        return cyclePolicy;
+    }
+
+    /**
+     * Set how cyclic references are written.
+     *
+     * @param cyclePolicy the cycle policy
+     */
+    public void setCyclePolicy(CyclePolicy cyclePolicy) {
+        if (cyclePolicy == null) {
+            throw new IllegalArgumentException("Null cyclePolicy parameter");
+        }
+        this.cyclePolicy = cyclePolicy;
+    }
+
+    /**
+     * Return true if string values are escaped so that the output can be
+     * inlined anywhere in a HTML script element, false otherwise.
+     *
+     * @return true if string values are escaped to be script safe
+     */
+    public boolean isScriptSafe() {
+        return escaper == StringEscaper.JSON_SCRIPT_SAFE;
+    }
+
+    /**
+     * Set whether string values are escaped so that the output can be inlined
+     * anywhere in a HTML script element. If true, the characters
+     * <tt>&lt;</tt>, <tt>&gt;</tt>, <tt>&amp;</tt>, <tt>'</tt> and the line
+     * terminators U+2028 and U+2029 are written as unicode escapes.
+     *
+     * @param scriptSafe true if string values should be script safe
+     */
+    public void setScriptSafe(boolean scriptSafe) {
+        escaper = scriptSafe ? StringEscaper.JSON_SCRIPT_SAFE : StringEscaper.JSON;
+    }
+
+    /**
+     * Return the indentation of one nesting level in formatted output.
+     *
+     * @return the indentation of one nesting level
+     */
+    public String getIndent() {
+        return indent;
+    }
+
+    /**
+     * Set the indentation of one nesting level in formatted output, defaults
+     * to two spaces.
+     *
+     * @param indent the indentation of one nesting level
+     */
+    public void setIndent(String indent) {
+        if (indent == null) {
+            throw new IllegalArgumentException("Null indent parameter");
+        }
+        this.indent = indent;
+    }
+
+    /**
+     * Return the line separator of formatted output.
+     *
+     * @return the line separator of formatted output
+     */
+    public String getNewline() {
+        return newline;
+    }
+
+    /**
+     * Set the line separator of formatted output, defaults to "\n".
+     *
+     * @param newline the line separator of formatted output
+     */
+    public void setNewline(String newline) {
+        if (newline == null) {
+            throw new IllegalArgumentException("Null newline parameter");
+        }
+        this.newline = newline;
+    }
+
     // --------------------------------------------------------- public methods
 
+    /**
+     * Register the type adapter for the given type. The adapter is used for
+     * values of the given type and its subtypes, and takes precedence over
+     * the built-in conversions. If more than one registered type matches a
+     * value, the type registered last wins.
+     *
+     * @param type the type to register the adapter for
+     * @param adapter the adapter writing values of the given type
+     */
+    public static void registerTypeAdapter(Class<?> type, JSONTypeAdapter adapter) {
+        if (type == null) {
+            throw new IllegalArgumentException("Null type parameter");
+        }
+        if (adapter == null) {
+            throw new IllegalArgumentException("Null adapter parameter");
+        }
+        removeTypeAdapter(type);
+        TYPE_ADAPTERS.add(new TypeRegistration(type, adapter));
+        clearAdapterCache();
+    }
+
+    /**
+     * Remove the type adapter registered for the given type.
+     *
+     * @param type the type to remove the adapter for
+     */
+    public static void removeTypeAdapter(Class<?> type) {
+        for (TypeRegistration registration : TYPE_ADAPTERS) {
+            if (registration.type == type) {
+                TYPE_ADAPTERS.remove(registration);
+            }
+        }
+        clearAdapterCache();
+    }
+
     public String write(Object object) {
-        builder.setLength(0);
-        value(object);
+        if (builder == null) {
+            builder = new StringBuilder();
+        } else {
+            builder.setLength(0);
+        }
+        write(object, builder);
         return builder.toString();
     }
 
+    /**
+     * Append the JSON representation of the given object to the given
+     * StringBuilder.
+     *
+     * @param object the object to write
+     * @param builder the builder to append the JSON output to
+     */
+    public void write(Object object, StringBuilder builder) {
+        try {
+            write(object, (Appendable) builder);
+        } catch (IOException e) {
+            // StringBuilder does not throw IOException
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Write the JSON representation of the given object directly to the
+     * given Appendable, for example a {@link java.io.Writer} or StringBuilder.
+     * No intermediate String of the JSON output is created.
+     *
+     * @param object the object to write
+     * @param out the destination to write the JSON output to
+     * @throws IOException if the output cannot be written
+     */
+    public void write(Object object, Appendable out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Null out parameter");
+        }
+        this.out = out;
+        try {
+            value(object);
+        } finally {
+            this.out = null;
+            calls.clear();
+            level = 0;
+        }
+    }
+
+    /**
+     * Write the JSON representation of the given object to the given
+     * OutputStream using the UTF-8 encoding.
+     * <p/>
+     * The output is buffered and flushed when done, but the stream is not
+     * closed.
+     *
+     * @param object the object to write
+     * @param out the stream to write the JSON output to
+     * @throws IOException if the output cannot be written
+     */
+    public void write(Object object, OutputStream out) throws IOException {
+        if (out == null) {
+            throw new IllegalArgumentException("Null out parameter");
+        }
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+        write(object, writer);
+        writer.flush();
+    }
+
+    /**
+     * Write the given nested value to the current output. This method is
+     * intended for {@link JSONTypeAdapter}s and can only be invoked while a
+     * value is being written.
+     *
+     * @param value the nested value to write
+     * @throws IOException if the output cannot be written
+     */
+    public void writeValue(Object value) throws IOException {
+        checkWriting();
+        value(value);
+    }
+
+    /**
+     * Write the given String as a quoted and escaped JSON string to the
+     * current output. This method is intended for {@link JSONTypeAdapter}s
+     * and can only be invoked while a value is being written.
+     *
+     * @param value the String to write
+     * @throws IOException if the output cannot be written
+     */
+    public void writeString(String value) throws IOException {
+        checkWriting();
+        if (value == null) {
+            add("null");
+        } else {
+            string(value);
+        }
+    }
+
+    /**
+     * Return the JSON representation of the given object formatted for
+     * readability. Each map, bean and collection entry is written on its own
+     * line, indented by its nesting level. Arrays of primitives are written on
+     * a single line.
+     *
+     * @see #setIndent(java.lang.String)
+     * @see #setNewline(java.lang.String)
+     *
+     * @param object the object to write
+     * @return the formatted JSON representation of the given object
+     */
     public String writeFormatted(Object object) {
-        write(object);
-        String json = builder.toString();
-        return formatJson(json);
+        StringBuilder buffer = new StringBuilder();
+        try {
+            writeFormatted(object, buffer);
+        } catch (IOException e) {
+            // StringBuilder does not throw IOException
+            throw new RuntimeException(e);
+        }
+        return buffer.toString();
+    }
+
+    /**
+     * Write the formatted JSON representation of the given object to the
+     * given Appendable. The output is formatted in the same pass as it is
+     * written.
+     *
+     * @param object the object to write
+     * @param out the destination to write the JSON output to
+     * @throws IOException if the output cannot be written
+     */
+    public void writeFormatted(Object object, Appendable out) throws IOException {
+        formatted = true;
+        try {
+            write(object, out);
+        } finally {
+            formatted = false;
+        }
+    }
+
+    // ------------------------------------------------ package private methods
+
+    /**
+     * Return the generation of the registered type adapters, which changes
+     * each time an adapter is registered or removed.
+     *
+     * @return the generation of the registered type adapters
+     */
+    static int getAdapterGeneration() {
+        return adapterGeneration;
     }
 
     // -------------------------------------------------------- private methods
 
-    @SuppressWarnings("unchecked")
-    private void value(Object object) {
-        if (object == null || cyclic(object)) {
+    private void value(Object object) throws IOException {
+        if (object == null) {
             add("null");
+            return;
+        }
+
+        Class<?> cls = object.getClass();
+        JSONTypeAdapter adapter;
+        int generation = adapterGeneration;
+        if (cls == lastClass && generation == lastGeneration) {
+            adapter = lastAdapter;
         } else {
-            calls.push(object);
-            if (object instanceof Class) {
-                string(object);
-            } else if (object instanceof Boolean) {
-                add(object.toString());
-            } else if (object instanceof Number) {
-                add(object);
-            } else if (object instanceof String) {
-                string(object);
-            } else if (object instanceof Character) {
-                string(object);
-            } else if (object instanceof JSONLiteral) {
-                add(object);
-            } else if (object instanceof Map) {
-                map((Map) object);
-            } else if (object.getClass().isArray()) {
-                array(object);
-            } else if (object instanceof Iterator) {
-                array((Iterator) object);
-            } else if (object instanceof Collection) {
-                array(((Collection) object).iterator());
-            } else {
-                bean(object);
+            adapter = getTypeAdapter(cls, generation);
+            lastClass = cls;
+            lastAdapter = adapter;
+            lastGeneration = generation;
+        }
+
+        if (adapter instanceof BuiltInAdapter && ((BuiltInAdapter) adapter).leaf) {
+            // Values which cannot contain other values are not tracked
+            adapter.write(object, this, out);
+        } else if (enter(object)) {
+            adapter.write(object, this, out);
+            calls.remove(object);
+        }
+    }
+
+    private void checkWriting() {
+        if (out == null) {
+            throw new IllegalStateException("JSONWriter is not writing a value");
+        }
+    }
+
+    /**
+     * Return the type adapter for the given class, resolving and caching it
+     * on first use.
+     * <p/>
+     * The adapter is only cached if the registered adapters did not change
+     * since the given generation was read, so that a resolve racing with
+     * {@link #registerTypeAdapter(Class, JSONTypeAdapter)} does not cache
+     * the previous adapter after the cache was cleared.
+     *
+     * @param cls the class to lookup
+     * @param generation the adapterGeneration read before the lookup
+     * @return the type adapter for the given class
+     */
+    private static JSONTypeAdapter getTypeAdapter(Class<?> cls, int generation) {
+        Reference<JSONTypeAdapter> ref = ADAPTER_CACHE.get(cls);
+        JSONTypeAdapter adapter = (ref != null) ? ref.get() : null;
+        if (adapter == null) {
+            adapter = resolveTypeAdapter(cls);
+            synchronized (ADAPTER_CACHE) {
+                if (generation == adapterGeneration) {
+                    ADAPTER_CACHE.put(cls, new SoftReference<JSONTypeAdapter>(adapter));
+                }
             }
-            calls.pop();
         }
+        return adapter;
     }
 
-    private boolean cyclic(Object object) {
-        Iterator<Object> it = calls.iterator();
-        while (it.hasNext()) {
-            Object called = it.next();
-            if (object == called) {
-                return true;
+    /**
+     * Clear the cached type adapters after the registered adapters changed.
+     * The synchronized map locks on itself, so the generation check of
+     * {@link #getTypeAdapter(Class, int)} and the clear are atomic.
+     */
+    private static void clearAdapterCache() {
+        synchronized (ADAPTER_CACHE) {
+            ADAPTER_CACHE.clear();
+            adapterGeneration++;
+        }
+    }
+
+    private static JSONTypeAdapter resolveTypeAdapter(Class<?> cls) {
+        // Application registered adapters, most recent first
+        for (int i = TYPE_ADAPTERS.size() - 1; i >= 0; i--) {
+            TypeRegistration registration = TYPE_ADAPTERS.get(i);
+            if (registration.type.isAssignableFrom(cls)) {
+                return registration.adapter;
             }
         }
-        return false;
+
+        if (cls == String.class || cls == Character.class || cls == Class.class) {
+            return BuiltInAdapter.STRING;
+        } else if (cls == Boolean.class || Number.class.isAssignableFrom(cls)
+            || JSONLiteral.class.isAssignableFrom(cls)) {
+            return BuiltInAdapter.RAW;
+        } else if (Enum.class.isAssignableFrom(cls)) {
+            return BuiltInAdapter.ENUM;
+        } else if (Date.class.isAssignableFrom(cls)) {
+            return BuiltInAdapter.DATE;
+        } else if (Calendar.class.isAssignableFrom(cls)) {
+            return BuiltInAdapter.CALENDAR;
+        } else if (Options.class.isAssignableFrom(cls)) {
+            return BuiltInAdapter.OPTIONS;
+        } else if (Map.class.isAssignableFrom(cls)) {
+            return BuiltInAdapter.MAP;
+        } else if (cls.isArray()) {
+            if (cls == int[].class) {
+                return BuiltInAdapter.INT_ARRAY;
+            } else if (cls == long[].class) {
+                return BuiltInAdapter.LONG_ARRAY;
+            } else if (cls == double[].class) {
+                return BuiltInAdapter.DOUBLE_ARRAY;
+            } else if (cls == float[].class) {
+                return BuiltInAdapter.FLOAT_ARRAY;
+            } else if (cls == boolean[].class) {
+                return BuiltInAdapter.BOOLEAN_ARRAY;
+            } else if (cls.getComponentType().isPrimitive()) {
+                return BuiltInAdapter.PRIMITIVE_ARRAY;
+            }
+            return BuiltInAdapter.OBJECT_ARRAY;
+        } else if (Iterator.class.isAssignableFrom(cls)) {
+            return BuiltInAdapter.ITERATOR;
+        } else if (Collection.class.isAssignableFrom(cls)) {
+            return BuiltInAdapter.COLLECTION;
+        } else if (cls.isAnnotationPresent(JSONSerializable.class)) {
+            JSONTypeAdapter serializer = loadSerializer(cls);
+            if (serializer != null) {
+                return new GeneratedAdapter(serializer);
+            }
+        }
+        return BuiltInAdapter.BEAN;
+    }
+
+    /**
+     * Return a new instance of the serializer generated for the given
+     * {@link JSONSerializable} class, or null if no serializer was generated.
+     *
+     * @param cls the annotated bean class
+     * @return the generated serializer or null
+     */
+    private static JSONTypeAdapter loadSerializer(Class<?> cls) {
+        String name = cls.getName().replace('$', '_') + JSONSerializable.SUFFIX;
+        ClassLoader loader = cls.getClassLoader();
+        try {
+            Class<?> serializerClass = (loader != null)
+                ? Class.forName(name, true, loader) : Class.forName(name);
+            return (JSONTypeAdapter) serializerClass.newInstance();
+        } catch (ClassNotFoundException e) {
+            // The annotation processor did not run, fallback to reflection
+            return null;
+        } catch (InstantiationException e) {
+            throw new RuntimeException(e);
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Mark the given object as being written. If the object is already being
+     * written, the cyclic reference is handled according to the
+     * {@link #cyclePolicy} and false is returned.
+     *
+     * @param object the object about to be written
+     * @return true if the object should be written, false otherwise
+     * @throws IOException if the output cannot be written
+     */
+    private boolean enter(Object object) throws IOException {
+        Integer depth = calls.get(object);
+        if (depth != null) {
+            cyclic(object, depth.intValue());
+            return false;
+        }
+        int size = calls.size();
+        if (maxDepth > 0 && size >= maxDepth) {
+            throw new IllegalStateException("Maximum depth of " + maxDepth
+                + " exceeded while writing " + object.getClass().getName());
+        }
+        calls.put(object, Integer.valueOf(size));
+        return true;
+    }
+
+    private void cyclic(Object object, int depth) throws IOException {
+        switch (cyclePolicy) {
+            case REFERENCE:
+                add("{\"$ref\":");
+                add(Integer.toString(depth));
+                add('}');
+                break;
+            case FAIL:
+                throw new IllegalStateException("Cyclic reference to "
+                    + object.getClass().getName() + " at depth " + depth);
+            default:
+                add("null");
+                break;
+        }
     }
 
-    private void bean(Object object) {
-        add("{");
-        BeanInfo info;
+    private void bean(Object object) throws IOException {
+        open('{');
+        BeanProperties properties = getBeanProperties(object.getClass());
         boolean addedSomething = false;
         try {
-            info = Introspector.getBeanInfo(object.getClass());
-            PropertyDescriptor[] props = info.getPropertyDescriptors();
-            for (int i = 0; i < props.length; ++i) {
-                PropertyDescriptor prop = props[i];
-                String name = prop.getName();
-                Method accessor = prop.getReadMethod();
-                if ((emitClassName == true || !"class".equals(name)) && accessor
-                    != null) {
-                    if (!accessor.isAccessible()) {
-                        accessor.setAccessible(true);
-                    }
-                    Object value = accessor.invoke(object, (Object[]) null);
-                    if (addedSomething) {
-                        add(',');
-                    }
-                    add(name, value);
-                    addedSomething = true;
+            Method[] accessors = properties.accessors;
+            for (int i = 0; i < accessors.length; ++i) {
+                if (i == properties.classIndex && !emitClassName) {
+                    continue;
+                }
+                Object value = accessors[i].invoke(object, (Object[]) null);
+                separator(addedSomething);
+                add(properties.accessorNames[i]);
+                if (formatted) {
+                    add(' ');
                 }
+                value(value);
+                addedSomething = true;
             }
-            Field[] ff = object.getClass().getFields();
-            for (int i = 0; i < ff.length; ++i) {
-                Field field = ff[i];
-                if (addedSomething) {
-                    add(',');
+            Field[] fields = properties.fields;
+            for (int i = 0; i < fields.length; ++i) {
+                separator(addedSomething);
+                add(properties.fieldNames[i]);
+                if (formatted) {
+                    add(' ');
                 }
-                add(field.getName(), field.get(object));
+                value(fields[i].get(object));
                 addedSomething = true;
             }
         } catch (IllegalAccessException iae) {
             throw new RuntimeException(iae);
         } catch (InvocationTargetException ite) {
             throw new RuntimeException(ite);
-        } catch (IntrospectionException ie) {
-            throw new RuntimeException(ie);
         }
-        add("}");
+        close('}', !addedSomething);
     }
 
-    private void add(String name, Object value) {
-        add('"');
-        add(name);
-        add("\":");
-        value(value);
+    /**
+     * Return the cached BeanProperties for the given class, introspecting the
+     * class on first use.
+     *
+     * @param cls the bean class to lookup
+     * @return the BeanProperties of the given class
+     */
+    private static BeanProperties getBeanProperties(Class<?> cls) {
+        Reference<BeanProperties> ref = BEAN_CACHE.get(cls);
+        BeanProperties properties = (ref != null) ? ref.get() : null;
+        if (properties == null) {
+            // Concurrent introspection of the same class is harmless, the
+            // last writer wins
+            properties = new BeanProperties(cls);
+            BEAN_CACHE.put(cls, new SoftReference<BeanProperties>(properties));
+        }
+        return properties;
     }
 
-    private void map(Map<String, Object> map) {
-        add("{");
+    private void map(Map<String, Object> map) throws IOException {
+        open('{');
         Iterator<Map.Entry<String, Object>> it = map.entrySet().iterator();
+        boolean empty = true;
         while (it.hasNext()) {
             Map.Entry<?, ?> e = (Map.Entry<?, ?>) it.next();
+            separator(!empty);
             value(e.getKey());
-            add(":");
+            add(formatted ? ": " : ":");
             value(e.getValue());
-            if (it.hasNext()) {
-                add(',');
+            empty = false;
+        }
+        close('}', empty);
+    }
+
+    /**
+     * Write the given Options, reusing its cached JSON representation when
+     * the output is written with the default settings.
+     */
+    @SuppressWarnings("unchecked")
+    private void options(Options options) throws IOException {
+        if (formatted || emitClassName || escaper != StringEscaper.JSON
+            || maxDepth > 0 || cyclePolicy != CyclePolicy.NULL) {
+            map(options);
+            return;
+        }
+
+        int generation = adapterGeneration;
+        String json = options.getCachedJson(generation);
+        if (json == null) {
+            Appendable target = out;
+            StringBuilder buffer = new StringBuilder(64);
+            out = buffer;
+            try {
+                map(options);
+            } finally {
+                out = target;
             }
+            json = buffer.toString();
+            options.setCachedJson(json, generation);
         }
-        add("}");
+        add(json);
     }
 
-    private void array(Iterator<?> it) {
-        add("[");
+    private void array(Iterator<?> it) throws IOException {
+        open('[');
+        boolean empty = true;
         while (it.hasNext()) {
+            separator(!empty);
             value(it.next());
-            if (it.hasNext()) {
-                add(",");
-            }
+            empty = false;
         }
-        add("]");
+        close(']', empty);
     }
 
-    private void array(Object object) {
+    private void array(Object[] array) throws IOException {
+        open('[');
+        for (int i = 0, length = array.length; i < length; ++i) {
+            separator(i > 0);
+            value(array[i]);
+        }
+        close(']', array.length == 0);
+    }
+
+    private void array(Object object) throws IOException {
         add("[");
         int length = Array.getLength(object);
         for (int i = 0; i < length; ++i) {
@@ -196,278 +760,336 @@ public class JSONWriter {
         add("]");
     }
 
-    private void bool(boolean b) {
+    /**
+     * Open a map, bean or array with the given char.
+     */
+    private void open(char c) throws IOException {
+        add(c);
+        level++;
+    }
+
+    /**
+     * Start a new entry of a map, bean or array. When formatting, each entry
+     * is written on a new indented line.
+     */
+    private void separator(boolean comma) throws IOException {
+        if (comma) {
+            add(',');
+        }
+        if (formatted) {
+            newline();
+        }
+    }
+
+    /**
+     * Close a map, bean or array with the given char. When formatting, the
+     * closing char of a non empty container is written on a new line.
+     */
+    private void close(char c, boolean empty) throws IOException {
+        level--;
+        if (formatted && !empty) {
+            newline();
+        }
+        add(c);
+    }
+
+    private void newline() throws IOException {
+        add(newline);
+        for (int i = 0; i < level; i++) {
+            add(indent);
+        }
+    }
+
+    private void bool(boolean b) throws IOException {
         add(b ? "true" : "false");
     }
 
-    private void string(Object obj) {
+    private void string(Object obj) throws IOException {
         add('"');
-        char prev;
-        String str = obj.toString();
-        int len = str.length();
-        
-        char c = 0;
-        //for (char c : obj.toString().toCharArray()) {
-        for (int i = 0; i < len; i++) {
-            prev = c;
-            c = str.charAt(i);
-            switch (c) {
-                case '\b':
-                    add("\\b");
-                    break;
-                case '\t':
-                    add("\\t");
-                    break;
-                case '\n':
-                    add("\\n");
-                    break;
-                case '\f':
-                    add("\\f");
-                    break;
-                case '\r':
-                    add("\\r");
-                    break;
-                case '\\':
-                    add("\\\\");
-                    break;
-                case '/':
-                    if (prev == '<') {
-                        add("\\/");
-                    } else {
-                        add('/');
-                    }
-                    break;
-                case '"':
-                    add("\\\"");
-                    break;
-                default:
-                    if (Character.isISOControl(c)) {
-                        unicode(c);
-                    } else {
-                        add(c);
-                    }
-                    break;
-            }
-        }
+        escaper.escape(obj.toString(), out);
         add('"');
     }
 
-    private void add(Object obj) {
-        builder.append(obj);
+    private void add(Object obj) throws IOException {
+        out.append(String.valueOf(obj));
     }
 
-    private void add(char c) {
-        builder.append(c);
+    private void add(String str) throws IOException {
+        out.append(str);
     }
-    static char[] hex = "0123456789ABCDEF".toCharArray();
 
-    private void unicode(char c) {
-        add("\\u");
-        int n = c;
-        for (int i = 0; i < 4; ++i) {
-            int digit = (n & 0xf000) >> 12;
-            add(hex[digit]);
-            n <<= 4;
-        }
+    private void add(char c) throws IOException {
+        out.append(c);
     }
+    /**
+     * Provides the built-in type adapters.
+     * <p/>
+     * Leaf adapters write values which cannot refer to other objects, and
+     * therefore skip cyclic reference tracking.
+     */
+    enum BuiltInAdapter implements JSONTypeAdapter {
 
-    private String formatJson(String json) {
-        StringBuilder sb = new StringBuilder(json.length());
-         try {
-            formatJsonValue(new StringReader(json), 0, sb);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
-        return sb.toString();
-    }
+        /** Writes the value's toString() as a quoted JSON string. */
+        STRING(true) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                writer.string(value);
+            }
+        },
 
-    private void formatJsonValue(StringReader sr, int offset,
-        StringBuilder sb) throws IOException {
-        int local_offset = 0;
-        while (true) {
-            int i = sr.read();
-            if (i == -1) {
-                return;
-            } else {
-                char c = (char) i;
-                switch (c) {
-                    case '{':
-                        sb.append("{ ");
-                        formatJsonValue(sr, offset + local_offset + 2, sb);
-                        sb.append(" }");
-                        break;
-                    case '[':
-                        sb.append('[');
-                        formatJsonArray(sr, offset + local_offset + 1, sb);
-                        sb.append(']');
-                        break;
-                    case '}':
-                        return;
-                    case ']':
-                        return;
-                    case ':':
-                        sb.append(": ");
-                        local_offset += 2;
-                        break;
-                    case '"':
-                        sb.append('"');
-                        String string = readJsonString(sr);
-                        sb.append(string);
-                        sb.append('"');
-                        local_offset += string.length() + 2;
-                        break;
-                    case ',':
-                        sb.append(",\n");
-                        indent(sb, offset);
-                        local_offset = 0;
-                        break;
-                    default:
-                        sb.append(c);
-                        local_offset++;
-                        break;
+        /** Writes the value's toString() as is, e.g. numbers and literals. */
+        RAW(true) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                out.append(value.toString());
+            }
+        },
+
+        /** Writes an enum constant as its quoted name. */
+        ENUM(true) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                writer.string(((Enum<?>) value).name());
+            }
+        },
+
+        /** Writes a Date as milliseconds since the epoch. */
+        DATE(true) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                out.append(Long.toString(((Date) value).getTime()));
+            }
+        },
+
+        /** Writes a Calendar as milliseconds since the epoch. */
+        CALENDAR(true) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                out.append(Long.toString(((Calendar) value).getTimeInMillis()));
+            }
+        },
+
+        INT_ARRAY(true) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                int[] array = (int[]) value;
+                out.append('[');
+                for (int i = 0; i < array.length; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    out.append(Integer.toString(array[i]));
                 }
+                out.append(']');
             }
-        }
-    }
+        },
 
-    private String readJsonString(StringReader sr) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        while (true) {
-            sr.mark(1);
-            int i = sr.read();
-            if (i == -1) {
-                throw new RuntimeException("Should not reach here!");
-            } else {
-                char c = (char) i;
-                switch (c) {
-                    case '"':
-                        return sb.toString();
-                    default:
-                        sb.append(c);
-                        break;
+        LONG_ARRAY(true) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                long[] array = (long[]) value;
+                out.append('[');
+                for (int i = 0; i < array.length; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    out.append(Long.toString(array[i]));
                 }
+                out.append(']');
             }
-        }
-    }
+        },
 
-    private void formatJsonArray(StringReader sr, int offset,
-        StringBuilder sb) throws IOException {
-        boolean start = true;
-        int local_offset = 0;
-        while (true) {
-            int i = sr.read();
-            if (i == -1) {
-                return;
-            } else {
-                char c = (char) i;
-                switch (c) {
-                    case '{':
-                        if (!start) {
-                            sb.append('\n');
-                            indent(sb, offset);
-                            local_offset = 0;
-                        }
-                        sb.append("{ ");
-                        formatJsonValue(sr, offset + local_offset + 2, sb);
-                        sb.append(" }");
-                        break;
-                    case '[':
-                        sb.append('[');
-                        formatJsonArray(sr, offset + local_offset + 1, sb);
-                        sb.append(']');
-                        break;
-                    case ']':
-                        return;
-                    case '"':
-                        sb.append('"');
-                        String string = readJsonString(sr);
-                        sb.append(string);
-                        sb.append('"');
-                        local_offset += string.length() + 2;
-                        break;
-                    case ',':
-                        sb.append(", ");
-                        local_offset += 2;
-                        break;
-                    default:
-                        sb.append(c);
-                        local_offset++;
-                        break;
+        DOUBLE_ARRAY(true) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                double[] array = (double[]) value;
+                out.append('[');
+                for (int i = 0; i < array.length; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    out.append(Double.toString(array[i]));
                 }
+                out.append(']');
             }
-            start = false;
-        }
-    }
+        },
 
-    private void indent(StringBuilder sb, int level) {
-        for (int i = 0; i < level; i++) {
-            sb.append(' ');
+        FLOAT_ARRAY(true) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                float[] array = (float[]) value;
+                out.append('[');
+                for (int i = 0; i < array.length; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    out.append(Float.toString(array[i]));
+                }
+                out.append(']');
+            }
+        },
+
+        BOOLEAN_ARRAY(true) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                boolean[] array = (boolean[]) value;
+                out.append('[');
+                for (int i = 0; i < array.length; i++) {
+                    if (i > 0) {
+                        out.append(',');
+                    }
+                    out.append(array[i] ? "true" : "false");
+                }
+                out.append(']');
+            }
+        },
+
+        /** Writes the remaining primitive arrays (byte, short and char). */
+        PRIMITIVE_ARRAY(true) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                writer.array(value);
+            }
+        },
+
+        OBJECT_ARRAY(false) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                writer.array((Object[]) value);
+            }
+        },
+
+        MAP(false) {
+            @SuppressWarnings("unchecked")
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                writer.map((Map) value);
+            }
+        },
+
+        OPTIONS(false) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                writer.options((Options) value);
+            }
+        },
+
+        ITERATOR(false) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                writer.array((Iterator<?>) value);
+            }
+        },
+
+        COLLECTION(false) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                writer.array(((Collection<?>) value).iterator());
+            }
+        },
+
+        BEAN(false) {
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                writer.bean(value);
+            }
+        };
+
+        /** Indicates the adapter writes values without nested objects. */
+        final boolean leaf;
+
+        BuiltInAdapter(boolean leaf) {
+            this.leaf = leaf;
         }
     }
 
     /**
-     * Provides an unsynchronized Stack.
+     * Provides the adapter of a {@link JSONSerializable} bean, which delegates
+     * to the generated serializer. Formatted output and output which includes
+     * the class name are written through reflection, as the generated
+     * serializer does not support them.
      */
-    static class ListStack<E> extends ArrayList<E> {
+    static class GeneratedAdapter implements JSONTypeAdapter {
 
-        /** Serialization version indicator. */
-        private static final long serialVersionUID = 1L;
+        final JSONTypeAdapter serializer;
 
-        /**
-         * Creates a new ListStack instance with an initial capacity of 10.
-         */
-        private ListStack() {
+        GeneratedAdapter(JSONTypeAdapter serializer) {
+            this.serializer = serializer;
         }
 
-        /**
-         * Create a new ListStack with the given initial capacity.
-         *
-         * @param initialCapacity specify initial capacity of this stack
-         */
-        private ListStack(int initialCapacity) {
-            super(initialCapacity);
+        public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+            if (writer.formatted || writer.emitClassName) {
+                writer.bean(value);
+            } else {
+                serializer.write(value, writer, out);
+            }
         }
+    }
 
-        /**
-         * Pushes the Object onto the top of this stack.
-         *
-         * @param value the Object to push onto this stack
-         * @return the Object pushed on this stack
-         */
-        private Object push(E value) {
-            add(value);
+    /**
+     * Provides an application registered type adapter.
+     */
+    static class TypeRegistration {
+
+        final Class<?> type;
 
-            return value;
+        final JSONTypeAdapter adapter;
+
+        TypeRegistration(Class<?> type, JSONTypeAdapter adapter) {
+            this.type = type;
+            this.adapter = adapter;
         }
+    }
 
-        /**
-         * Removes and return the Object at the top of this stack.
-         *
-         * @return the Object at the top of this stack
-         */
-        private E pop() {
-            E value = peek();
+    /**
+     * Provides the readable properties and public fields of a bean class,
+     * introspected once and reused for every instance of the class.
+     */
+    static class BeanProperties {
 
-            remove(size() - 1);
+        /** The property read methods, in introspection order. */
+        final Method[] accessors;
 
-            return value;
-        }
+        /** The quoted property names including the trailing colon. */
+        final String[] accessorNames;
+
+        /** The index of the "class" property accessor, or -1 if absent. */
+        final int classIndex;
+
+        /** The public fields of the bean. */
+        final Field[] fields;
+
+        /** The quoted field names including the trailing colon. */
+        final String[] fieldNames;
 
         /**
-         * Looks at the Object at the top of this stack without
-         * removing it.
+         * Create a new BeanProperties instance for the given bean class.
          *
-         * @return the Object at the top of this stack
+         * @param cls the bean class to introspect
          */
-        private E peek() {
-            int length = size();
+        BeanProperties(Class<?> cls) {
+            PropertyDescriptor[] props;
+            try {
+                BeanInfo info = Introspector.getBeanInfo(cls);
+                props = info.getPropertyDescriptors();
+            } catch (IntrospectionException ie) {
+                throw new RuntimeException(ie);
+            }
 
-            if (length == 0) {
-                return null;
+            List<Method> methodList = new ArrayList<Method>(props.length);
+            List<String> nameList = new ArrayList<String>(props.length);
+            int index = -1;
+            for (int i = 0; i < props.length; ++i) {
+                PropertyDescriptor prop = props[i];
+                Method accessor = prop.getReadMethod();
+                if (accessor == null) {
+                    continue;
+                }
+                if (!accessor.isAccessible()) {
+                    accessor.setAccessible(true);
+                }
+                if ("class".equals(prop.getName())) {
+                    index = methodList.size();
+                }
+                methodList.add(accessor);
+                nameList.add(quote(prop.getName()));
+            }
+            accessors = methodList.toArray(new Method[methodList.size()]);
+            accessorNames = nameList.toArray(new String[nameList.size()]);
+            classIndex = index;
+
+            fields = cls.getFields();
+            fieldNames = new String[fields.length];
+            for (int i = 0; i < fields.length; ++i) {
+                fieldNames[i] = quote(fields[i].getName());
             }
+        }
 
-            return get(length - 1);
+        private static String quote(String name) {
+            return '"' + name + "\":";
         }
     }
 }
-
@@ -13,17 +13,81 @@
  */
 package net.sf.click.jquery.util;
 
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 
 /**
+ * Provides a Map of options which is rendered as a JSON object.
+ * <p/>
+ * The JSON representation of an Options instance is cached once written, and
+ * reused until the Options is changed. Options are often configured once and
+ * rendered on every request, for example the options of a static Behavior.
+ * Such Options can be {@link #freeze() frozen}, after which they cannot be
+ * changed and their JSON representation is written only once:
  *
+ * <pre class="prettyprint">
+ * private static final Options BUSY_INDICATOR_OPTIONS = new Options()
+ *     .put("fadeIn", 200)
+ *     .put("message", "Loading...")
+ *     .freeze(); </pre>
+ *
+ * The cached JSON of a mutable Options is only reused if all of its values
+ * are immutable, such as Strings, Numbers, Booleans, Enums, JSONLiterals and
+ * frozen Options. Values of a frozen Options must not be changed after the
+ * Options is frozen.
+ * <p/>
+ * Options typically hold a few keys. Up to eight entries are stored in a
+ * single array of keys and values, larger Options in a LinkedHashMap. In both
+ * cases the entries are written in insertion order.
+ * <p/>
+ * All changes, including those made through the collection views and the
+ * default methods of the Map interface, go through {@link #put(Object, Object)},
+ * {@link #remove(Object)}, {@link #clear()} or the entry set, which check
+ * that the Options is not frozen and drop the cached JSON.
  */
-public class Options extends HashMap {
+public class Options extends AbstractMap implements Cloneable, Serializable {
+
+    // -------------------------------------------------------------- Constants
+
+    private static final long serialVersionUID = 1L;
+
+    /** The maximum number of entries stored in the compact array. */
+    private static final int COMPACT_SIZE = 8;
+
+    /** The initial number of entries of the compact array. */
+    private static final int INITIAL_CAPACITY = 4;
+
+    // -------------------------------------------------------------- Variables
+
+    /**
+     * The keys and values of a compact Options, the key of entry i at index
+     * 2 * i and its value at 2 * i + 1. Null once the Options outgrew it.
+     */
+    private Object[] table = new Object[INITIAL_CAPACITY * 2];
+
+    /** The number of entries in the compact array. */
+    private int size;
 
-    private JSONWriter jsonWriter;
+    /** The entries of an Options with more than COMPACT_SIZE entries. */
+    private LinkedHashMap map;
+
+    /** The cached JSON representation, null if not yet written or changed. */
+    private transient volatile CachedJson json;
+
+    /** Indicates if the Options cannot be changed. */
+    private volatile boolean frozen;
+
+    // ----------------------------------------------------------- Constructors
 
     public Options() {
     }
@@ -36,67 +100,116 @@ public class Options extends HashMap {
         put(key, value);
     }
 
+    /**
+     * Create a mutable Options containing the entries of the given map.
+     *
+     * @param map the map which entries to copy
+     */
+    public Options(Map map) {
+        putAll(map);
+    }
+
+    // --------------------------------------------------------- Public Methods
+
     public Options put(String key, boolean value) {
-        super.put(key, value);
+        set(key, value);
         return this;
     }
 
     public Options put(String key, int value) {
-        super.put(key, value);
+        set(key, value);
         return this;
     }
 
     public Options put(String key, long value) {
-        super.put(key, value);
+        set(key, value);
         return this;
     }
 
     public Options put(String key, double value) {
-        super.put(key, value);
+        set(key, value);
         return this;
     }
 
     public Options put(String key, Map value) {
-        super.put(key, value);
+        set(key, value);
         return this;
     }
 
     public Options put(String key, List value) {
-        super.put(key, value);
+        set(key, value);
         return this;
     }
 
     public Options putList(String key, Object... options) {
-        super.put(key, Arrays.asList(options));
+        set(key, Arrays.asList(options));
         return this;
     }
 
     public Options put(String key, Object bean) {
-        super.put(key, bean);
+        set(key, bean);
         return this;
     }
 
     public Options put(String key, JSONLiteral literal) {
-        super.put(key, literal);
+        set(key, literal);
         return this;
     }
 
     public Options putLiteral(String key, String literal) {
-        super.put(key, new JSONLiteral(literal));
+        set(key, new JSONLiteral(literal));
         return this;
     }
 
     public Options putFunction(String key, String function) {
-        super.put(key, new JSONLiteral(function));
+        set(key, new JSONLiteral(function));
+        return this;
+    }
+
+    /**
+     * Freeze the Options so that it cannot be changed anymore. Nested Options
+     * values are frozen as well. Changing a frozen Options throws an
+     * UnsupportedOperationException.
+     * <p/>
+     * The JSON representation of a frozen Options is written once and shared
+     * by all subsequent writes, thus frozen Options can safely be shared
+     * between threads, for example as static constants.
+     *
+     * @return this Options instance
+     */
+    public Options freeze() {
+        if (!frozen) {
+            for (Object value : values()) {
+                if (value instanceof Options) {
+                    ((Options) value).freeze();
+                }
+            }
+            frozen = true;
+        }
         return this;
     }
 
+    /**
+     * Return true if the Options is frozen, false otherwise.
+     *
+     * @see #freeze()
+     *
+     * @return true if the Options is frozen, false otherwise
+     */
+    public boolean isFrozen() {
+        return frozen;
+    }
+
     public String toJson() {
-        return getJSONWriter().write(this);
+        String cached = getCachedJson(JSONWriter.getAdapterGeneration());
+        if (cached != null) {
+            return cached;
+        }
+        return new JSONWriter().write(this);
     }
 
     public String toFormattedJson() {
-        return getJSONWriter().writeFormatted(this);
+        return new JSONWriter().writeFormatted(this);
     }
 
     @Override
@@ -104,12 +217,358 @@ public class Options extends HashMap {
         return toJson();
     }
 
-    // Private Methods --------------------------------------------------------
+    // -------------------------------------------------------- Map Overrides
+
+    @Override
+    public int size() {
+        return (map != null) ? map.size() : size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return (map != null) ? map.containsKey(key) : indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (map != null) {
+            return map.get(key);
+        }
+        int index = indexOf(key);
+        return (index >= 0) ? table[index + 1] : null;
+    }
+
+    @Override
+    public Object put(Object key, Object value) {
+        return store(key, value);
+    }
+
+    @Override
+    public Object remove(Object key) {
+        checkMutable();
+        json = null;
+        if (map != null) {
+            return map.remove(key);
+        }
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        Object previous = table[index + 1];
+        removeAt(index);
+        return previous;
+    }
+
+    @Override
+    public void clear() {
+        checkMutable();
+        json = null;
+        map = null;
+        table = new Object[INITIAL_CAPACITY * 2];
+        size = 0;
+    }
+
+    /**
+     * Return the entries of the Options, in insertion order. The entries of a
+     * frozen Options cannot be changed or removed. The key and value views
+     * of the Options are based on this set.
+     *
+     * @return the entries of the Options
+     */
+    @Override
+    public Set entrySet() {
+        return new EntrySet();
+    }
+
+    /**
+     * Return a mutable shallow copy of the Options.
+     *
+     * @return a mutable shallow copy of the Options
+     */
+    @Override
+    public Object clone() {
+        try {
+            Options copy = (Options) super.clone();
+            copy.table = (table != null) ? (Object[]) table.clone() : null;
+            copy.map = (map != null) ? new LinkedHashMap(map) : null;
+            copy.frozen = false;
+            return copy;
+        } catch (CloneNotSupportedException e) {
+            throw new InternalError(e.toString());
+        }
+    }
+
+    // ------------------------------------------------ Package Private Methods
+
+    /**
+     * Return the cached JSON representation of the Options, or null if the
+     * Options was changed, or type adapters were registered or removed, since
+     * it was last written.
+     *
+     * @param generation the current type adapter generation of JSONWriter
+     * @return the cached JSON representation or null
+     */
+    String getCachedJson(int generation) {
+        CachedJson cached = json;
+        if (cached == null || cached.generation != generation) {
+            return null;
+        }
+        return cached.json;
+    }
+
+    /**
+     * Cache the given JSON representation of the Options, if the
+     * representation cannot go stale without the Options being changed.
+     *
+     * @param json the JSON representation of the Options
+     * @param generation the type adapter generation of JSONWriter the
+     * representation was written in
+     */
+    void setCachedJson(String json, int generation) {
+        if (frozen || hasImmutableValues()) {
+            this.json = new CachedJson(json, generation);
+        }
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    private void set(String key, Object value) {
+        store(key, value);
+    }
+
+    private Object store(Object key, Object value) {
+        checkMutable();
+        json = null;
+        if (map != null) {
+            return map.put(key, value);
+        }
+
+        int index = indexOf(key);
+        if (index >= 0) {
+            Object previous = table[index + 1];
+            table[index + 1] = value;
+            return previous;
+        }
+
+        if (size == COMPACT_SIZE) {
+            // Outgrew the compact array
+            map = new LinkedHashMap(COMPACT_SIZE * 4);
+            for (int i = 0, length = size * 2; i < length; i += 2) {
+                map.put(table[i], table[i + 1]);
+            }
+            table = null;
+            size = 0;
+            return map.put(key, value);
+        }
+
+        if (table.length == size * 2) {
+            Object[] grown = new Object[Math.min(table.length * 2, COMPACT_SIZE * 2)];
+            System.arraycopy(table, 0, grown, 0, table.length);
+            table = grown;
+        }
+        table[size * 2] = key;
+        table[size * 2 + 1] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * Return the array index of the given key in the compact array, or -1.
+     */
+    private int indexOf(Object key) {
+        for (int i = 0, length = size * 2; i < length; i += 2) {
+            Object candidate = table[i];
+            if (candidate == key || (key != null && key.equals(candidate))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void removeAt(int index) {
+        int length = size * 2;
+        System.arraycopy(table, index + 2, table, index, length - index - 2);
+        table[length - 2] = null;
+        table[length - 1] = null;
+        size--;
+    }
+
+    private void checkMutable() {
+        if (frozen) {
+            throw new UnsupportedOperationException("Options is frozen");
+        }
+    }
+
+    private boolean hasImmutableValues() {
+        for (Object value : values()) {
+            if (value == null || value instanceof String || value instanceof Boolean
+                || value instanceof Character || value instanceof Enum
+                || value instanceof JSONLiteral) {
+                continue;
+            }
+            if (value instanceof Options) {
+                if (((Options) value).isFrozen()) {
+                    continue;
+                }
+                return false;
+            }
+            Class cls = value.getClass();
+            if (cls != Integer.class && cls != Long.class && cls != Double.class
+                && cls != Float.class && cls != Short.class && cls != Byte.class
+                && cls != BigDecimal.class && cls != BigInteger.class) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---------------------------------------------------------- Inner Classes
+
+    /**
+     * Provides a cached JSON representation together with the type adapter
+     * generation it was written in.
+     */
+    private static final class CachedJson {
+
+        final String json;
+
+        final int generation;
+
+        CachedJson(String json, int generation) {
+            this.json = json;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Provides the entry set view of the Options.
+     */
+    private class EntrySet extends AbstractSet {
+
+        @Override
+        public int size() {
+            return Options.this.size();
+        }
+
+        @Override
+        public void clear() {
+            Options.this.clear();
+        }
+
+        @Override
+        public Iterator iterator() {
+            if (map != null) {
+                return new MapEntryIterator();
+            }
+            return new CompactEntryIterator();
+        }
+    }
+
+    /**
+     * Provides an entry of the Options, which changes go through the Options.
+     */
+    private class OptionsEntry implements Map.Entry {
+
+        private final Object key;
+
+        private Object value;
+
+        OptionsEntry(Object key, Object value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        public Object getKey() {
+            return key;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public Object setValue(Object value) {
+            Object previous = put(key, value);
+            this.value = value;
+            return previous;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Map.Entry entry = (Map.Entry) o;
+            return (key == null ? entry.getKey() == null : key.equals(entry.getKey()))
+                && (value == null ? entry.getValue() == null : value.equals(entry.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            return (key == null ? 0 : key.hashCode()) ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    /**
+     * Provides the entry iterator of a compact Options.
+     */
+    private class CompactEntryIterator implements Iterator {
+
+        /** The array index of the next entry. */
+        private int next;
+
+        /** The array index of the last returned entry, or -1. */
+        private int last = -1;
+
+        public boolean hasNext() {
+            return table != null && next < size * 2;
+        }
+
+        public Object next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            last = next;
+            next += 2;
+            return new OptionsEntry(table[last], table[last + 1]);
+        }
+
+        public void remove() {
+            if (last < 0) {
+                throw new IllegalStateException();
+            }
+            checkMutable();
+            json = null;
+            removeAt(last);
+            next = last;
+            last = -1;
+        }
+    }
+
+    /**
+     * Provides the entry iterator of an Options stored in a LinkedHashMap.
+     */
+    private class MapEntryIterator implements Iterator {
+
+        private final Iterator iterator = map.entrySet().iterator();
+
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        public Object next() {
+            Map.Entry entry = (Map.Entry) iterator.next();
+            return new OptionsEntry(entry.getKey(), entry.getValue());
+        }
 
-    private JSONWriter getJSONWriter() {
-        if (jsonWriter == null) {
-            jsonWriter = new JSONWriter();
+        public void remove() {
+            checkMutable();
+            json = null;
+            iterator.remove();
         }
-        return jsonWriter;
     }
-}
+}
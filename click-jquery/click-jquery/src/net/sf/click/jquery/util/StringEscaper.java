@@ -0,0 +1,201 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package net.sf.click.jquery.util;
+
+import java.io.IOException;
+
+/**
+ * Provides a table driven String escaper. Runs of characters which don't
+ * need escaping are copied to the output in bulk.
+ * <p/>
+ * The following escapers are available:
+ * <ul>
+ * <li>{@link #JSON} - escapes JSON string content. The sequence
+ * <tt>&lt;/</tt> is written as <tt>&lt;\/</tt> so that the output cannot
+ * close a surrounding script tag.</li>
+ * <li>{@link #JSON_SCRIPT_SAFE} - same as {@link #JSON} but also escapes
+ * <tt>&lt;</tt>, <tt>&gt;</tt>, <tt>&amp;</tt>, <tt>'</tt> and the line
+ * terminators U+2028 and U+2029 so that the output can be inlined anywhere
+ * in a HTML script element.</li>
+ * <li>{@link #XML} - escapes XML text and attribute values.</li>
+ * </ul>
+ */
+public final class StringEscaper {
+
+    // -------------------------------------------------------------- Constants
+
+    // NOTE: HEX must be initialized before the escaper instances are created
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /** The JSON string escaper. */
+    public static final StringEscaper JSON = new StringEscaper(Mode.JSON);
+
+    /** The JSON string escaper which output is safe to inline in a script. */
+    public static final StringEscaper JSON_SCRIPT_SAFE = new StringEscaper(Mode.JSON_SCRIPT_SAFE);
+
+    /** The XML text and attribute value escaper. */
+    public static final StringEscaper XML = new StringEscaper(Mode.XML);
+
+    /** Size of the replacement table, covers ASCII and the C1 controls. */
+    private static final int TABLE_SIZE = 0xA0;
+
+    /** Replacement marker for a '/' which is only escaped after a '&lt;'. */
+    private static final String SLASH = "/";
+
+    private static final String LINE_SEPARATOR = unicode('\u2028');
+
+    private static final String PARAGRAPH_SEPARATOR = unicode('\u2029');
+
+    private enum Mode {
+        JSON, JSON_SCRIPT_SAFE, XML
+    }
+
+    // -------------------------------------------------------------- Variables
+
+    /** The replacement of each character, null if the character is safe. */
+    private final String[] replacements = new String[TABLE_SIZE];
+
+    /** Indicates if U+2028 and U+2029 are escaped. */
+    private final boolean escapeLineSeparators;
+
+    // ----------------------------------------------------------- Constructors
+
+    private StringEscaper(Mode mode) {
+        if (mode == Mode.XML) {
+            replacements['&'] = "&amp;";
+            replacements['<'] = "&lt;";
+            replacements['>'] = "&gt;";
+            replacements['"'] = "&quot;";
+            replacements['\''] = "&#39;";
+            escapeLineSeparators = false;
+            return;
+        }
+
+        for (int c = 0; c < TABLE_SIZE; c++) {
+            if (Character.isISOControl((char) c)) {
+                replacements[c] = unicode((char) c);
+            }
+        }
+        replacements['\b'] = "\\b";
+        replacements['\t'] = "\\t";
+        replacements['\n'] = "\\n";
+        replacements['\f'] = "\\f";
+        replacements['\r'] = "\\r";
+        replacements['\\'] = "\\\\";
+        replacements['"'] = "\\\"";
+
+        if (mode == Mode.JSON_SCRIPT_SAFE) {
+            replacements['<'] = unicode('<');
+            replacements['>'] = unicode('>');
+            replacements['&'] = unicode('&');
+            replacements['\''] = unicode('\'');
+            escapeLineSeparators = true;
+        } else {
+            replacements['/'] = SLASH;
+            escapeLineSeparators = false;
+        }
+    }
+
+    // --------------------------------------------------------- Public Methods
+
+    /**
+     * Write the escaped value to the given output.
+     *
+     * @param value the value to escape
+     * @param out the output to write to
+     * @throws IOException if the output cannot be written
+     */
+    public void escape(CharSequence value, Appendable out) throws IOException {
+        int start = 0;
+        for (int i = 0, length = value.length(); i < length; i++) {
+            String replacement = replacement(value, i);
+            if (replacement != null) {
+                if (i > start) {
+                    out.append(value, start, i);
+                }
+                out.append(replacement);
+                start = i + 1;
+            }
+        }
+        if (start == 0) {
+            out.append(value);
+        } else if (start < value.length()) {
+            out.append(value, start, value.length());
+        }
+    }
+
+    /**
+     * Return the escaped value. If the value does not need escaping, the
+     * value itself is returned.
+     *
+     * @param value the value to escape
+     * @return the escaped value
+     */
+    public String escape(String value) {
+        if (value == null) {
+            return null;
+        }
+        for (int i = 0, length = value.length(); i < length; i++) {
+            if (replacement(value, i) != null) {
+                StringBuilder builder = new StringBuilder(length + 16);
+                try {
+                    escape(value, builder);
+                } catch (IOException e) {
+                    // StringBuilder does not throw IOException
+                    throw new RuntimeException(e);
+                }
+                return builder.toString();
+            }
+        }
+        return value;
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    /**
+     * Return the replacement of the character at the given index, or null if
+     * the character does not need escaping.
+     */
+    private String replacement(CharSequence value, int index) {
+        char c = value.charAt(index);
+        if (c < TABLE_SIZE) {
+            String replacement = replacements[c];
+            if (replacement == SLASH) {
+                return (index > 0 && value.charAt(index - 1) == '<') ? "\\/" : null;
+            }
+            return replacement;
+        }
+        if (escapeLineSeparators) {
+            if (c == '\u2028') {
+                return LINE_SEPARATOR;
+            } else if (c == '\u2029') {
+                return PARAGRAPH_SEPARATOR;
+            }
+        }
+        return null;
+    }
+
+    private static String unicode(char c) {
+        char[] chars = new char[6];
+        chars[0] = '\\';
+        chars[1] = 'u';
+        int n = c;
+        for (int i = 0; i < 4; ++i) {
+            int digit = (n & 0xf000) >> 12;
+            chars[2 + i] = HEX[digit];
+            n <<= 4;
+        }
+        return new String(chars);
+    }
+}
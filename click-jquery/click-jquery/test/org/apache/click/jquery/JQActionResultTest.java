@@ -0,0 +1,221 @@
+package org.apache.click.jquery;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import net.sf.click.jquery.JQActionResult;
+import org.apache.click.ClickServlet;
+import org.apache.click.Context;
+import org.apache.click.service.ConfigService;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JQActionResultTest {
+
+    @Test
+    public void testCompressionDisabledByDefault() throws IOException {
+        assertEquals(0, JQActionResult.getDefaultCompressionThreshold());
+
+        TestResponse response = new TestResponse();
+        Writer writer = new TestActionResult().getResponseWriter(createContext(response));
+        writer.write(repeat('a', 4096));
+        writer.close();
+
+        assertNull(response.headers.get("Content-Encoding"));
+        assertNull(response.headers.get("Vary"));
+        assertEquals(repeat('a', 4096), response.text.toString());
+    }
+
+    @Test
+    public void testDefaultCompressionThreshold() {
+        JQActionResult.setDefaultCompressionThreshold(16);
+        try {
+            assertEquals(16, new JQActionResult().getCompressionThreshold());
+        } finally {
+            JQActionResult.setDefaultCompressionThreshold(0);
+        }
+        assertEquals(0, new JQActionResult().getCompressionThreshold());
+    }
+
+    @Test
+    public void testBelowThreshold() throws IOException {
+        TestActionResult result = new TestActionResult();
+        result.setCompressionThreshold(16);
+
+        TestResponse response = new TestResponse();
+        Writer writer = result.getResponseWriter(createContext(response));
+        writer.write("0123456789");
+        writer.close();
+
+        // Small responses are written uncompressed
+        assertNull(response.headers.get("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.headers.get("Vary"));
+        assertEquals("0123456789", response.text.toString());
+        assertEquals(0, response.bytes.size());
+    }
+
+    @Test
+    public void testStreamingAboveThreshold() throws IOException {
+        TestActionResult result = new TestActionResult();
+        result.setCompressionThreshold(16);
+
+        TestResponse response = new TestResponse();
+        Writer writer = result.getResponseWriter(createContext(response));
+        writer.write("0123456789");
+        writer.flush();
+
+        // Output below the threshold is buffered, even when flushed
+        assertNull(response.headers.get("Content-Encoding"));
+        assertEquals(0, response.bytes.size());
+
+        String content = repeat('b', 10000);
+        writer.write(content);
+        writer.flush();
+
+        // Compressed output is streamed before the writer is closed
+        assertEquals("gzip", response.headers.get("Content-Encoding"));
+        assertTrue(response.bytes.size() > 0);
+
+        writer.close();
+        assertEquals("", response.text.toString());
+        assertEquals("0123456789" + content, gunzip(response.bytes.toByteArray()));
+    }
+
+    @Test
+    public void testGzipNotAccepted() throws IOException {
+        TestActionResult result = new TestActionResult();
+        result.setCompressionThreshold(16);
+
+        TestResponse response = new TestResponse();
+        Context context = createContext(createRequest("gzip;q=0"), response);
+        Writer writer = result.getResponseWriter(context);
+        writer.write(repeat('c', 100));
+        writer.close();
+
+        assertNull(response.headers.get("Content-Encoding"));
+        assertEquals(repeat('c', 100), response.text.toString());
+    }
+
+    private Context createContext(TestResponse response) {
+        return createContext(createRequest("gzip, deflate"), response);
+    }
+
+    private Context createContext(HttpServletRequest request, TestResponse response) {
+        HttpServletResponse httpResponse = (HttpServletResponse) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class[] { HttpServletResponse.class }, response);
+        return new Context(null, null, request, httpResponse, false, new TestServlet());
+    }
+
+    private HttpServletRequest createRequest(final String acceptEncoding) {
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getHeader".equals(name)) {
+                    return "Accept-Encoding".equals(args[0]) ? acceptEncoding : null;
+                } else if ("getMethod".equals(name)) {
+                    return "GET";
+                }
+                return null;
+            }
+        };
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[] { HttpServletRequest.class }, handler);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder(count);
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+
+    private static String gunzip(byte[] bytes) throws IOException {
+        Reader reader = new InputStreamReader(
+            new GZIPInputStream(new ByteArrayInputStream(bytes)), "UTF-8");
+        StringBuilder builder = new StringBuilder();
+        char[] buffer = new char[1024];
+        int length;
+        while ((length = reader.read(buffer)) != -1) {
+            builder.append(buffer, 0, length);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Provides the ConfigService of the Context, without configuration.
+     */
+    static class TestServlet extends ClickServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected ConfigService getConfigService() {
+            InvocationHandler handler = new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return null;
+                }
+            };
+            return (ConfigService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { ConfigService.class }, handler);
+        }
+    }
+
+    static class TestActionResult extends JQActionResult {
+
+        @Override
+        public Writer getResponseWriter(Context context) throws IOException {
+            return super.getResponseWriter(context);
+        }
+    }
+
+    /**
+     * Records the headers and the character or byte output of a response.
+     */
+    static class TestResponse implements InvocationHandler {
+
+        final Map<String, String> headers = new HashMap<String, String>();
+
+        final StringWriter text = new StringWriter();
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("setHeader".equals(name) || "addHeader".equals(name)) {
+                headers.put((String) args[0], (String) args[1]);
+                return null;
+            } else if ("containsHeader".equals(name)) {
+                return headers.containsKey(args[0]);
+            } else if ("getCharacterEncoding".equals(name)) {
+                return "UTF-8";
+            } else if ("getWriter".equals(name)) {
+                return new PrintWriter(text);
+            } else if ("getOutputStream".equals(name)) {
+                return new ServletOutputStream() {
+                    @Override
+                    public void write(int b) {
+                        bytes.write(b);
+                    }
+                };
+            }
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.apache.click.jquery;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import javax.servlet.http.HttpServletRequest;
+import net.sf.click.jquery.JQBatchFilter;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class JQBatchFilterTest {
+
+    @Test
+    public void testWebInfPathRejected() {
+        TestBatchFilter filter = new TestBatchFilter();
+        HttpServletRequest request = createRequest("/ctx", "/home.htm", null);
+
+        assertNull(filter.getPath(request, "/ctx/WEB-INF/web.xml"));
+        assertNull(filter.getPath(request, "/ctx/WEB-INF/page.htm"));
+        assertNull(filter.getPath(request, "/ctx/web-inf/page.htm"));
+        assertNull(filter.getPath(request, "/ctx/META-INF/context.htm"));
+        assertNull(filter.getPath(request, "/ctx/page/../WEB-INF/page.htm"));
+        assertNull(filter.getPath(request, "/ctx/./WEB-INF/page.htm"));
+        assertNull(filter.getPath(request, "/ctx//WEB-INF/page.htm"));
+        assertNull(filter.getPath(request, "/ctx/%57EB-INF/page.htm"));
+        assertNull(filter.getPath(request, "/ctx/WEB-INF;x=1/page.htm"));
+    }
+
+    @Test
+    public void testExtensionMapping() {
+        TestBatchFilter filter = new TestBatchFilter();
+        HttpServletRequest request = createRequest("/ctx", "/home.htm", null);
+
+        assertEquals("/home.htm", filter.getPath(request, ""));
+        assertEquals("/home.htm", filter.getPath(request, "#"));
+        assertEquals("/edit.htm", filter.getPath(request, "/ctx/edit.htm"));
+        assertEquals("/admin/edit.htm", filter.getPath(request, "/ctx/admin/edit.htm"));
+        assertEquals("/edit.htm", filter.getPath(request, "/ctx/edit.htm;jsessionid=1"));
+
+        // Only paths of the ClickServlet mapping within the context
+        assertNull(filter.getPath(request, "/ctx/index.jsp"));
+        assertNull(filter.getPath(request, "/ctx/edit.htm.jsp"));
+        assertNull(filter.getPath(request, "/other/edit.htm"));
+        assertNull(filter.getPath(request, "http://host/ctx/edit.htm"));
+    }
+
+    @Test
+    public void testPathMapping() {
+        TestBatchFilter filter = new TestBatchFilter();
+        HttpServletRequest request = createRequest("", "/app", "/home");
+
+        assertEquals("/app/home", filter.getPath(request, ""));
+        assertEquals("/app/edit", filter.getPath(request, "/app/edit"));
+        assertNull(filter.getPath(request, "/edit"));
+        assertNull(filter.getPath(request, "/application/edit"));
+    }
+
+    private HttpServletRequest createRequest(final String contextPath, final String servletPath,
+        final String pathInfo) {
+
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                String name = method.getName();
+                if ("getContextPath".equals(name)) {
+                    return contextPath;
+                } else if ("getServletPath".equals(name)) {
+                    return servletPath;
+                } else if ("getPathInfo".equals(name)) {
+                    return pathInfo;
+                }
+                throw new UnsupportedOperationException(name);
+            }
+        };
+        return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+            new Class[] { HttpServletRequest.class }, handler);
+    }
+
+    static class TestBatchFilter extends JQBatchFilter {
+
+        @Override
+        public String getPath(HttpServletRequest request, String url) {
+            return super.getPath(request, url);
+        }
+    }
+}
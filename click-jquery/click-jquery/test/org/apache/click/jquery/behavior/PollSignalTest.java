@@ -0,0 +1,82 @@
+package org.apache.click.jquery.behavior;
+
+import net.sf.click.jquery.behavior.PollSignal;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PollSignalTest {
+
+    @Test
+    public void testAwaitTimeout() throws Exception {
+        PollSignal signal = new PollSignal();
+        long version = signal.getVersion();
+
+        long start = System.currentTimeMillis();
+        assertEquals(version, signal.await(version, 50));
+        assertTrue(System.currentTimeMillis() - start >= 50);
+        assertEquals(0, signal.getWaiting());
+        assertEquals(0, signal.getRejected());
+    }
+
+    @Test
+    public void testAwaitSignal() throws Exception {
+        final PollSignal signal = new PollSignal();
+        long version = signal.getVersion();
+
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                }
+                signal.signal();
+            }
+        }.start();
+
+        long start = System.currentTimeMillis();
+        assertEquals(version + 1, signal.await(version, 10000));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testAwaitChangedVersion() throws Exception {
+        PollSignal signal = new PollSignal();
+        long version = signal.getVersion();
+        signal.signal();
+
+        // The caller has an old version, so it does not wait
+        assertEquals(version + 1, signal.await(version, 10000));
+    }
+
+    @Test
+    public void testMaxWaiting() throws Exception {
+        final PollSignal signal = new PollSignal(1);
+        final long version = signal.getVersion();
+
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    signal.await(version, 10000);
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        waiter.start();
+        while (signal.getWaiting() == 0) {
+            Thread.sleep(5);
+        }
+
+        // The limit is reached, so the second request returns immediately
+        long start = System.currentTimeMillis();
+        assertEquals(version, signal.await(version, 10000));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(1, signal.getRejected());
+
+        signal.signal();
+        waiter.join();
+        assertEquals(0, signal.getWaiting());
+    }
+}
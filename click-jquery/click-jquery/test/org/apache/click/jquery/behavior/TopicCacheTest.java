@@ -0,0 +1,185 @@
+package org.apache.click.jquery.behavior;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import net.sf.click.jquery.JQActionResult;
+import net.sf.click.jquery.JQEvent;
+import net.sf.click.jquery.behavior.JQPollBehavior;
+import net.sf.click.jquery.behavior.TopicCache;
+import org.apache.click.ActionResult;
+import org.apache.click.Context;
+import org.apache.click.Control;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TopicCacheTest {
+
+    @Test
+    public void testResultServedWithinInterval() {
+        TopicCache cache = new TopicCache();
+        TestPollBehavior poll = new TestPollBehavior(cache, 60000);
+
+        assertEquals("result 1", poll.invoke().getContent());
+        assertEquals("result 1", poll.invoke().getContent());
+        assertEquals("result 1", new TestPollBehavior(cache, 60000).invoke().getContent());
+        assertEquals(1, poll.count.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+
+        cache.remove("status");
+        assertEquals("result 2", poll.invoke().getContent());
+    }
+
+    @Test(timeout = 5000)
+    public void testColdTopicComputedOnce() throws Exception {
+        TopicCache cache = new TopicCache();
+        TestPollBehavior poll = new TestPollBehavior(cache, 60000);
+        poll.block();
+
+        Invocation first = new Invocation(poll);
+        first.start();
+        assertTrue(poll.started.await(2, TimeUnit.SECONDS));
+
+        // The other polls wait for the first result instead of computing it
+        Invocation second = new Invocation(poll);
+        Invocation third = new Invocation(poll);
+        second.start();
+        third.start();
+        Thread.sleep(100);
+        poll.release();
+
+        assertEquals("result 1", first.get());
+        assertEquals("result 1", second.get());
+        assertEquals("result 1", third.get());
+        assertEquals(1, poll.count.get());
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+    }
+
+    @Test(timeout = 5000)
+    public void testSlowFirstResultNotAwaited() throws Exception {
+        TopicCache cache = new TopicCache();
+        TestPollBehavior poll = new TestPollBehavior(cache, 100);
+        poll.block();
+
+        Invocation first = new Invocation(poll);
+        first.start();
+        assertTrue(poll.started.await(2, TimeUnit.SECONDS));
+
+        // After the interval the poll computes its own result, uncached
+        TestPollBehavior other = new TestPollBehavior(cache, 100);
+        assertEquals("result 1", other.invoke().getContent());
+        assertEquals(2, cache.getMisses());
+
+        // The first poll still owns the topic and caches its result
+        poll.release();
+        assertEquals("result 1", first.get());
+        TestPollBehavior late = new TestPollBehavior(cache, 60000);
+        assertEquals("result 1", late.invoke().getContent());
+        assertEquals(0, late.count.get());
+    }
+
+    @Test
+    public void testFailedComputationReleasesTopic() {
+        TopicCache cache = new TopicCache();
+        TestPollBehavior poll = new TestPollBehavior(cache, 60000);
+        poll.fail = true;
+        try {
+            poll.invoke();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        poll.fail = false;
+        assertEquals("result 2", poll.invoke().getContent());
+        assertEquals(2, cache.getMisses());
+    }
+
+    /**
+     * Provides a poll of the <tt>status</tt> topic, counting its results.
+     */
+    static class TestPollBehavior extends JQPollBehavior {
+
+        private static final long serialVersionUID = 1L;
+
+        final AtomicInteger count = new AtomicInteger();
+
+        final CountDownLatch started = new CountDownLatch(1);
+
+        private volatile CountDownLatch released;
+
+        volatile boolean fail;
+
+        TestPollBehavior(TopicCache cache, int interval) {
+            setTopicCache(cache);
+            setSharedTopic("status");
+            setSharedInterval(interval);
+        }
+
+        ActionResult invoke() {
+            return invokeAction(null, new JQEvent());
+        }
+
+        void block() {
+            released = new CountDownLatch(1);
+        }
+
+        void release() {
+            released.countDown();
+        }
+
+        @Override
+        public ActionResult onAction(Control source, JQEvent eventType) {
+            int result = count.incrementAndGet();
+            started.countDown();
+            if (released != null) {
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            if (fail) {
+                throw new IllegalStateException("Poll failed");
+            }
+            return new JQActionResult("result " + result, JQActionResult.HTML);
+        }
+
+        @Override
+        protected Context getContext() {
+            return null;
+        }
+
+        @Override
+        protected boolean isIdle(Context context) {
+            return false;
+        }
+    }
+
+    /**
+     * Provides a poll request on its own thread.
+     */
+    static class Invocation extends Thread {
+
+        private final TestPollBehavior poll;
+
+        private volatile ActionResult result;
+
+        Invocation(TestPollBehavior poll) {
+            this.poll = poll;
+        }
+
+        @Override
+        public void run() {
+            result = poll.invoke();
+        }
+
+        String get() throws InterruptedException {
+            join();
+            return result.getContent();
+        }
+    }
+}
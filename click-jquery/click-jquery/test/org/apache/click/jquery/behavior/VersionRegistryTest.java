@@ -0,0 +1,37 @@
+package org.apache.click.jquery.behavior;
+
+import net.sf.click.jquery.behavior.VersionRegistry;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class VersionRegistryTest {
+
+    @Test
+    public void testBump() {
+        VersionRegistry registry = new VersionRegistry();
+        long version = registry.getVersion("news");
+        String etag = registry.getETag("news");
+
+        assertEquals(version + 1, registry.bump("news"));
+        assertEquals(version + 1, registry.getVersion("news"));
+        assertFalse(etag.equals(registry.getETag("news")));
+    }
+
+    @Test
+    public void testTopicsAreIndependent() {
+        VersionRegistry registry = new VersionRegistry();
+        long version = registry.getVersion("weather");
+        registry.bump("news");
+
+        assertEquals(version, registry.getVersion("weather"));
+        assertEquals(registry.getETag("sport"), registry.getETag("weather"));
+    }
+
+    @Test
+    public void testETagIsQuoted() {
+        String etag = new VersionRegistry().getETag("news");
+        assertEquals('"', etag.charAt(0));
+        assertEquals('"', etag.charAt(etag.length() - 1));
+    }
+}
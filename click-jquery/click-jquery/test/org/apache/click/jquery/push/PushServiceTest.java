@@ -0,0 +1,214 @@
+package org.apache.click.jquery.push;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import net.sf.click.jquery.push.JQPushFilter;
+import net.sf.click.jquery.push.OverflowPolicy;
+import net.sf.click.jquery.push.PushService;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PushServiceTest {
+
+    @Test(timeout = 5000)
+    public void testDropOldest() throws Exception {
+        PushService service = new PushService(2, OverflowPolicy.DROP_OLDEST, 10);
+        Connection connection = new Connection(service, "a").open();
+        assertEquals(1, service.publish("a", "1"));
+        assertEquals(1, service.publish("a", "2"));
+        assertEquals(1, service.publish("a", "3"));
+
+        assertEquals(Arrays.asList("2", "3"), connection.close());
+        assertEquals(3, service.getPublished());
+        assertEquals(1, service.getDropped());
+    }
+
+    @Test(timeout = 5000)
+    public void testDropNewest() throws Exception {
+        PushService service = new PushService(2, OverflowPolicy.DROP_NEWEST, 10);
+        Connection connection = new Connection(service, "a").open();
+        service.publish("a", "1");
+        service.publish("a", "2");
+        service.publish("a", "3");
+
+        assertEquals(Arrays.asList("1", "2"), connection.close());
+        assertEquals(1, service.getDropped());
+    }
+
+    @Test(timeout = 5000)
+    public void testCoalesce() throws Exception {
+        PushService service = new PushService(2, OverflowPolicy.COALESCE, 10);
+        Connection connection = new Connection(service, "a,b").open();
+        service.publish("a", "a1");
+        service.publish("b", "b1");
+        service.publish("a", "a2");
+        service.publish("a", "a3");
+
+        // The queued update of a poll is replaced in place
+        assertEquals(Arrays.asList("a3", "b1"), connection.close());
+        assertEquals(0, service.getDropped());
+    }
+
+    @Test(timeout = 5000)
+    public void testCoalesceFullQueueDropsOldest() throws Exception {
+        PushService service = new PushService(2, OverflowPolicy.COALESCE, 10);
+        Connection connection = new Connection(service, "a,b,c").open();
+        service.publish("a", "a1");
+        service.publish("b", "b1");
+        service.publish("c", "c1");
+
+        assertEquals(Arrays.asList("b1", "c1"), connection.close());
+        assertEquals(1, service.getDropped());
+    }
+
+    @Test(timeout = 5000)
+    public void testMaxConnections() throws Exception {
+        PushService service = new PushService(2, OverflowPolicy.COALESCE, 1);
+        Connection connection = new Connection(service, "a").open();
+        assertEquals(1, service.getConnectionCount());
+
+        // Connections above the limit are rejected, the page keeps polling
+        Connection rejected = new Connection(service, "b");
+        rejected.run();
+        assertEquals(HttpServletResponse.SC_SERVICE_UNAVAILABLE, rejected.status);
+        assertEquals(1, service.getConnectionCount());
+        assertFalse(service.hasSubscribers("b"));
+
+        connection.close();
+        assertEquals(0, service.getConnectionCount());
+        assertFalse(service.hasSubscribers("a"));
+        assertEquals(0, service.publish("a", "1"));
+
+        connection = new Connection(service, "b").open();
+        assertTrue(service.hasSubscribers("b"));
+        connection.close();
+    }
+
+    /**
+     * Provides a push request, streamed by JQPushFilter on its own thread.
+     * The stream is held once the connection is open, until it is closed.
+     */
+    static class Connection extends Thread {
+
+        final StringWriter output = new StringWriter();
+
+        final CountDownLatch opened = new CountDownLatch(1);
+
+        final CountDownLatch released = new CountDownLatch(1);
+
+        final JQPushFilter filter;
+
+        final String pollIds;
+
+        volatile int status;
+
+        volatile Exception failure;
+
+        Connection(PushService service, String pollIds) {
+            this.pollIds = pollIds;
+            filter = new JQPushFilter() {
+                {
+                    connectionTimeout = 200;
+                }
+            };
+            filter.setPushService(service);
+        }
+
+        Connection open() throws InterruptedException {
+            start();
+            assertTrue(opened.await(2, TimeUnit.SECONDS));
+            return this;
+        }
+
+        /**
+         * Release the stream and return the data of the sent events.
+         */
+        List<String> close() throws Exception {
+            released.countDown();
+            join();
+            if (failure != null) {
+                throw failure;
+            }
+            List<String> data = new ArrayList<String>();
+            for (String line : output.toString().split("\n")) {
+                if (line.startsWith("data: ")) {
+                    data.add(line.substring(6));
+                }
+            }
+            return data;
+        }
+
+        @Override
+        public void run() {
+            try {
+                filter.doFilter(createRequest(), createResponse(), null);
+            } catch (Exception e) {
+                failure = e;
+            } finally {
+                opened.countDown();
+            }
+        }
+
+        private HttpServletRequest createRequest() {
+            InvocationHandler handler = new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("getMethod".equals(name)) {
+                        return "GET";
+                    } else if ("getParameter".equals(name)) {
+                        return JQPushFilter.PUSH_PARAM.equals(args[0]) ? pollIds : null;
+                    }
+                    return null;
+                }
+            };
+            return (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { HttpServletRequest.class }, handler);
+        }
+
+        private HttpServletResponse createResponse() {
+            // The first flush, of the retry field, holds the stream
+            final PrintWriter writer = new PrintWriter(output) {
+                private boolean flushed;
+
+                @Override
+                public void flush() {
+                    super.flush();
+                    if (!flushed) {
+                        flushed = true;
+                        opened.countDown();
+                        try {
+                            released.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                }
+            };
+            InvocationHandler handler = new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("getWriter".equals(name)) {
+                        return writer;
+                    } else if ("sendError".equals(name)) {
+                        status = (Integer) args[0];
+                    }
+                    return null;
+                }
+            };
+            return (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { HttpServletResponse.class }, handler);
+        }
+    }
+}
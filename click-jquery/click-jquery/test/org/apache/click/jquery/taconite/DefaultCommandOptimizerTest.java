@@ -0,0 +1,114 @@
+package org.apache.click.jquery.taconite;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import net.sf.click.jquery.taconite.DefaultCommandOptimizer;
+import net.sf.click.jquery.taconite.JQCommand;
+import net.sf.click.jquery.taconite.JQTaconite;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class DefaultCommandOptimizerTest {
+
+    @Test
+    public void testDropOverwritten() {
+        List<JQCommand> commands = optimize(
+            new JQCommand(JQTaconite.REPLACE_CONTENT, "#a", "one"),
+            new JQCommand(JQTaconite.APPEND, "#a", "two"),
+            new JQCommand(JQTaconite.REPLACE_CONTENT, "#a", "three"),
+            pair(JQTaconite.CSS, "#b", "color", "red"),
+            new JQCommand(JQTaconite.HIDE, "#b"),
+            new JQCommand(JQTaconite.REMOVE, "#b"));
+
+        assertEquals(2, commands.size());
+        assertEquals("<replaceContent select=\"#a\">three\n</replaceContent>",
+            commands.get(0).toString());
+        assertEquals("<remove select=\"#b\"/>", commands.get(1).toString());
+    }
+
+    @Test
+    public void testOverlappingSelectors() {
+        // .x can match #a, so the second hide is not a repeat
+        List<JQCommand> commands = optimize(
+            new JQCommand(JQTaconite.HIDE, "#a"),
+            new JQCommand(JQTaconite.SHOW, ".x"),
+            new JQCommand(JQTaconite.HIDE, "#a"));
+        assertEquals(3, commands.size());
+        assertEquals("<hide select=\"#a\"/>", commands.get(2).toString());
+
+        commands = optimize(
+            new JQCommand(JQTaconite.ADD_CLASS, "#a").arguments("on"),
+            new JQCommand(JQTaconite.REMOVE_CLASS, "#list li").arguments("on"),
+            new JQCommand(JQTaconite.ADD_CLASS, "#a").arguments("on"));
+        assertEquals(3, commands.size());
+
+        // removeClass can change the elements .item matches
+        commands = optimize(
+            new JQCommand(JQTaconite.REPLACE_CONTENT, ".item", "one"),
+            new JQCommand(JQTaconite.REMOVE_CLASS, "#a").arguments("item"),
+            new JQCommand(JQTaconite.REPLACE_CONTENT, ".item", "two"));
+        assertEquals(3, commands.size());
+    }
+
+    @Test
+    public void testEvalIsBarrier() {
+        List<JQCommand> commands = optimize(
+            new JQCommand(JQTaconite.REPLACE_CONTENT, "#a", "one"),
+            new JQCommand(JQTaconite.EVAL, null, "alert($('#a').text())"),
+            new JQCommand(JQTaconite.REPLACE_CONTENT, "#a", "two"),
+            new JQCommand(JQTaconite.REPLACE_CONTENT, "#a:first", "three"),
+            new JQCommand(JQTaconite.REPLACE_CONTENT, "#a", "four"));
+
+        assertEquals(5, commands.size());
+    }
+
+    @Test
+    public void testDropRepeated() {
+        List<JQCommand> commands = optimize(
+            new JQCommand(JQTaconite.ADD_CLASS, "#a").arguments("selected"),
+            new JQCommand(JQTaconite.ADD_CLASS, "#a").arguments("selected"),
+            new JQCommand(JQTaconite.REMOVE_CLASS, "#a").arguments("selected"),
+            new JQCommand(JQTaconite.ADD_CLASS, "#a").arguments("selected"),
+            new JQCommand(JQTaconite.APPEND, "#b", "one"),
+            new JQCommand(JQTaconite.ADD_CLASS, "#a").arguments("selected"));
+
+        assertEquals(5, commands.size());
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        assertNull(JQTaconite.getDefaultCommandOptimizer());
+        assertNull(new JQTaconite().getCommandOptimizer());
+    }
+
+    @Test
+    public void testMergeCssAndAttr() {
+        JQCommand color = pair(JQTaconite.CSS, "#a", "color", "red");
+        List<JQCommand> commands = optimize(
+            color,
+            pair(JQTaconite.CSS, "#a", "width", "10px"),
+            new JQCommand(JQTaconite.CSS, "#a").arguments("height", "5px"),
+            pair(JQTaconite.ATTR, "#a", "title", "A"),
+            pair(JQTaconite.ATTR, "#b", "title", "B"));
+
+        assertEquals(3, commands.size());
+        assertEquals("<css select=\"#a\" arg1=\"color\" arg2=\"red\" arg3=\"width\""
+            + " arg4=\"10px\" arg5=\"height\" arg6=\"5px\"/>", commands.get(0).toString());
+        assertEquals("<attr select=\"#a\" name=\"title\" value=\"A\"/>",
+            commands.get(1).toString());
+
+        // The given commands are not modified
+        assertEquals("<css select=\"#a\" name=\"color\" value=\"red\"/>", color.toString());
+    }
+
+    private JQCommand pair(String command, String selector, String name, String value) {
+        return new JQCommand(command, selector).name(name).value(value);
+    }
+
+    private List<JQCommand> optimize(JQCommand... commands) {
+        return new DefaultCommandOptimizer().optimize(
+            new ArrayList<JQCommand>(Arrays.asList(commands)));
+    }
+}
@@ -0,0 +1,280 @@
+package org.apache.click.jquery.taconite;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import net.sf.click.jquery.taconite.JQCommand;
+import net.sf.click.jquery.taconite.JQTaconite;
+import org.apache.click.Context;
+import org.apache.click.control.AbstractControl;
+import org.apache.click.util.HtmlStringBuffer;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class DomDiffTest {
+
+    private static final String LIST =
+        "<div id=\"t\"><ul class=\"menu\"><li>Home</li><li>%s</li><li>About</li></ul>"
+        + "<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit</p></div>";
+
+    @Test
+    public void testDiffChangedElement() {
+        TestSession session = new TestSession();
+        List<JQCommand> commands = send(session, String.format(LIST, "News"));
+        assertEquals(1, commands.size());
+        assertEquals(JQTaconite.REPLACE, commands.get(0).getCommand());
+
+        commands = send(session, String.format(LIST, "Blog"));
+        assertEquals(1, commands.size());
+        assertEquals(JQTaconite.REPLACE_CONTENT, commands.get(0).getCommand());
+        assertEquals("#t > :nth-child(1) > :nth-child(2)", commands.get(0).getSelector());
+        assertEquals("Blog", commands.get(0).getContent().get(0));
+    }
+
+    @Test
+    public void testDiffAttributes() {
+        TestSession session = new TestSession();
+        send(session, String.format(LIST, "News"));
+
+        List<JQCommand> commands = send(session,
+            String.format(LIST, "News").replace("class=\"menu\"", "class=\"menu open\""));
+        assertEquals(1, commands.size());
+        assertEquals(JQTaconite.ADD_CLASS, commands.get(0).getCommand());
+        assertEquals("#t > :nth-child(1)", commands.get(0).getSelector());
+    }
+
+    @Test
+    public void testOtherPageLoadReplaces() {
+        TestSession session = new TestSession();
+        send(session, String.format(LIST, "News"));
+
+        session.pageId = "2";
+        List<JQCommand> commands = send(session, String.format(LIST, "Blog"));
+        assertEquals(JQTaconite.REPLACE, commands.get(0).getCommand());
+    }
+
+    @Test
+    public void testConcurrentRequestsReplace() {
+        TestSession session = new TestSession();
+        send(session, String.format(LIST, "News"));
+
+        // A poll and a click are both compared with the stored markup
+        TestTaconite poll = diff(session, String.format(LIST, "Blog"));
+        TestTaconite click = diff(session, String.format(LIST, "Shop"));
+        assertEquals(JQTaconite.REPLACE_CONTENT, poll.getCommands().get(0).getCommand());
+        assertEquals(JQTaconite.REPLACE_CONTENT, click.getCommands().get(0).getCommand());
+        commit(session, poll);
+        commit(session, click);
+
+        // The browser may have applied the responses in any order
+        List<JQCommand> commands = send(session, String.format(LIST, "Shop"));
+        assertEquals(1, commands.size());
+        assertEquals(JQTaconite.REPLACE, commands.get(0).getCommand());
+
+        commands = send(session, String.format(LIST, "News"));
+        assertEquals(JQTaconite.REPLACE_CONTENT, commands.get(0).getCommand());
+    }
+
+    @Test
+    public void testUncommittedDiffIsIgnored() {
+        TestSession session = new TestSession();
+        send(session, String.format(LIST, "News"));
+
+        // The response of a failed request is not stored
+        diff(session, String.format(LIST, "Blog"));
+        List<JQCommand> commands = send(session, String.format(LIST, "Blog"));
+        assertEquals(JQTaconite.REPLACE_CONTENT, commands.get(0).getCommand());
+    }
+
+    @Test
+    public void testUnparsedMarkupRemovesFingerprint() {
+        TestSession session = new TestSession();
+        send(session, String.format(LIST, "News"));
+
+        List<JQCommand> commands = send(session, String.format(LIST, "<p>a<div>b</div></p>"));
+        assertEquals(JQTaconite.REPLACE, commands.get(0).getCommand());
+
+        // The browser has markup which was not fingerprinted
+        commands = send(session, String.format(LIST, "News"));
+        assertEquals(JQTaconite.REPLACE, commands.get(0).getCommand());
+    }
+
+    // -------------------------------------------------------- Package Methods
+
+    /**
+     * Send the given markup of the Control <tt>#t</tt> and return the sent
+     * commands.
+     */
+    static List<JQCommand> send(TestSession session, String markup) {
+        TestTaconite taconite = diff(session, markup);
+        commit(session, taconite);
+        return taconite.getCommands();
+    }
+
+    static TestTaconite diff(TestSession session, String markup) {
+        TestTaconite taconite = new TestTaconite();
+        taconite.setDiffEnabled(true);
+        taconite.replace(new MarkupControl(markup));
+
+        Context context = session.createContext();
+        pushContext(context);
+        try {
+            taconite.toString();
+        } finally {
+            popContext();
+        }
+        return taconite;
+    }
+
+    static void commit(TestSession session, TestTaconite taconite) {
+        Context context = session.createContext();
+        pushContext(context);
+        try {
+            taconite.renderActionResult(context);
+        } finally {
+            popContext();
+        }
+    }
+
+    static void pushContext(Context context) {
+        invoke("pushThreadLocalContext", context);
+    }
+
+    static void popContext() {
+        invoke("popThreadLocalContext");
+    }
+
+    // -------------------------------------------------------- Private Methods
+
+    private static void invoke(String name, Object... args) {
+        try {
+            Method method = null;
+            for (Method candidate : Context.class.getDeclaredMethods()) {
+                if (candidate.getName().equals(name)) {
+                    method = candidate;
+                }
+            }
+            method.setAccessible(true);
+            method.invoke(null, args);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(DomDiffTest.class.getClassLoader(),
+            new Class[] { type }, handler);
+    }
+
+    /**
+     * Return the default value of the return type of the given method.
+     */
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        } else if (type == Integer.TYPE) {
+            return 0;
+        } else if (type == Long.TYPE) {
+            return 0L;
+        }
+        return null;
+    }
+
+    // ---------------------------------------------------------- Inner Classes
+
+    /**
+     * Provides the session and page load of the requests of a browser.
+     */
+    static class TestSession implements InvocationHandler {
+
+        final Map<String, Object> attributes = new HashMap<String, Object>();
+
+        final HttpSession session = (HttpSession) proxy(HttpSession.class, this);
+
+        String pageId = "1";
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if ("getAttribute".equals(name)) {
+                return attributes.get(args[0]);
+            } else if ("setAttribute".equals(name)) {
+                return attributes.put((String) args[0], args[1]);
+            }
+            return defaultValue(method);
+        }
+
+        Context createContext() {
+            InvocationHandler requestHandler = new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("getMethod".equals(name)) {
+                        return "GET";
+                    } else if ("getSession".equals(name)) {
+                        return session;
+                    } else if ("getHeader".equals(name)) {
+                        return "X-Click-Page".equals(args[0]) ? pageId : null;
+                    }
+                    return defaultValue(method);
+                }
+            };
+            InvocationHandler responseHandler = new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("getWriter".equals(name)) {
+                        return new PrintWriter(new StringWriter());
+                    } else if ("getCharacterEncoding".equals(name)) {
+                        return "UTF-8";
+                    }
+                    return defaultValue(method);
+                }
+            };
+            HttpServletRequest request =
+                (HttpServletRequest) proxy(HttpServletRequest.class, requestHandler);
+            HttpServletResponse response =
+                (HttpServletResponse) proxy(HttpServletResponse.class, responseHandler);
+            return new Context(null, null, request, response, false,
+                new JQTaconiteTest.TestServlet());
+        }
+    }
+
+    static class TestTaconite extends JQTaconite {
+
+        List<JQCommand> getCommands() {
+            return commands;
+        }
+
+        @Override
+        public void renderActionResult(Context context) {
+            super.renderActionResult(context);
+        }
+    }
+
+    /**
+     * Provides a Control <tt>#t</tt> rendering the given markup.
+     */
+    static class MarkupControl extends AbstractControl {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String markup;
+
+        MarkupControl(String markup) {
+            super("t");
+            this.markup = markup;
+        }
+
+        @Override
+        public void render(HtmlStringBuffer buffer) {
+            buffer.append(markup);
+        }
+    }
+}
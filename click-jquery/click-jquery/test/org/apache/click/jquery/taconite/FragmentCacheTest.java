@@ -0,0 +1,93 @@
+package org.apache.click.jquery.taconite;
+
+import net.sf.click.jquery.taconite.FragmentCache;
+import org.apache.click.control.AbstractControl;
+import org.apache.click.util.HtmlStringBuffer;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class FragmentCacheTest {
+
+    @Test
+    public void testRenderOncePerVersion() {
+        FragmentCache cache = new FragmentCache(10, 0);
+        CountingControl menu = new CountingControl("menu");
+
+        assertEquals("<div>menu 1</div>", cache.render(menu, "v1"));
+        assertEquals("<div>menu 1</div>", cache.render(menu, "v1"));
+        assertEquals("<div>menu 1</div>", cache.render(new CountingControl("menu"), "v1"));
+        assertEquals(1, menu.count);
+
+        assertEquals("<div>menu 2</div>", cache.render(menu, "v2"));
+        assertEquals(2, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testEviction() {
+        FragmentCache cache = new FragmentCache(2, 0);
+        CountingControl a = new CountingControl("a");
+        CountingControl b = new CountingControl("b");
+        CountingControl c = new CountingControl("c");
+
+        cache.render(a, 1);
+        cache.render(b, 1);
+        cache.render(a, 1);
+        cache.render(c, 1);
+
+        // b is the least recently used fragment
+        assertEquals(1, cache.getEvictions());
+        assertEquals(2, cache.size());
+        cache.render(a, 1);
+        cache.render(b, 1);
+        assertEquals(1, a.count);
+        assertEquals(2, b.count);
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        FragmentCache cache = new FragmentCache(10, 1);
+        CountingControl menu = new CountingControl("menu");
+
+        cache.render(menu, 1);
+        Thread.sleep(5);
+        cache.render(menu, 1);
+        assertEquals(2, menu.count);
+        assertEquals(1, cache.getExpirations());
+    }
+
+    @Test
+    public void testAnonymousControlNotCached() {
+        FragmentCache cache = new FragmentCache(10, 0);
+        CountingControl control = new CountingControl(null);
+
+        cache.render(control, 1);
+        cache.render(control, 1);
+        assertEquals(2, control.count);
+        assertEquals(0, cache.size());
+    }
+
+    static class CountingControl extends AbstractControl {
+
+        private static final long serialVersionUID = 1L;
+
+        int count;
+
+        CountingControl(String name) {
+            if (name != null) {
+                setName(name);
+            }
+        }
+
+        @Override
+        public String getId() {
+            return null;
+        }
+
+        @Override
+        public void render(HtmlStringBuffer buffer) {
+            count++;
+            buffer.append("<div>").append(getName()).append(' ').append(count).append("</div>");
+        }
+    }
+}
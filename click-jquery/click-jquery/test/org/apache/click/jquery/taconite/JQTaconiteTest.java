@@ -0,0 +1,147 @@
+package org.apache.click.jquery.taconite;
+
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.servlet.http.HttpServletRequest;
+import javax.xml.parsers.DocumentBuilderFactory;
+import net.sf.click.jquery.taconite.JQTaconite;
+import org.apache.click.ActionResult;
+import org.apache.click.ClickServlet;
+import org.apache.click.Context;
+import org.apache.click.control.AbstractControl;
+import org.apache.click.element.CssStyle;
+import org.apache.click.element.Element;
+import org.apache.click.element.JsScript;
+import org.apache.click.jquery.taconite.DomDiffTest.MarkupControl;
+import org.apache.click.service.ConfigService;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JQTaconiteTest {
+
+    /** The addHeader items of a JSON document. */
+    private static final Pattern ADD_HEADER =
+        Pattern.compile("\\{\"cmd\":\"addHeader\",\"content\":\\[\"(.*?)\"\\]\\}");
+
+    @Test
+    public void testJsonHeadElementsAreValidXml() throws Exception {
+        final Context context = createContext();
+        AbstractControl control = new AbstractControl("list") {
+
+            @Override
+            public String getTag() {
+                return "div";
+            }
+
+            @Override
+            public List<Element> getHeadElements() {
+                List<Element> elements = new ArrayList<Element>();
+                elements.add(new JsScript("if (a && b < c) { load('page.htm?a=1&b=2'); }") {
+                    @Override
+                    public Context getContext() {
+                        return context;
+                    }
+                });
+                elements.add(new CssStyle("ul > li { color: red }") {
+                    @Override
+                    public Context getContext() {
+                        return context;
+                    }
+                });
+                return elements;
+            }
+        };
+
+        JQTaconite taconite = new JQTaconite();
+        taconite.setContentType(ActionResult.JSON);
+        taconite.replace("#list", control);
+        String json = taconite.toString();
+
+        // The browser parses head elements as XML, in JSON format too
+        List<String> texts = new ArrayList<String>();
+        Matcher matcher = ADD_HEADER.matcher(json);
+        while (matcher.find()) {
+            Document document = parseXml(unescape(matcher.group(1)));
+            texts.add(document.getDocumentElement().getTextContent());
+        }
+        assertEquals(json, 2, texts.size());
+        assertTrue(texts.get(0), texts.get(0).contains("ul > li { color: red }"));
+        assertTrue(texts.get(1), texts.get(1).contains("if (a && b < c)"));
+        assertTrue(texts.get(1), texts.get(1).contains("page.htm?a=1&b=2"));
+    }
+
+    @Test(timeout = 5000)
+    public void testDiscardingRenderExecutor() {
+        JQTaconite taconite = new JQTaconite();
+        taconite.setContentType(ActionResult.JSON);
+        taconite.setRenderExecutor(new Executor() {
+            public void execute(Runnable command) {
+                // Discards the task, like ThreadPoolExecutor.DiscardPolicy
+            }
+        });
+        taconite.replace("#a", new MarkupControl("<b>a</b>"));
+        taconite.replace("#b", new MarkupControl("<b>b</b>"));
+        taconite.replace("#c", new MarkupControl("<b>c</b>"));
+
+        // The request thread renders the Controls the executor did not run
+        String json;
+        DomDiffTest.pushContext(createContext());
+        try {
+            json = taconite.toString();
+        } finally {
+            DomDiffTest.popContext();
+        }
+        assertTrue(json, json.contains("<b>a<\\/b>"));
+        assertTrue(json, json.contains("<b>b<\\/b>"));
+        assertTrue(json, json.contains("<b>c<\\/b>"));
+    }
+
+    private Document parseXml(String xml) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(
+            new InputSource(new StringReader(xml)));
+    }
+
+    private String unescape(String json) {
+        return json.replace("\\n", "\n").replace("\\\"", "\"").replace("\\/", "/");
+    }
+
+    private Context createContext() {
+        InvocationHandler handler = new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return "getMethod".equals(method.getName()) ? "GET" : null;
+            }
+        };
+        HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(
+            getClass().getClassLoader(), new Class[] { HttpServletRequest.class }, handler);
+        return new Context(null, null, request, null, false, new TestServlet());
+    }
+
+    /**
+     * Provides the ConfigService of the Context, without configuration.
+     */
+    static class TestServlet extends ClickServlet {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected ConfigService getConfigService() {
+            InvocationHandler handler = new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    return null;
+                }
+            };
+            return (ConfigService) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] { ConfigService.class }, handler);
+        }
+    }
+}
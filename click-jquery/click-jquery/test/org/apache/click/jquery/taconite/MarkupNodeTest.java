@@ -0,0 +1,97 @@
+package org.apache.click.jquery.taconite;
+
+import java.util.List;
+import net.sf.click.jquery.taconite.JQCommand;
+import net.sf.click.jquery.taconite.JQTaconite;
+import org.apache.click.jquery.taconite.DomDiffTest.TestSession;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+
+public class MarkupNodeTest {
+
+    /** The padding which makes a diff smaller than the markup. */
+    private static final String PADDING =
+        "<p>Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod</p>";
+
+    @Test
+    public void testWellFormedMarkupIsDiffed() {
+        assertDiffed("<ul><li><a href=\"#\"><b>%s</b></a></li></ul>");
+        assertDiffed("<table><tbody><tr><td>%s</td></tr></tbody></table>");
+        assertDiffed("<p><span>%s</span><br><img src=\"a.png\"/></p>");
+        assertDiffed("<dl><dt>Term</dt><dd><ul><li>%s</li></ul></dd></dl>");
+        assertDiffed("<select><optgroup><option>%s</option></optgroup></select>");
+        assertDiffed("<form><button><span>%s</span></button></form>");
+        assertDiffed("<script>if (a < b) { x = '</p>'; }</script><span>%s</span>");
+        assertDiffed("<!-- <div> --><span>%s</span>");
+    }
+
+    @Test
+    public void testMalformedMarkupIsReplaced() {
+        assertReplaced("<span>%s</div>");
+        assertReplaced("<span>%s");
+        assertReplaced("<span>%s</span></span>");
+        assertReplaced("<b><i>%s</b></i>");
+        assertReplaced("<!DOCTYPE html><span>%s</span>");
+    }
+
+    @Test
+    public void testImplicitlyClosedElementsAreReplaced() {
+        // The browser closes the paragraph before the div
+        assertReplaced("<p>x<div>%s</div></p>");
+        assertReplaced("<p><span><ul><li>%s</li></ul></span></p>");
+        assertReplaced("<p><table><tbody><tr><td>%s</td></tr></tbody></table></p>");
+        assertReplaced("<a href=\"#\"><span><a href=\"#\">%s</a></span></a>");
+        assertReplaced("<button><button>%s</button></button>");
+        assertReplaced("<form><div><form>%s</form></div></form>");
+        assertReplaced("<ul><li><span><li>%s</li></span></li></ul>");
+        assertReplaced("<dl><dt><dd>%s</dd></dt></dl>");
+        assertReplaced("<h1><h2>%s</h2></h1>");
+    }
+
+    @Test
+    public void testRestructuredTableContentIsReplaced() {
+        // The browser adds a tbody
+        assertReplaced("<table><tr><td>%s</td></tr></table>");
+        // The browser moves the div and the text before the table
+        assertReplaced("<table><tbody><div>%s</div></tbody></table>");
+        assertReplaced("<table><tbody><tr>%s<td>x</td></tr></tbody></table>");
+        // The browser ignores a cell outside a table
+        assertReplaced("<div><td>%s</td></div>");
+        assertReplaced("<select><div>%s</div></select>");
+    }
+
+    @Test
+    public void testUnsupportedElementsAreReplaced() {
+        assertReplaced("<noscript><span>%s</span></noscript>");
+        assertReplaced("<template><span>%s</span></template>");
+        assertReplaced("<iframe><span>%s</span></iframe>");
+    }
+
+    /**
+     * Assert that a change of the given content is sent as a diff.
+     */
+    private void assertDiffed(String content) {
+        List<JQCommand> commands = sendChange(content);
+        assertEquals(content, 1, commands.size());
+        assertEquals(content, JQTaconite.REPLACE_CONTENT, commands.get(0).getCommand());
+    }
+
+    /**
+     * Assert that a change of the given content replaces the Control.
+     */
+    private void assertReplaced(String content) {
+        List<JQCommand> commands = sendChange(content);
+        assertEquals(content, 1, commands.size());
+        assertEquals(content, JQTaconite.REPLACE, commands.get(0).getCommand());
+    }
+
+    private List<JQCommand> sendChange(String content) {
+        TestSession session = new TestSession();
+        DomDiffTest.send(session, markup(content, "News"));
+        return DomDiffTest.send(session, markup(content, "Blog"));
+    }
+
+    private String markup(String content, String text) {
+        return "<div id=\"t\">" + String.format(content, text) + PADDING + "</div>";
+    }
+}
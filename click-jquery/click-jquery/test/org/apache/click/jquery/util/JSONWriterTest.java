@@ -0,0 +1,204 @@
+package org.apache.click.jquery.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import net.sf.click.jquery.util.JSONTypeAdapter;
+import net.sf.click.jquery.util.JSONWriter;
+import net.sf.click.jquery.util.Options;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class JSONWriterTest {
+
+    @Test
+    public void testBean() {
+        Person person = new Person();
+        person.setName("John");
+        person.setAge(12);
+
+        JSONWriter writer = new JSONWriter();
+        assertEquals("{\"age\":12,\"name\":\"John\",\"nickname\":null}", writer.write(person));
+
+        // Second write is served from the cached bean properties
+        person.setName("Jane");
+        assertEquals("{\"age\":12,\"name\":\"Jane\",\"nickname\":null}", writer.write(person));
+    }
+
+    @Test
+    public void testBeanWithClassName() {
+        JSONWriter writer = new JSONWriter(true);
+        String json = writer.write(new Person());
+        assertEquals("{\"age\":0,\"class\":\"" + Person.class.toString()
+            + "\",\"name\":null,\"nickname\":null}", json);
+    }
+
+    @Test
+    public void testWriteToWriter() throws Exception {
+        StringWriter out = new StringWriter();
+        new JSONWriter().write(Arrays.asList("a", "b"), out);
+        assertEquals("[\"a\",\"b\"]", out.toString());
+    }
+
+    @Test
+    public void testWriteToOutputStream() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new JSONWriter().write(new Options("name", "caf\u00e9"), out);
+        assertEquals("{\"name\":\"caf\u00e9\"}", out.toString("UTF-8"));
+    }
+
+    @Test
+    public void testCyclePolicy() {
+        List<Object> list = new ArrayList<Object>();
+        List<Object> child = new ArrayList<Object>();
+        list.add(child);
+        child.add(list);
+
+        JSONWriter writer = new JSONWriter();
+        assertEquals("[[null]]", writer.write(list));
+
+        writer.setCyclePolicy(JSONWriter.CyclePolicy.REFERENCE);
+        assertEquals("[[{\"$ref\":0}]]", writer.write(list));
+
+        writer.setCyclePolicy(JSONWriter.CyclePolicy.FAIL);
+        try {
+            writer.write(list);
+            fail("Cyclic reference should fail");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testMaxDepth() {
+        List<Object> list = new ArrayList<Object>();
+        list.add(Arrays.asList(Arrays.asList("a")));
+
+        JSONWriter writer = new JSONWriter();
+        writer.setMaxDepth(3);
+        assertEquals("[[[\"a\"]]]", writer.write(list));
+
+        writer.setMaxDepth(2);
+        try {
+            writer.write(list);
+            fail("Maximum depth should be exceeded");
+        } catch (IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    public void testString() {
+        JSONWriter writer = new JSONWriter();
+        assertEquals("\"a\\\"b\\\\c\\n\\u0001<\\/b><\\/script>\"",
+            writer.write("a\"b\\c\n\u0001</b></script>"));
+
+        writer.setScriptSafe(true);
+        assertEquals("\"\\u003Cb\\u003E \\u0026 \\u2028\"", writer.write("<b> & \u2028"));
+    }
+
+    @Test
+    public void testWriteFormatted() {
+        Options options = new Options("list", Arrays.asList(1, new Options()));
+
+        String expected = "{\n"
+            + "  \"list\": [\n"
+            + "    1,\n"
+            + "    {}\n"
+            + "  ]\n"
+            + "}";
+        JSONWriter writer = new JSONWriter();
+        assertEquals(expected, writer.writeFormatted(options));
+        assertEquals("{\n  \"values\": [1,2]\n}",
+            writer.writeFormatted(new Options("values", new int[] {1, 2})));
+
+        writer.setIndent("\t");
+        writer.setNewline("\r\n");
+        assertEquals("[\r\n\t\"a\"\r\n]", writer.writeFormatted(Arrays.asList("a")));
+
+        // Formatting does not leak into subsequent writes
+        assertEquals("[\"a\"]", writer.write(Arrays.asList("a")));
+    }
+
+    @Test
+    public void testBuiltInTypes() {
+        JSONWriter writer = new JSONWriter();
+        assertEquals("[1,2,3]", writer.write(new int[] {1, 2, 3}));
+        assertEquals("[1.5,2.0]", writer.write(new double[] {1.5, 2}));
+        assertEquals("[10,20]", writer.write(new long[] {10, 20}));
+        assertEquals("1000", writer.write(new Date(1000)));
+        assertEquals("\"REFERENCE\"", writer.write(JSONWriter.CyclePolicy.REFERENCE));
+        assertEquals("1.50", writer.write(new BigDecimal("1.50")));
+    }
+
+    @Test
+    public void testTypeAdapter() {
+        JSONWriter.registerTypeAdapter(Person.class, new JSONTypeAdapter() {
+
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                out.append("{\"person\":");
+                writer.writeString(((Person) value).getName());
+                out.append('}');
+            }
+        });
+
+        try {
+            Person person = new Person();
+            person.setName("John");
+            assertEquals("[{\"person\":\"John\"}]", new JSONWriter().write(Arrays.asList(person)));
+        } finally {
+            JSONWriter.removeTypeAdapter(Person.class);
+        }
+    }
+
+    @Test
+    public void testTypeAdapterChangeWithLiveWriter() {
+        Person person = new Person();
+        person.setName("John");
+        JSONWriter writer = new JSONWriter();
+        String bean = writer.write(person);
+
+        JSONWriter.registerTypeAdapter(Person.class, new JSONTypeAdapter() {
+
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                writer.writeString(((Person) value).getName());
+            }
+        });
+
+        try {
+            assertEquals("\"John\"", writer.write(person));
+        } finally {
+            JSONWriter.removeTypeAdapter(Person.class);
+        }
+        assertEquals(bean, writer.write(person));
+    }
+
+    public static class Person {
+
+        public String nickname;
+
+        private String name;
+
+        private int age;
+
+        public int getAge() {
+            return age;
+        }
+
+        public void setAge(int age) {
+            this.age = age;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package org.apache.click.jquery.util;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiFunction;
+import net.sf.click.jquery.util.JSONTypeAdapter;
+import net.sf.click.jquery.util.JSONWriter;
+import net.sf.click.jquery.util.Options;
+import org.junit.Test;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class OptionsTest {
+
+    @Test
+    public void testCachedJson() {
+        Options options = new Options("name", "John");
+        assertEquals("{\"name\":\"John\"}", options.toJson());
+        assertSame(options.toJson(), options.toJson());
+
+        // Changes invalidate the cached JSON
+        options.put("name", "Jane");
+        assertEquals("{\"name\":\"Jane\"}", options.toJson());
+        options.remove("name");
+        assertEquals("{}", options.toJson());
+
+        // Mutable values are written every time
+        List<String> list = new ArrayList<String>();
+        options.put("list", list);
+        assertEquals("{\"list\":[]}", options.toJson());
+        list.add("a");
+        assertEquals("{\"list\":[\"a\"]}", options.toJson());
+    }
+
+    @Test
+    public void testTypeAdapterChangeInvalidatesCachedJson() {
+        Options options = new Options("color", Color.RED);
+        options.freeze();
+        assertEquals("{\"color\":\"RED\"}", options.toJson());
+
+        JSONWriter.registerTypeAdapter(Color.class, new JSONTypeAdapter() {
+
+            public void write(Object value, JSONWriter writer, Appendable out) throws IOException {
+                out.append(String.valueOf(((Color) value).ordinal()));
+            }
+        });
+
+        try {
+            assertEquals("{\"color\":0}", options.toJson());
+            assertEquals("[{\"color\":0}]", new JSONWriter().write(new Object[] {options}));
+        } finally {
+            JSONWriter.removeTypeAdapter(Color.class);
+        }
+        assertEquals("{\"color\":\"RED\"}", options.toJson());
+    }
+
+    @Test
+    public void testDefaultMethodsInvalidateCachedJson() {
+        Options options = new Options("a", 1);
+        assertEquals("{\"a\":1}", options.toJson());
+        options.replace("a", 5);
+        assertEquals("{\"a\":5}", options.toJson());
+        options.putIfAbsent("b", 2);
+        assertEquals("{\"a\":5,\"b\":2}", options.toJson());
+        options.replaceAll(new BiFunction<Object, Object, Object>() {
+            public Object apply(Object key, Object value) {
+                return ((Integer) value) * 10;
+            }
+        });
+        assertEquals("{\"a\":50,\"b\":20}", options.toJson());
+        options.remove("a", 50);
+        assertEquals("{\"b\":20}", options.toJson());
+    }
+
+    @Test
+    public void testInsertionOrder() {
+        Options options = new Options();
+        StringBuilder expected = new StringBuilder("{");
+        for (int i = 0; i < 12; i++) {
+            options.put("key" + i, i);
+            expected.append(i > 0 ? "," : "").append("\"key").append(i).append("\":").append(i);
+            assertEquals(expected + "}", options.toJson());
+        }
+
+        // Removing while iterating, past the compact size
+        for (Iterator it = options.keySet().iterator(); it.hasNext();) {
+            if (!"key11".equals(it.next())) {
+                it.remove();
+            }
+        }
+        assertEquals("{\"key11\":11}", options.toJson());
+        options.clear();
+        options.put("a", 1);
+        options.put("b", 2);
+        options.remove("a");
+        assertEquals(1, options.size());
+        assertEquals("{\"b\":2}", options.toJson());
+    }
+
+    @Test
+    public void testFreeze() {
+        Options nested = new Options("fadeIn", 200);
+        Options options = new Options("css", nested).freeze();
+        assertTrue(options.isFrozen());
+        assertTrue(nested.isFrozen());
+
+        try {
+            options.put("message", "Loading...");
+            fail("Frozen options cannot be changed");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            options.keySet().clear();
+            fail("Frozen options cannot be changed");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            options.putIfAbsent("message", "Loading...");
+            fail("Frozen options cannot be changed");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            options.replace("css", new Options());
+            fail("Frozen options cannot be changed");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            ((Map.Entry) options.entrySet().iterator().next()).setValue(null);
+            fail("Frozen options cannot be changed");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            Iterator it = options.values().iterator();
+            it.next();
+            it.remove();
+            fail("Frozen options cannot be changed");
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        JSONWriter writer = new JSONWriter();
+        assertEquals("[{\"css\":{\"fadeIn\":200}}]", writer.write(new Object[] {options}));
+        assertSame(options.toJson(), options.toJson());
+
+        Options copy = new Options(options);
+        assertFalse(copy.isFrozen());
+        copy.put("message", "Loading...");
+        assertEquals(2, copy.size());
+    }
+
+    enum Color {
+        RED, GREEN
+    }
+}